@@ -0,0 +1,481 @@
+package client.src;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * BinaryClientConnection implementa l'interfaccia Connection sul protocollo
+ * binario a frame del server, pensato per client automatici. Ogni frame
+ * dichiara la propria lunghezza: la risposta è completa appena letti i suoi
+ * byte, senza marcatori di fine né timeout di lettura. Le risposte che
+ * elencano strutture arrivano in forma colonnare e sono esposte da
+ * {@link Result} senza alcuna elaborazione di testo.
+ *
+ * <p>Formato dei frame, condiviso con server.src.ServerBinario:
+ * opcode (1 byte), id richiesta (4 byte), lunghezza (4 byte), payload.
+ *
+ * <p>Più richieste possono essere in volo contemporaneamente: un thread
+ * lettore completa ciascuna quando arriva il frame con il suo id.
+ */
+public class BinaryClientConnection implements Connection {
+    /** Logger per messaggi di diagnostica e warning */
+    private static final Logger LOGGER = Logger.getLogger(BinaryClientConnection.class.getName());
+    /** Timeout di connessione in millisecondi: le letture non hanno timeout */
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+
+    /** Colonne filtrabili con {@link #filter}, nell'ordine di server.src.Colonna */
+    public static final int FILTER_COMUNE = 0;
+    public static final int FILTER_PROVINCIA = 1;
+    public static final int FILTER_TIPOLOGIA = 2;
+    public static final int FILTER_STELLE = 3;
+    public static final int FILTER_ATL = 4;
+
+    // Opcode dei frame
+    private static final byte COMANDO = 0x01;
+    private static final byte RIGA = 0x02;
+    private static final byte FILTRO = 0x03;
+    private static final byte PING = 0x04;
+    private static final byte BENVENUTO = (byte) 0x80;
+    private static final byte TESTO = (byte) 0x81;
+    private static final byte RIGHE = (byte) 0x82;
+    private static final byte ERRORE = (byte) 0x83;
+    private static final byte PONG = (byte) 0x84;
+    private static final int VERSIONE = 1;
+
+    private final Socket socket;           // Socket TCP verso la porta binaria
+    private final DataInputStream in;      // Lettura dei frame
+    private final DataOutputStream out;    // Scrittura dei frame
+    private final String[] nomiColonne;    // Nomi delle colonne ricevuti nel benvenuto
+    private int ultimoId;                  // Identificativo dell'ultima richiesta inviata
+    // Richieste in attesa di risposta, per id
+    private final ConcurrentMap<Integer, CompletableFuture<Result>> inAttesa = new ConcurrentHashMap<>();
+    // Serializza la scrittura dei frame e l'assegnazione degli id
+    private final Object scrittura = new Object();
+
+    /**
+     * Apre la connessione e legge il frame di benvenuto del server.
+     *
+     * @param serverIP indirizzo IP o hostname del server
+     * @param port     porta del protocollo binario
+     * @throws IOException se la connessione fallisce o il server non parla il protocollo
+     */
+    public BinaryClientConnection(String serverIP, int port) throws IOException {
+        this.socket = new Socket();
+        this.socket.connect(new InetSocketAddress(serverIP, port), CONNECT_TIMEOUT_MS);
+        this.socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        try {
+            ByteBuffer b = leggiFrame(BENVENUTO, 0);
+            int versione = b.get();
+            if (versione != VERSIONE) {
+                throw new IOException("Unsupported binary protocol version: " + versione);
+            }
+            nomiColonne = new String[b.get() & 0xFF];
+            for (int i = 0; i < nomiColonne.length; i++) {
+                nomiColonne[i] = leggiTesto(b, b.getShort() & 0xFFFF);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        Thread lettore = new Thread(this::leggiRisposte, "bin-lettore-" + serverIP + ":" + port);
+        lettore.setDaemon(true);
+        lettore.start();
+    }
+
+    /**
+     * Invia un comando testuale senza attendere la risposta, presentata come testo.
+     * Le righe vengono presentate una per riga, con i campi separati da ';'
+     * e precedute dai nomi delle colonne.
+     * Il comando 'exit' chiude la connessione.
+     *
+     * @param cmd comando da inviare al server
+     * @return risposta ricevuta dal server
+     */
+    @Override
+    public CompletableFuture<String> sendCommandAsync(String cmd) {
+        if ("exit".equalsIgnoreCase(cmd.trim())) {
+            close();
+            return CompletableFuture.completedFuture("[Disconnected]");
+        }
+        return executeAsync(cmd).thenApply(Result::toString);
+    }
+
+    /**
+     * Invia un comando testuale del protocollo e restituisce la risposta strutturata.
+     *
+     * @param cmd comando, con gli stessi modificatori del protocollo testuale
+     * @return risposta del server
+     * @throws IOException se si verifica un errore di I/O
+     */
+    public Result execute(String cmd) throws IOException {
+        return attendi(executeAsync(cmd));
+    }
+
+    /**
+     * Invia un comando testuale del protocollo senza attendere la risposta.
+     *
+     * @param cmd comando, con gli stessi modificatori del protocollo testuale
+     * @return risposta del server; fallisce con IOException in caso di errore di I/O
+     */
+    public CompletableFuture<Result> executeAsync(String cmd) {
+        return richiesta(COMANDO, cmd.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Richiede il dettaglio di una riga, senza comporre un comando testuale.
+     *
+     * @param n numero di riga, da 1
+     * @return risposta con una riga, o errore se la riga non esiste
+     * @throws IOException se si verifica un errore di I/O
+     */
+    public Result getRow(int n) throws IOException {
+        return attendi(richiesta(RIGA, ByteBuffer.allocate(Integer.BYTES).putInt(n).array()));
+    }
+
+    /**
+     * Richiede le strutture il cui valore nella colonna indicata è uguale
+     * a quello dato (senza distinzione tra maiuscole e minuscole).
+     *
+     * @param column una delle costanti FILTER_*
+     * @param value  valore cercato
+     * @return righe corrispondenti
+     * @throws IOException se si verifica un errore di I/O
+     */
+    public Result filter(int column, String value) throws IOException {
+        byte[] v = value.getBytes(StandardCharsets.UTF_8);
+        return attendi(richiesta(FILTRO, ByteBuffer.allocate(1 + v.length).put((byte) column).put(v).array()));
+    }
+
+    /**
+     * Verifica che il server risponda sulla connessione.
+     *
+     * @return true se il server ha risposto al ping
+     */
+    public boolean ping() {
+        try {
+            return !attendi(richiesta(PING, new byte[0])).isError();
+        } catch (IOException e) {
+            LOGGER.fine("Ping failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Invia un frame con un nuovo id e restituisce la risposta attesa.
+     */
+    private CompletableFuture<Result> richiesta(byte opcode, byte[] payload) {
+        CompletableFuture<Result> risposta = new CompletableFuture<>();
+        synchronized (scrittura) {
+            if (socket.isClosed()) {
+                risposta.completeExceptionally(new IOException("Socket is closed"));
+                return risposta;
+            }
+            int id = ++ultimoId;
+            inAttesa.put(id, risposta);
+            try {
+                out.writeByte(opcode);
+                out.writeInt(id);
+                out.writeInt(payload.length);
+                out.write(payload);
+                out.flush();
+            } catch (IOException e) {
+                chiudi(e);
+            }
+        }
+        return risposta;
+    }
+
+    /**
+     * Ciclo del thread lettore: legge i frame e completa la richiesta con lo stesso id.
+     */
+    private void leggiRisposte() {
+        try {
+            while (true) {
+                int op = in.readByte();
+                int id = in.readInt();
+                int lunghezza = in.readInt();
+                CompletableFuture<Result> richiesta = inAttesa.remove(id);
+                if (richiesta == null || lunghezza < 0) {
+                    throw new IOException("Unexpected response frame: id " + id);
+                }
+                byte[] dati = new byte[lunghezza];
+                in.readFully(dati);
+                richiesta.complete(decodifica((byte) op, ByteBuffer.wrap(dati)));
+            }
+        } catch (IOException e) {
+            chiudi(e);
+        }
+    }
+
+    /**
+     * Decodifica il payload di una risposta secondo il suo opcode.
+     */
+    private Result decodifica(byte op, ByteBuffer b) throws IOException {
+        switch (op) {
+            case TESTO:
+                return new Result(false, leggiTesto(b, b.remaining()));
+            case ERRORE:
+                return new Result(true, leggiTesto(b, b.remaining()));
+            case PONG:
+                return new Result(false, "");
+            case RIGHE:
+                return leggiRighe(b);
+            default:
+                throw new IOException("Unexpected response opcode: " + op);
+        }
+    }
+
+    /**
+     * Attende una risposta, riportando gli errori di I/O della richiesta.
+     */
+    private static Result attendi(CompletableFuture<Result> risposta) throws IOException {
+        try {
+            return risposta.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        }
+    }
+
+    /**
+     * Legge un frame atteso, ad esempio il benvenuto, e ne restituisce il payload.
+     */
+    private ByteBuffer leggiFrame(byte opcodeAtteso, int idAtteso) throws IOException {
+        byte op = in.readByte();
+        int id = in.readInt();
+        int lunghezza = in.readInt();
+        if (op != opcodeAtteso || id != idAtteso || lunghezza < 0) {
+            throw new IOException("Unexpected frame from server: opcode " + op);
+        }
+        byte[] dati = new byte[lunghezza];
+        in.readFully(dati);
+        return ByteBuffer.wrap(dati);
+    }
+
+    /**
+     * Decodifica il payload di un frame RIGHE: dizionario e codici di ogni colonna.
+     */
+    private Result leggiRighe(ByteBuffer b) {
+        int n = b.getInt();
+        String intestazione = leggiTesto(b, b.getInt());
+        String chiusura = leggiTesto(b, b.getInt());
+        int m = b.get() & 0xFF;
+        String[][] dizionari = new String[m][];
+        int[][] codici = new int[m][n];
+        for (int c = 0; c < m; c++) {
+            dizionari[c] = new String[b.getInt()];
+            for (int j = 0; j < dizionari[c].length; j++) {
+                dizionari[c][j] = leggiTesto(b, b.getShort() & 0xFFFF);
+            }
+            int larghezza = b.get();
+            for (int i = 0; i < n; i++) {
+                codici[c][i] = larghezza == 1 ? b.get() & 0xFF
+                        : larghezza == 2 ? b.getShort() & 0xFFFF
+                        : b.getInt();
+            }
+        }
+        return new Result(n, intestazione.isEmpty() ? null : intestazione,
+                chiusura.isEmpty() ? null : chiusura, nomiColonne, dizionari, codici);
+    }
+
+    /**
+     * Decodifica lunghezza byte UTF-8 a partire dalla posizione corrente.
+     */
+    private static String leggiTesto(ByteBuffer b, int lunghezza) {
+        String s = new String(b.array(), b.arrayOffset() + b.position(), lunghezza, StandardCharsets.UTF_8);
+        b.position(b.position() + lunghezza);
+        return s;
+    }
+
+    /**
+     * Restituisce true se il socket è ancora aperto.
+     *
+     * @return true se connesso, false se chiuso
+     */
+    @Override
+    public boolean isConnected() {
+        return !socket.isClosed();
+    }
+
+    /**
+     * Chiude il socket se ancora aperto. Le richieste in attesa falliscono.
+     */
+    @Override
+    public void close() {
+        chiudi(new IOException("Connection closed"));
+    }
+
+    /**
+     * Chiude il socket e fa fallire le richieste in attesa con la causa indicata.
+     */
+    private void chiudi(IOException causa) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.warning("Error while closing binary connection: " + e.getMessage());
+        }
+        synchronized (scrittura) {
+            inAttesa.values().forEach(r -> r.completeExceptionally(causa));
+            inAttesa.clear();
+        }
+    }
+
+    /**
+     * Risposta del protocollo binario: un testo, un errore oppure un insieme
+     * di righe in forma colonnare. Ogni colonna ha un dizionario dei valori
+     * presenti nella risposta e, per ogni riga, la posizione del valore.
+     */
+    public static final class Result {
+        private final boolean error;
+        private final String text;
+        private final int rowCount;
+        private final String header;
+        private final String trailer;
+        private final String[] columnNames;
+        private final String[][] dictionaries;
+        private final int[][] codes;
+
+        private Result(boolean error, String text) {
+            this(error, text, 0, null, null, null, null, null);
+        }
+
+        private Result(int rowCount, String header, String trailer,
+                       String[] columnNames, String[][] dictionaries, int[][] codes) {
+            this(false, null, rowCount, header, trailer, columnNames, dictionaries, codes);
+        }
+
+        private Result(boolean error, String text, int rowCount, String header, String trailer,
+                       String[] columnNames, String[][] dictionaries, int[][] codes) {
+            this.error = error;
+            this.text = text;
+            this.rowCount = rowCount;
+            this.header = header;
+            this.trailer = trailer;
+            this.columnNames = columnNames;
+            this.dictionaries = dictionaries;
+            this.codes = codes;
+        }
+
+        /** @return true se il server ha risposto con un errore */
+        public boolean isError() {
+            return error;
+        }
+
+        /** @return true se la risposta è composta da righe */
+        public boolean isRows() {
+            return codes != null;
+        }
+
+        /** @return testo della risposta o dell'errore, null per le risposte a righe */
+        public String getText() {
+            return text;
+        }
+
+        /** @return numero di righe, 0 per le risposte testuali */
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        /** @return numero di colonne, 0 per le risposte testuali */
+        public int getColumnCount() {
+            return codes == null ? 0 : codes.length;
+        }
+
+        /**
+         * @param column indice della colonna
+         * @return nome della colonna annunciato dal server
+         */
+        public String getColumnName(int column) {
+            return columnNames[column];
+        }
+
+        /**
+         * @param row    indice (0-based) della riga nella risposta
+         * @param column indice della colonna
+         * @return valore del campo
+         */
+        public String getValue(int row, int column) {
+            return dictionaries[column][codes[column][row]];
+        }
+
+        /**
+         * Restituisce la posizione del valore nel dizionario della colonna:
+         * righe con lo stesso codice hanno lo stesso valore.
+         *
+         * @param row    indice (0-based) della riga nella risposta
+         * @param column indice della colonna
+         * @return codice del valore
+         */
+        public int getCode(int row, int column) {
+            return codes[column][row];
+        }
+
+        /**
+         * @param column indice della colonna
+         * @return valori distinti della colonna presenti nella risposta
+         */
+        public String[] getDictionary(int column) {
+            return dictionaries[column].clone();
+        }
+
+        /** @return riga "Totale" di una prima pagina, o null */
+        public String getHeader() {
+            return header;
+        }
+
+        /** @return riga "Cursore" di una pagina non finale, o null */
+        public String getTrailer() {
+            return trailer;
+        }
+
+        /**
+         * Presenta la risposta come testo: per le righe, i nomi delle colonne
+         * e poi una riga per struttura, con i campi separati da ';'.
+         */
+        @Override
+        public String toString() {
+            if (codes == null) {
+                return text;
+            }
+            StringJoiner righe = new StringJoiner("\n");
+            if (header != null) {
+                righe.add(header);
+            }
+            if (rowCount > 0) {
+                righe.add(String.join(";", columnNames));
+                for (int r = 0; r < rowCount; r++) {
+                    StringJoiner campi = new StringJoiner(";");
+                    for (int c = 0; c < codes.length; c++) {
+                        campi.add(getValue(r, c));
+                    }
+                    righe.add(campi.toString());
+                }
+            }
+            if (trailer != null) {
+                righe.add(trailer);
+            }
+            return righe.toString();
+        }
+    }
+}
@@ -2,24 +2,57 @@ package client.src;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
  * ClientConnection gestisce la connessione TCP al server delle strutture ricettive.
  * Implementa l'interfaccia Connection, supporta timeout configurabili e invio/ricezione
  * di comandi e risposte tramite socket.
+ *
+ * <p>Alla connessione il client chiede la modalità frame ("modo frame"): ogni
+ * risposta arriva preceduta da una riga "#id n" con la sua lunghezza n in byte, così
+ * la lettura termina appena la risposta è completa. Con un server che non la
+ * supporta il client legge fino al prompt; il timeout di lettura resta solo
+ * come protezione da un server bloccato.
+ *
+ * <p>Più comandi possono essere in volo contemporaneamente. In modalità frame
+ * ogni comando parte come "#id comando" e il server riporta l'id
+ * nell'intestazione "#id n" della risposta: un thread lettore completa la
+ * richiesta con quell'id. Senza modalità frame le risposte arrivano
+ * nell'ordine dei comandi e gli id, assegnati in sequenza, ne seguono l'ordine.
  */
 public class ClientConnection implements Connection {
     // Logger per messaggi di diagnostica e warning
     private static final Logger LOGGER = Logger.getLogger(ClientConnection.class.getName());
     // Timeout di default in millisecondi per connessione e lettura
     private static final int DEFAULT_TIMEOUT_MS = 2000;
+    // Comando che attiva le risposte con lunghezza esplicita
+    private static final String MODO_FRAME = "modo frame";
+    // Inizio della riga di intestazione di una risposta in modalità frame
+    private static final char INIZIO_FRAME = '#';
+    // Prompt del server, che chiude le risposte fuori dalla modalità frame
+    private static final byte[] PROMPT = ">>> ".getBytes(StandardCharsets.UTF_8);
 
     private final String serverIP;         // Indirizzo IP o hostname del server
     private final int port;                // Porta di connessione TCP
     private Socket socket;                 // Socket TCP aperto
-    private PrintWriter writer;            // Stream in uscita verso il server
-    private BufferedReader reader;         // Stream in entrata dal server
+    private OutputStream out;              // Stream in uscita verso il server
+    private InputStream in;                // Stream in entrata dal server
+    private boolean inFrame;               // True se il server ha accettato la modalità frame
+    private int timeoutMillis;             // Attesa massima di dati con richieste in volo
+    private volatile long ultimaAttivita;  // Istante (nanoTime) dell'ultimo invio o dell'ultima risposta
+    // Richieste inviate e in attesa di risposta, per id
+    private final Map<Integer, CompletableFuture<String>> inAttesa = new ConcurrentHashMap<>();
+    // Serializza le scritture e l'assegnazione degli id: l'ordine degli id è quello dei comandi sul socket
+    private final Object scrittura = new Object();
+    private int ultimoId;                  // Id dell'ultima richiesta inviata; 0 è la negoziazione
+    private int ultimaRisposta;            // Id dell'ultima risposta letta senza modalità frame
 
     /**
      * Costruisce una connessione TCP al server con timeout di default.
@@ -48,61 +81,233 @@ public class ClientConnection implements Connection {
     }
 
     /**
-     * Inizializza il socket, applica timeout e configura gli stream UTF-8.
+     * Inizializza il socket, applica timeout, configura gli stream e
+     * negozia la modalità frame.
      *
      * @param timeoutMillis timeout di connessione e lettura in millisecondi
      * @throws IOException se si verifica un errore di I/O
      */
     private void connect(int timeoutMillis) throws IOException {
+        this.timeoutMillis = timeoutMillis;
         socket = new Socket();
         // Connessione al server con timeout per connect
         socket.connect(new InetSocketAddress(serverIP, port), timeoutMillis);
         // Imposta timeout per operazioni di lettura
         socket.setSoTimeout(timeoutMillis);
-        // Configura lo stream in uscita con codifica UTF-8 e autoflush
-        writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
-        // Configura lo stream in entrata con codifica UTF-8
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        // Comandi brevi: inviati subito, senza ritardo di Nagle
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        in = new BufferedInputStream(socket.getInputStream());
+        try {
+            // Messaggio di benvenuto, terminato dal prompt
+            leggiFinoAlPrompt();
+            // Richiesta con id: un server che non conosce gli id risponde con un errore
+            invia(INIZIO_FRAME + "0 " + MODO_FRAME);
+            String riga = leggiRiga();
+            if (riga.length() > 1 && riga.charAt(0) == INIZIO_FRAME) {
+                if (idFrame(riga) != 0) {
+                    throw new IOException("Unexpected frame header: " + riga);
+                }
+                leggiFrame(riga);
+                inFrame = true;
+            } else {
+                // Server senza modalità frame o senza id: ha risposto con un errore e il prompt
+                LOGGER.info("Server does not support framed responses, reading up to the prompt");
+                leggiFinoAlPrompt();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        Thread lettore = new Thread(this::leggiRisposte, "tcp-lettore-" + serverIP + ":" + port);
+        lettore.setDaemon(true);
+        lettore.start();
     }
 
     /**
-     * Invia un comando al server e riceve la risposta completa.
-     * Il comando 'exit' chiude la connessione.
+     * Invia un comando al server senza attendere la risposta.
+     * Il comando 'exit' chiude la connessione; le richieste ancora in volo falliscono.
      *
      * @param cmd comando da inviare
-     * @return risposta ricevuta dal server (stringa multilinea)
-     * @throws IOException se la connessione non è attiva o ci sono errori di I/O
+     * @return risposta del server (stringa multilinea); fallisce con IOException se la
+     *         connessione non è attiva, la risposta non arriva entro il timeout
+     *         o ci sono errori di I/O
      */
     @Override
-    public synchronized String sendCommand(String cmd) throws IOException {
-        // Verifica connessione
-        if (!isConnected()) {
-            throw new IOException("Not connected to server");
+    public CompletableFuture<String> sendCommandAsync(String cmd) {
+        CompletableFuture<String> risposta = new CompletableFuture<>();
+        boolean exit = "exit".equalsIgnoreCase(cmd.trim());
+        synchronized (scrittura) {
+            // Verifica connessione
+            if (!isConnected()) {
+                risposta.completeExceptionally(new IOException("Not connected to server"));
+                return risposta;
+            }
+            String riga = cmd;
+            if (!exit) {
+                int id = ++ultimoId;
+                inAttesa.put(id, risposta);
+                if (inFrame) {
+                    riga = INIZIO_FRAME + Integer.toString(id) + " " + cmd;
+                }
+            }
+            ultimaAttivita = System.nanoTime();
+            try {
+                // Invia il comando al server
+                invia(riga);
+            } catch (IOException e) {
+                chiudi(e);
+                return risposta;
+            }
         }
-        // Invia il comando al server
-        writer.println(cmd);
         // Gestione chiusura su comando 'exit'
-        if ("exit".equalsIgnoreCase(cmd.trim())) {
+        if (exit) {
             close();
-            return "[Disconnected]";
+            risposta.complete("[Disconnected]");
+        }
+        return risposta;
+    }
+
+    /**
+     * Ciclo del thread lettore: legge le risposte e completa la richiesta con
+     * lo stesso id. A connessione inattiva i timeout di lettura sono ignorati.
+     */
+    private void leggiRisposte() {
+        try {
+            while (true) {
+                attendiDati();
+                int id;
+                String risposta;
+                if (inFrame) {
+                    String intestazione = leggiRiga();
+                    id = idFrame(intestazione);
+                    risposta = leggiFrame(intestazione);
+                } else {
+                    // Senza modalità frame le risposte seguono l'ordine degli id
+                    id = ++ultimaRisposta;
+                    risposta = leggiFinoAlPrompt();
+                }
+                ultimaAttivita = System.nanoTime();
+                CompletableFuture<String> richiesta = inAttesa.remove(id);
+                if (richiesta == null) {
+                    throw new IOException("Unexpected response from server: id " + id);
+                }
+                richiesta.complete(formatta(risposta));
+            }
+        } catch (IOException e) {
+            chiudi(e);
         }
-        // Accumula la risposta riga per riga
-        StringBuilder response = new StringBuilder();
-        String line;
+    }
+
+    /**
+     * Attende l'inizio della prossima risposta. Il timeout fa fallire la
+     * connessione solo se ci sono richieste in volo e nulla è arrivato o
+     * partito da almeno timeoutMillis; nessun byte viene consumato.
+     */
+    private void attendiDati() throws IOException {
         while (true) {
             try {
-                line = reader.readLine();
-                // Fine se stream chiuso o riga vuota (delimitatore)
-                if (line == null || line.isEmpty()) {
-                    break;
+                in.mark(1);
+                if (in.read() < 0) {
+                    throw new EOFException("Connection closed by server");
                 }
-                response.append(line).append(System.lineSeparator());
+                in.reset();
+                return;
             } catch (SocketTimeoutException e) {
-                // Timeout di lettura: consideriamo terminata la risposta
-                break;
+                long inattivo = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ultimaAttivita);
+                if (!inAttesa.isEmpty() && inattivo >= timeoutMillis) {
+                    throw e;
+                }
             }
         }
-        return response.toString();
+    }
+
+    /**
+     * Riporta la risposta al formato storico: una riga per elemento, ciascuna
+     * seguita dal separatore di riga; nessuna riga se la risposta è vuota.
+     */
+    private static String formatta(String risposta) {
+        if (risposta.equals("\n")) {
+            return "";
+        }
+        return "\n".equals(System.lineSeparator()) ? risposta : risposta.replace("\n", System.lineSeparator());
+    }
+
+    /**
+     * Invia una riga di comando in UTF-8.
+     */
+    private void invia(String cmd) throws IOException {
+        out.write((cmd + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Restituisce l'id della richiesta dall'intestazione "#id n" di una risposta.
+     */
+    private static int idFrame(String intestazione) throws IOException {
+        int spazio = intestazione.indexOf(' ');
+        try {
+            return Integer.parseInt(intestazione.substring(1, spazio));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed frame header: " + intestazione);
+        }
+    }
+
+    /**
+     * Legge il corpo di una risposta in modalità frame, data la sua riga di intestazione "#id n".
+     */
+    private String leggiFrame(String intestazione) throws IOException {
+        int lunghezza;
+        try {
+            lunghezza = Integer.parseInt(intestazione.substring(intestazione.indexOf(' ') + 1));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed frame header: " + intestazione);
+        }
+        byte[] corpo = in.readNBytes(lunghezza);
+        if (corpo.length < lunghezza) {
+            throw new EOFException("Connection closed after " + corpo.length + "/" + lunghezza + " bytes");
+        }
+        return new String(corpo, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Legge una riga terminata da '\n', senza il terminatore.
+     */
+    private String leggiRiga() throws IOException {
+        ByteArrayOutputStream riga = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+            riga.write(b);
+        }
+        return riga.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Legge fino al prompt del server e restituisce quanto lo precede.
+     */
+    private String leggiFinoAlPrompt() throws IOException {
+        ByteArrayOutputStream dati = new ByteArrayOutputStream();
+        boolean inizioRiga = true;
+        int combacianti = 0;
+        while (combacianti < PROMPT.length) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+            // Il prompt è sempre all'inizio di una riga
+            if (combacianti > 0 ? b == PROMPT[combacianti] : inizioRiga && b == PROMPT[0]) {
+                combacianti++;
+            } else {
+                dati.write(PROMPT, 0, combacianti);
+                dati.write(b);
+                combacianti = 0;
+            }
+            inizioRiga = b == '\n';
+        }
+        return dati.toString(StandardCharsets.UTF_8);
     }
 
     /**
@@ -117,15 +322,30 @@ public class ClientConnection implements Connection {
 
     /**
      * Chiude socket e stream, loggando eventuali errori.
+     * Le richieste ancora in attesa falliscono.
      */
     @Override
     public void close() {
+        chiudi(new IOException("Connection closed"));
+    }
+
+    /**
+     * Chiude il socket e fa fallire le richieste in attesa con la causa indicata.
+     * Il socket viene chiuso prima di prendere il lock di scrittura, così
+     * un invio bloccato si interrompe.
+     */
+    private void chiudi(IOException causa) {
         try {
-            if (reader != null) reader.close();
-            if (writer != null) writer.close();
             if (socket != null && !socket.isClosed()) socket.close();
         } catch (IOException e) {
             LOGGER.warning("Error closing TCP connection: " + e.getMessage());
         }
+        synchronized (scrittura) {
+            Iterator<CompletableFuture<String>> richieste = inAttesa.values().iterator();
+            while (richieste.hasNext()) {
+                richieste.next().completeExceptionally(causa);
+                richieste.remove();
+            }
+        }
     }
-}
\ No newline at end of file
+}
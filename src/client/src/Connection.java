@@ -1,6 +1,9 @@
 package client.src;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Common interface for client-server connections.
@@ -10,12 +13,36 @@ public interface Connection {
 
     /**
      * Sends a command to the server and returns its response.
+     * Equivalent to waiting for {@link #sendCommandAsync(String)}.
      *
      * @param cmd the command string to send
      * @return the server response as a string (may contain line breaks)
      * @throws IOException if an I/O error occurs during the operation
      */
-    String sendCommand(String cmd) throws IOException;
+    default String sendCommand(String cmd) throws IOException {
+        try {
+            return sendCommandAsync(cmd).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        }
+    }
+
+    /**
+     * Sends a command to the server without waiting for its response.
+     * Many commands may be in flight at once over the same connection, from
+     * one or more threads; each future completes with the response to its own
+     * command, or exceptionally with an {@link IOException}.
+     *
+     * @param cmd the command string to send
+     * @return future completed with the server response
+     */
+    CompletableFuture<String> sendCommandAsync(String cmd);
 
     /**
      * Checks whether the underlying connection is still open.
@@ -26,6 +53,7 @@ public interface Connection {
 
     /**
      * Closes the connection and releases any associated resources.
+     * Commands still waiting for a response fail with an {@link IOException}.
      */
     void close();
 }
@@ -0,0 +1,301 @@
+package client.src;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * ConnectionPool mantiene aperte fino a un numero massimo di connessioni verso
+ * lo stesso server e le riusa tra un comando e l'altro, evitando ogni volta
+ * connessione, benvenuto e negoziazione. Implementa a sua volta Connection:
+ * ogni comando prende in prestito una connessione e la restituisce appena
+ * arriva la risposta.
+ *
+ * <p>Il limite è un semaforo e le connessioni inattive stanno in una deque
+ * concorrente (l'ultima restituita è la prima riusata), quindi più thread
+ * possono condividere il pool senza un lock comune. Prima del riuso una
+ * connessione deve risultare aperta e, se inattiva da qualche secondo,
+ * rispondere a un comando di ping; quelle inattive oltre il timeout vengono
+ * chiuse da un thread di pulizia. Una connessione che fallisce durante un
+ * comando viene scartata e il comando ripetuto una volta su una nuova
+ * connessione: i comandi del protocollo sono tutti in sola lettura.
+ */
+public class ConnectionPool implements Connection {
+    // Dimensione massima di default del pool
+    private static final int DEFAULT_MAX_SIZE = 8;
+    // Timeout di default oltre il quale una connessione inattiva viene chiusa
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 60_000;
+    // Comando economico usato per verificare una connessione prima del riuso
+    private static final String PING_COMMAND = "num_strutture";
+    // Le connessioni inattive da meno di così vengono riusate senza ping
+    private static final long VERIFICA_DOPO_MS = 5_000;
+    // Attesa massima di una connessione libera e della risposta al ping
+    private static final long ATTESA_MS = 2_000;
+    // Esegue restituzioni e ripetizioni fuori dai thread di I/O delle connessioni;
+    // i thread inattivi terminano da soli, quindi non va mai chiuso
+    private static final ExecutorService ESITI = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "pool-esiti");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Apre una nuova connessione verso il server del pool.
+     */
+    @FunctionalInterface
+    public interface Factory {
+        /**
+         * @return nuova connessione già aperta
+         * @throws IOException se la connessione non può essere aperta
+         */
+        Connection open() throws IOException;
+    }
+
+    /**
+     * Connessione restituita al pool, con l'istante (nanoTime) della restituzione.
+     */
+    private static final class Inattiva {
+        final Connection connessione;
+        final long dal;
+
+        Inattiva(Connection connessione, long dal) {
+            this.connessione = connessione;
+            this.dal = dal;
+        }
+    }
+
+    private final Factory factory;                // Crea le connessioni quando servono
+    private final long idleTimeoutNanos;          // Inattività massima di una connessione nel pool
+    private final Semaphore permessi;             // Un permesso per ogni connessione prestata o da aprire
+    private final Deque<Inattiva> inattive = new ConcurrentLinkedDeque<>(); // In testa le più recenti
+    private final ScheduledExecutorService pulizia; // Chiude le connessioni inattive scadute
+    private volatile boolean chiuso;              // True dopo close()
+
+    /**
+     * Costruisce un pool con dimensione e timeout di inattività di default.
+     *
+     * @param factory crea le connessioni del pool
+     */
+    public ConnectionPool(Factory factory) {
+        this(factory, DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * Costruisce un pool.
+     *
+     * @param factory crea le connessioni del pool
+     * @param maxSize numero massimo di connessioni aperte contemporaneamente
+     * @param idleTimeoutMillis dopo quanto una connessione inattiva viene chiusa
+     */
+    public ConnectionPool(Factory factory, int maxSize, long idleTimeoutMillis) {
+        if (maxSize <= 0 || idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Pool size and idle timeout must be positive");
+        }
+        this.factory = factory;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.permessi = new Semaphore(maxSize);
+        this.pulizia = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pool-pulizia");
+            t.setDaemon(true);
+            return t;
+        });
+        long periodo = Math.max(1, idleTimeoutMillis / 2);
+        pulizia.scheduleWithFixedDelay(this::rimuoviScadute, periodo, periodo, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Prende in prestito una connessione sana, aprendone una nuova se nessuna è
+     * inattiva; se sono tutte in uso attende al massimo ATTESA_MS. La connessione
+     * va restituita con {@link #release(Connection)} o {@link #invalidate(Connection)}.
+     *
+     * @return connessione riservata al chiamante
+     * @throws IOException se il pool è chiuso o esaurito, o la nuova connessione fallisce
+     */
+    public Connection acquire() throws IOException {
+        if (chiuso) {
+            throw new IOException("Connection pool closed");
+        }
+        try {
+            if (!permessi.tryAcquire(ATTESA_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Connection pool exhausted");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a pooled connection");
+        }
+        try {
+            Inattiva i;
+            while ((i = inattive.pollFirst()) != null) {
+                if (sana(i)) {
+                    return i.connessione;
+                }
+                // Connessione scaduta o rotta: si sostituisce
+                i.connessione.close();
+            }
+            return factory.open();
+        } catch (IOException | RuntimeException e) {
+            permessi.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Restituisce al pool una connessione ottenuta con {@link #acquire()}.
+     * Le connessioni chiuse vengono scartate.
+     *
+     * @param connection connessione da restituire
+     */
+    public void release(Connection connection) {
+        if (chiuso || !connection.isConnected()) {
+            connection.close();
+        } else {
+            inattive.offerFirst(new Inattiva(connection, System.nanoTime()));
+            if (chiuso) {
+                // close() può aver già svuotato la deque
+                svuota();
+            }
+        }
+        permessi.release();
+    }
+
+    /**
+     * Chiude una connessione ottenuta con {@link #acquire()} invece di restituirla,
+     * liberando il posto per una nuova.
+     *
+     * @param connection connessione non più utilizzabile
+     */
+    public void invalidate(Connection connection) {
+        connection.close();
+        permessi.release();
+    }
+
+    /**
+     * Invia il comando su una connessione del pool. Il comando 'exit' chiude il pool.
+     *
+     * @param cmd comando da inviare
+     * @return risposta del server; fallisce con IOException se nemmeno una
+     *         nuova connessione riesce a rispondere
+     */
+    @Override
+    public CompletableFuture<String> sendCommandAsync(String cmd) {
+        if ("exit".equalsIgnoreCase(cmd.trim())) {
+            close();
+            return CompletableFuture.completedFuture("[Disconnected]");
+        }
+        return invia(cmd, true);
+    }
+
+    /**
+     * Invia il comando su una connessione presa in prestito e la restituisce
+     * alla risposta; in caso di errore la scarta e, se richiesto, riprova una volta.
+     * L'esito è gestito su ESITI: la ripetizione può bloccare in acquire(),
+     * nel ping e nell'apertura di una connessione, e non deve farlo sul thread
+     * che ha completato la risposta.
+     */
+    private CompletableFuture<String> invia(String cmd, boolean riprova) {
+        Connection c;
+        try {
+            c = acquire();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return c.sendCommandAsync(cmd).handleAsync((risposta, errore) -> {
+            if (errore == null) {
+                release(c);
+                return CompletableFuture.completedFuture(risposta);
+            }
+            invalidate(c);
+            if (riprova && !chiuso) {
+                return invia(cmd, false);
+            }
+            return CompletableFuture.<String>failedFuture(errore);
+        }, ESITI).thenCompose(f -> f);
+    }
+
+    /**
+     * Verifica una connessione inattiva prima di riusarla.
+     */
+    private boolean sana(Inattiva i) {
+        long inattiva = System.nanoTime() - i.dal;
+        if (inattiva >= idleTimeoutNanos || !i.connessione.isConnected()) {
+            return false;
+        }
+        if (inattiva < TimeUnit.MILLISECONDS.toNanos(VERIFICA_DOPO_MS)) {
+            return true;
+        }
+        try {
+            i.connessione.sendCommandAsync(PING_COMMAND).get(ATTESA_MS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Chiude le connessioni inattive oltre il timeout, partendo dalle più vecchie.
+     */
+    private void rimuoviScadute() {
+        long ora = System.nanoTime();
+        for (Iterator<Inattiva> it = inattive.descendingIterator(); it.hasNext(); ) {
+            Inattiva i = it.next();
+            if (ora - i.dal < idleTimeoutNanos) {
+                break;
+            }
+            // Solo chi la rimuove la chiude: un acquire concorrente può averla già presa
+            if (inattive.removeLastOccurrence(i)) {
+                i.connessione.close();
+            }
+        }
+    }
+
+    /**
+     * Chiude tutte le connessioni inattive.
+     */
+    private void svuota() {
+        Inattiva i;
+        while ((i = inattive.pollFirst()) != null) {
+            i.connessione.close();
+        }
+    }
+
+    /**
+     * @return numero di connessioni inattive tenute aperte dal pool
+     */
+    public int getIdleCount() {
+        return inattive.size();
+    }
+
+    /**
+     * Il pool è utilizzabile finché non viene chiuso.
+     *
+     * @return true se il pool non è stato chiuso
+     */
+    @Override
+    public boolean isConnected() {
+        return !chiuso;
+    }
+
+    /**
+     * Chiude il pool e le connessioni inattive; quelle in prestito vengono
+     * chiuse alla restituzione.
+     */
+    @Override
+    public void close() {
+        chiuso = true;
+        pulizia.shutdownNow();
+        svuota();
+    }
+}
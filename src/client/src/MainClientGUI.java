@@ -9,14 +9,14 @@ import java.util.logging.Logger;
 /**
  * MainClientGUI è l'interfaccia grafica Swing per il client delle strutture ricettive.
  * Permette di selezionare protocollo, IP, porta, inviare comandi e visualizzare risposte.
- * Supporta sia TCP che UDP con I/O asincrono e storico dei comandi.
+ * Supporta TCP, UDP e il protocollo binario a frame, con I/O asincrono e storico dei comandi.
  */
 public class MainClientGUI extends JFrame {
     private static final Logger LOGGER = Logger.getLogger(MainClientGUI.class.getName());
 
-    private Connection connection;                // Connessione attiva (TCP o UDP)
+    private Connection connection;                // Connessione attiva (pool TCP, UDP o BIN)
 
-    private JComboBox<String> protocolBox;        // Selettore del protocollo (TCP/UDP)
+    private JComboBox<String> protocolBox;        // Selettore del protocollo (TCP/UDP/BIN)
     private JTextField ipField;                   // Campo per inserire l'IP del server
     private JTextField portField;                 // Campo per inserire la porta del server
     private JButton connectButton;                // Pulsante per avviare la connessione
@@ -64,7 +64,7 @@ public class MainClientGUI extends JFrame {
         // -- Pannello superiore: impostazioni di connessione --
         JPanel topPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 0));
         topPanel.add(new JLabel("Protocollo:"));
-        protocolBox = new JComboBox<>(new String[]{"TCP", "UDP"});
+        protocolBox = new JComboBox<>(new String[]{"TCP", "UDP", "BIN"});
         topPanel.add(protocolBox);
         topPanel.add(new JLabel("Server IP:"));
         ipField = new JTextField("127.0.0.1", 12);
@@ -142,11 +142,14 @@ public class MainClientGUI extends JFrame {
             @Override
             protected String doInBackground() {
                 try {
-                    // Crea la connessione TCP o UDP
+                    // Crea la connessione TCP, UDP o binaria
                     if ("UDP".equals(protocol)) {
                         connection = new UdpClientConnection(ip, port);
+                    } else if ("BIN".equals(protocol)) {
+                        connection = new BinaryClientConnection(ip, port);
                     } else {
-                        connection = new ClientConnection(ip, port);
+                        // Pool di connessioni TCP: un socket caduto viene sostituito senza riconnettere a mano
+                        connection = new ConnectionPool(() -> new ClientConnection(ip, port));
                     }
                     // Richiede messaggio di help
                     return connection.sendCommand("help");
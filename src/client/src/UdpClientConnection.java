@@ -1,13 +1,28 @@
 package client.src;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
  * UdpClientConnection implementa l'interfaccia Connection per comunicare
- * con il server in modalità UDP. Invia comandi tramite DatagramPacket
- * e riceve la risposta in pacchetti multipli fino al marker di fine.
+ * con il server in modalità UDP. Ogni comando ha un identificativo; la
+ * risposta arriva in frammenti numerati che vengono riordinati, confermati
+ * al server e, se persi, richiesti di nuovo con un elenco dei mancanti (NACK).
+ * La dimensione dei frammenti è proposta dal client in base alla MTU
+ * dell'interfaccia verso il server e limitata dal server.
+ *
+ * <p>Più comandi possono essere in volo contemporaneamente: un unico thread
+ * ricevitore smista i frammenti in arrivo per identificativo di richiesta e
+ * gestisce riscontri e solleciti di tutte le richieste in corso.
  */
 public class UdpClientConnection implements Connection {
     /** Logger per messaggi di diagnostica e warning */
@@ -15,17 +30,41 @@ public class UdpClientConnection implements Connection {
     /** Timeout di default in millisecondi per operazioni di receive */
     private static final int DEFAULT_TIMEOUT_MS = 2000;
     /** Dimensione massima del buffer UDP per pacchetto */
-    private static final int MAX_PACKET_SIZE = 8192;
-    /** Marker che indica la fine della trasmissione UDP */
-    private static final String UDP_END_MARKER = "__END__";
+    private static final int MAX_PACKET_SIZE = 65536;
+    /** Buffer di ricezione richiesto al sistema operativo */
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+    /** MTU ipotizzata se quella dell'interfaccia non è disponibile */
+    private static final int DEFAULT_MTU = 1500;
+    /** Attesa di un frammento prima di sollecitare il server */
+    private static final int ATTESA_FRAMMENTO_MS = 50;
+    /** Numero di frammenti nuovi dopo i quali si invia comunque un riscontro */
+    private static final int RISCONTRO_OGNI = 16;
+    /** Numero massimo di frammenti mancanti elencati in un riscontro */
+    private static final int MAX_MANCANTI = 200;
+    /** Numero massimo di frammenti accettato per una risposta */
+    private static final int MAX_FRAMMENTI = 1 << 18;
+
+    // Formato dei datagrammi, condiviso con server.src.TrasmissioneUdp
+    private static final byte MAGIA = 0x00;
+    private static final byte TIPO_RICHIESTA = 1;
+    private static final byte TIPO_DATI = 2;
+    private static final byte TIPO_RISCONTRO = 3;
+    private static final int INTESTAZIONE = 6;
+    private static final int INTESTAZIONE_RICHIESTA = 14;
+    private static final int INTESTAZIONE_DATI = 14;
 
     private final InetAddress address;   // Indirizzo IP del server
     private final int port;              // Porta UDP del server
     private final DatagramSocket socket; // Socket UDP utilizzato per invio e ricezione
+    private final AtomicInteger ultimoId = new AtomicInteger(); // Identificativo dell'ultima richiesta inviata
+    // Richieste in attesa di risposta, per identificativo
+    private final ConcurrentMap<Integer, Ricezione> inCorso = new ConcurrentHashMap<>();
+    private final int frammento;         // Dimensione di frammento proposta al server
+    private final int finestra;          // Byte ricevibili senza riscontri, proposti al server
 
     /**
-     * Costruisce una nuova connessione UDP verso il server specificato.
-     * Imposta il timeout di ricezione su DEFAULT_TIMEOUT_MS.
+     * Costruisce una nuova connessione UDP verso il server specificato,
+     * proponendo frammenti grandi quanto consente la MTU del percorso.
      *
      * @param serverIP indirizzo IP o hostname del server
      * @param port porta UDP del server
@@ -33,57 +72,275 @@ public class UdpClientConnection implements Connection {
      * @throws UnknownHostException se l'indirizzo serverIP non è risolvibile
      */
     public UdpClientConnection(String serverIP, int port) throws SocketException, UnknownHostException {
+        this(serverIP, port, 0);
+    }
+
+    /**
+     * Costruisce una nuova connessione UDP proponendo al server la dimensione
+     * di frammento indicata (il server la riporta comunque nei propri limiti).
+     *
+     * @param serverIP indirizzo IP o hostname del server
+     * @param port porta UDP del server
+     * @param frammento byte di risposta per datagramma; 0 per ricavarli dalla MTU
+     * @throws SocketException se il socket non può essere creato
+     * @throws UnknownHostException se l'indirizzo serverIP non è risolvibile
+     */
+    public UdpClientConnection(String serverIP, int port, int frammento)
+            throws SocketException, UnknownHostException {
         this.address = InetAddress.getByName(serverIP);
         this.port    = port;
         this.socket  = new DatagramSocket();
-        this.socket.setSoTimeout(DEFAULT_TIMEOUT_MS);
+        this.socket.setSoTimeout(ATTESA_FRAMMENTO_MS);
+        this.socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+        this.frammento = Math.min(MAX_PACKET_SIZE - INTESTAZIONE_DATI,
+                frammento > 0 ? frammento : frammentoPerPercorso(address, port));
+        // Il sistema conta anche il costo di gestione dei pacchetti: se ne usa un quarto
+        this.finestra = socket.getReceiveBufferSize() / 4;
+        Thread ricevitore = new Thread(this::ricevi, "udp-ricevitore-" + serverIP + ":" + port);
+        ricevitore.setDaemon(true);
+        ricevitore.start();
     }
 
     /**
-     * Invia un comando al server e riceve la risposta completa.
-     * Il comando viene inviato in un pacchetto UDP. Riceve pacchetti
-     * in loop fino a quando non incontra il marker __END__.
-     * Il comando 'exit' chiude immediatamente il socket.
+     * Ricava il payload massimo di un frammento che attraversa l'interfaccia
+     * usata per raggiungere il server senza frammentazione IP: MTU meno le
+     * intestazioni IP e UDP e quella del protocollo.
+     */
+    private static int frammentoPerPercorso(InetAddress address, int port) {
+        int mtu = DEFAULT_MTU;
+        try (DatagramSocket sonda = new DatagramSocket()) {
+            // connect() su UDP non invia nulla: sceglie solo l'interfaccia di uscita
+            sonda.connect(address, port);
+            NetworkInterface nic = NetworkInterface.getByInetAddress(sonda.getLocalAddress());
+            if (nic != null && nic.getMTU() > 0) {
+                mtu = nic.getMTU();
+            }
+        } catch (IOException e) {
+            LOGGER.fine("MTU not available, using " + DEFAULT_MTU + ": " + e.getMessage());
+        }
+        int intestazioniIpUdp = address instanceof Inet6Address ? 48 : 28;
+        return Math.min(mtu, 65535) - intestazioniIpUdp - INTESTAZIONE_DATI;
+    }
+
+    /**
+     * Invia un comando al server senza attendere la risposta.
+     * I frammenti vengono raccolti per numero di sequenza, quindi l'ordine di
+     * arrivo non conta; ogni RISCONTRO_OGNI frammenti nuovi o un quarto della
+     * finestra in byte, all'arrivo dell'ultimo e a ogni attesa scaduta il client
+     * invia un riscontro con i frammenti mancanti. Se per DEFAULT_TIMEOUT_MS non arriva nulla di nuovo
+     * la richiesta fallisce, invece di restituire una risposta incompleta.
+     * Il comando 'exit' chiude immediatamente il socket: il server non gli risponde.
      *
      * @param cmd comando da inviare al server
-     * @return risposta ricevuta dal server come stringa concatenata
-     * @throws IOException se il socket è chiuso o si verifica errore di I/O
+     * @return risposta ricevuta dal server; fallisce con IOException se il socket
+     *         è chiuso, la risposta non arriva completa o si verifica un errore di I/O
      */
     @Override
-    public synchronized String sendCommand(String cmd) throws IOException {
+    public CompletableFuture<String> sendCommandAsync(String cmd) {
         if (socket.isClosed()) {
-            throw new IOException("UDP socket is closed");
+            return CompletableFuture.failedFuture(new IOException("UDP socket is closed"));
         }
 
-        // 1) Invio del comando in UTF-8
-        byte[] outBuf = cmd.getBytes("UTF-8");
-        socket.send(new DatagramPacket(outBuf, outBuf.length, address, port));
+        // 1) Invio del comando in UTF-8, preceduto dall'intestazione con id,
+        //    dimensione di frammento e finestra proposte
+        int id = ultimoId.incrementAndGet();
+        byte[] comando = cmd.getBytes(StandardCharsets.UTF_8);
+        byte[] richiesta = ByteBuffer.allocate(INTESTAZIONE_RICHIESTA + comando.length)
+                .put(MAGIA).put(TIPO_RICHIESTA).putInt(id).putInt(frammento).putInt(finestra)
+                .put(comando).array();
+        boolean exit = "exit".equalsIgnoreCase(cmd.trim());
+        Ricezione ricezione = new Ricezione(id, richiesta);
+        if (!exit) {
+            inCorso.put(id, ricezione);
+        }
+        try {
+            socket.send(new DatagramPacket(richiesta, richiesta.length, address, port));
+        } catch (IOException e) {
+            inCorso.remove(id);
+            ricezione.risposta.completeExceptionally(e);
+            return ricezione.risposta;
+        }
 
         // 2) Se il comando è 'exit', chiude la connessione
-        if ("exit".equalsIgnoreCase(cmd.trim())) {
+        if (exit) {
             close();
-            return "[Disconnected]";
+            ricezione.risposta.complete("[Disconnected]");
         }
+        // 3) I frammenti sono raccolti dal thread ricevitore
+        return ricezione.risposta;
+    }
 
-        // 3) Riceve i pacchetti finché non trova UDP_END_MARKER
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Ciclo del thread ricevitore: consegna ogni frammento alla richiesta con
+     * il suo identificativo e, almeno ogni ATTESA_FRAMMENTO_MS, sollecita le
+     * richieste che non hanno ricevuto nulla di recente.
+     */
+    private void ricevi() {
         byte[] inBuf = new byte[MAX_PACKET_SIZE];
-        while (true) {
-            DatagramPacket packet = new DatagramPacket(inBuf, inBuf.length);
+        DatagramPacket packet = new DatagramPacket(inBuf, inBuf.length);
+        long ultimoControllo = System.currentTimeMillis();
+        while (!socket.isClosed()) {
             try {
-                socket.receive(packet);
-            } catch (SocketTimeoutException e) {
+                packet.setLength(inBuf.length);
+                try {
+                    socket.receive(packet);
+                    // Solo i datagrammi del server, e uno malformato non ferma il ricevitore
+                    if (address.equals(packet.getAddress()) && packet.getPort() == port) {
+                        frammento(packet);
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.warning("Malformed UDP datagram dropped: " + e);
+                } catch (SocketTimeoutException e) {
+                    // Nessun datagramma: si passa ai solleciti
+                }
+                long ora = System.currentTimeMillis();
+                if (ora - ultimoControllo >= ATTESA_FRAMMENTO_MS) {
+                    ultimoControllo = ora;
+                    for (Ricezione r : inCorso.values()) {
+                        r.sollecita(ora);
+                    }
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    LOGGER.warning("UDP receive failed: " + e.getMessage());
+                }
+            }
+        }
+        for (Ricezione r : inCorso.values()) {
+            r.risposta.completeExceptionally(new IOException("UDP socket is closed"));
+        }
+        inCorso.clear();
+    }
+
+    /**
+     * Consegna un datagramma di dati alla richiesta a cui appartiene.
+     */
+    private void frammento(DatagramPacket packet) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+        if (b.remaining() < INTESTAZIONE_DATI || b.get() != MAGIA || b.get() != TIPO_DATI) {
+            return;
+        }
+        int id = b.getInt();
+        int seq = b.getInt();
+        int totale = b.getInt();
+        if (totale <= 0 || totale > MAX_FRAMMENTI) {
+            return;
+        }
+        Ricezione r = inCorso.get(id);
+        if (r == null) {
+            if (id <= ultimoId.get()) {
+                // Il server ritrasmette una risposta già completata: la conferma
+                inviaRiscontro(id, totale, null, 0);
+            }
+            return;
+        }
+        r.frammento(seq, totale, Arrays.copyOfRange(packet.getData(), b.position(), packet.getLength()));
+    }
+
+    /**
+     * Stato di ricezione della risposta a una richiesta. È modificato solo
+     * dal thread ricevitore.
+     */
+    private final class Ricezione {
+        private final int id;
+        /** Datagramma della richiesta, reinviato se non arriva alcun frammento. */
+        private final byte[] richiesta;
+        private final CompletableFuture<String> risposta = new CompletableFuture<>();
+        private byte[][] frammenti;
+        private int ricevuti;
+        private int contigui;
+        private int massimoVisto;
+        private int nuovi;
+        private int byteNuovi;
+        private long ultimoProgresso = System.currentTimeMillis();
+        private long ultimoSollecito = ultimoProgresso;
+
+        Ricezione(int id, byte[] richiesta) {
+            this.id = id;
+            this.richiesta = richiesta;
+        }
+
+        /**
+         * Registra un frammento e invia i riscontri dovuti; all'arrivo
+         * dell'ultimo completa la richiesta. I frammenti con un totale
+         * diverso dal primo vengono scartati.
+         */
+        void frammento(int seq, int totale, byte[] dati) throws IOException {
+            if (frammenti == null) {
+                frammenti = new byte[totale][];
+            }
+            if (totale != frammenti.length || seq < 0 || seq >= frammenti.length) {
+                return;
+            }
+            if (frammenti[seq] != null) {
+                // Duplicato: il server sta sondando, gli si risponde subito
+                inviaRiscontro(id, contigui, frammenti, massimoVisto + 1);
+                return;
+            }
+            frammenti[seq] = dati;
+            ricevuti++;
+            ultimoProgresso = System.currentTimeMillis();
+            massimoVisto = Math.max(massimoVisto, seq);
+            while (contigui < frammenti.length && frammenti[contigui] != null) {
+                contigui++;
+            }
+            byteNuovi += dati.length;
+            if (++nuovi >= RISCONTRO_OGNI || byteNuovi >= finestra / 4 || seq == frammenti.length - 1) {
+                inviaRiscontro(id, contigui, frammenti, massimoVisto + 1);
+                nuovi = 0;
+                byteNuovi = 0;
+            }
+            if (ricevuti == frammenti.length) {
+                // Conferma finale: il server può liberare il buffer di ritrasmissione
+                inviaRiscontro(id, frammenti.length, null, 0);
+                inCorso.remove(id);
+                // Ricompone e decodifica la risposta una sola volta
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                for (byte[] f : frammenti) {
+                    out.write(f, 0, f.length);
+                }
+                risposta.complete(out.toString(StandardCharsets.UTF_8));
+            }
+        }
+
+        /**
+         * Se da ATTESA_FRAMMENTO_MS non arriva nulla reinvia la richiesta o un
+         * riscontro con i mancanti; dopo DEFAULT_TIMEOUT_MS senza progressi fallisce.
+         */
+        void sollecita(long ora) throws IOException {
+            if (ora - Math.max(ultimoProgresso, ultimoSollecito) < ATTESA_FRAMMENTO_MS) {
+                return;
+            }
+            if (ora - ultimoProgresso > DEFAULT_TIMEOUT_MS) {
                 LOGGER.warning("UDP receive timed out");
-                break; // Termina se scade il timeout di ricezione
+                inCorso.remove(id);
+                risposta.completeExceptionally(new IOException("UDP response incomplete: "
+                        + ricevuti + "/" + (frammenti == null ? "?" : frammenti.length) + " packets"));
+                return;
             }
-            String chunk = new String(packet.getData(), 0, packet.getLength(), "UTF-8");
-            if (UDP_END_MARKER.equals(chunk)) {
-                break; // Marker di fine raggiunto
+            ultimoSollecito = ora;
+            if (frammenti == null) {
+                // Nessun frammento: la richiesta potrebbe essere andata persa
+                socket.send(new DatagramPacket(richiesta, richiesta.length, address, port));
+            } else {
+                inviaRiscontro(id, contigui, frammenti, frammenti.length);
             }
-            sb.append(chunk);
         }
+    }
 
-        return sb.toString();
+    /**
+     * Invia un riscontro: il numero di frammenti ricevuti senza buchi seguito
+     * dai numeri di sequenza mancanti prima di fino (esclusa).
+     */
+    private void inviaRiscontro(int id, int contigui, byte[][] frammenti, int fino) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(INTESTAZIONE + Integer.BYTES * (1 + MAX_MANCANTI));
+        b.put(MAGIA).put(TIPO_RISCONTRO).putInt(id).putInt(contigui);
+        for (int i = contigui; i < fino && b.hasRemaining(); i++) {
+            if (frammenti[i] == null) {
+                b.putInt(i);
+            }
+        }
+        socket.send(new DatagramPacket(b.array(), b.position(), address, port));
     }
 
     /**
@@ -0,0 +1,161 @@
+package server.src;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ArchivioStrutture pubblica il dataset corrente e lo ricarica quando il file
+ * CSV cambia, senza riavviare il server né chiudere le sessioni.
+ *
+ * <p>Ogni GestoreCSV è uno snapshot immutabile: dati e indici sono costruiti
+ * nel costruttore e non cambiano più. Una richiesta legge lo snapshot con
+ * {@link #corrente()} una sola volta e lo usa fino alla fine, anche per le
+ * righe di una risposta ancora in scrittura; la ricarica costruisce il nuovo
+ * snapshot su un thread a parte e lo pubblica con un solo scambio di
+ * riferimento, quindi i lettori non attendono mai. Le ricariche avvengono una
+ * alla volta: in memoria convivono al più il vecchio e il nuovo snapshot.
+ */
+public class ArchivioStrutture {
+    /** Quiete richiesta dopo l'ultimo evento sul file prima di ricaricarlo, in ms. */
+    private static final long PAUSA_MS = 1000;
+
+    /** Percorso del file CSV. */
+    private final Path percorso;
+    /** Cache delle risposte, svuotata a ogni nuovo snapshot. */
+    private final CacheRisposte cache;
+    /** true se le colonne del dataset stanno fuori dall'heap. */
+    private final boolean fuoriHeap;
+    /** Snapshot corrente del dataset. */
+    private final AtomicReference<GestoreCSV> corrente;
+
+    /**
+     * Carica il dataset iniziale dallo snapshot binario del CSV, se aggiornato,
+     * altrimenti dal file CSV (vedi {@link SnapshotBinario}).
+     *
+     * @param csvPath percorso del file CSV delle strutture
+     * @param cache   cache delle risposte calcolate sul dataset
+     */
+    public ArchivioStrutture(String csvPath, CacheRisposte cache) {
+        this(csvPath, cache, false);
+    }
+
+    /**
+     * Come {@link #ArchivioStrutture(String, CacheRisposte)}, scegliendo dove
+     * tenere le colonne di ogni snapshot.
+     *
+     * @param csvPath   percorso del file CSV delle strutture
+     * @param cache     cache delle risposte calcolate sul dataset
+     * @param fuoriHeap true per tenere codici e dizionari fuori dall'heap
+     */
+    public ArchivioStrutture(String csvPath, CacheRisposte cache, boolean fuoriHeap) {
+        this.percorso = Paths.get(csvPath).toAbsolutePath();
+        this.cache = cache;
+        this.fuoriHeap = fuoriHeap;
+        long inizio = System.nanoTime();
+        GestoreCSV iniziale = SnapshotBinario.apri(csvPath, fuoriHeap);
+        System.out.println("[CSV] Caricate " + iniziale.getNumeroStrutture() + " strutture in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inizio) + " ms");
+        this.corrente = new AtomicReference<>(iniziale);
+    }
+
+    /**
+     * Restituisce lo snapshot corrente. Una richiesta deve leggerlo una volta
+     * sola e usare sempre la stessa istanza.
+     *
+     * @return dataset corrente
+     */
+    public GestoreCSV corrente() {
+        return corrente.get();
+    }
+
+    /**
+     * Avvia il thread che osserva la cartella del CSV e ricarica il file
+     * quando viene modificato o sostituito.
+     *
+     * @throws IOException se la cartella non può essere osservata
+     */
+    public void osserva() throws IOException {
+        WatchService osservatore = FileSystems.getDefault().newWatchService();
+        percorso.getParent().register(osservatore,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread t = new Thread(() -> osserva(osservatore), "csv-osservatore");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Ciclo del thread osservatore: a ogni modifica del CSV attende che la
+     * scrittura si assesti, poi ricarica. Gli eventi arrivati durante una
+     * ricarica producono al più un'altra ricarica. Una ricarica fallita
+     * lascia in uso lo snapshot corrente e l'osservazione continua.
+     */
+    private void osserva(WatchService osservatore) {
+        try (osservatore) {
+            while (true) {
+                if (!riguardaIlFile(osservatore.take())) {
+                    continue;
+                }
+                // Un file copiato o scritto a blocchi genera più eventi: si attende la quiete
+                WatchKey altro;
+                while ((altro = osservatore.poll(PAUSA_MS, TimeUnit.MILLISECONDS)) != null) {
+                    altro.pollEvents();
+                    altro.reset();
+                }
+                try {
+                    ricarica();
+                } catch (RuntimeException | Error e) {
+                    System.err.println("[CSV] Ricarica fallita, resta in uso lo snapshot corrente: " + e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("[CSV] Errore dell'osservatore: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Consuma gli eventi della chiave e indica se uno di essi riguarda il CSV.
+     */
+    private boolean riguardaIlFile(WatchKey key) {
+        boolean riguarda = false;
+        for (WatchEvent<?> evento : key.pollEvents()) {
+            // In caso di eventi persi (OVERFLOW) il file potrebbe essere cambiato
+            riguarda |= evento.kind() == StandardWatchEventKinds.OVERFLOW
+                    || percorso.getFileName().equals(evento.context());
+        }
+        key.reset();
+        return riguarda;
+    }
+
+    /**
+     * Ricostruisce lo snapshot dal file e lo pubblica; lo snapshot binario
+     * viene riscritto per il nuovo contenuto. Un file senza strutture
+     * leggibili (assente, vuoto o illeggibile) lascia in uso lo snapshot corrente.
+     *
+     * @return true se il nuovo snapshot è stato pubblicato
+     */
+    synchronized boolean ricarica() {
+        long inizio = System.nanoTime();
+        GestoreCSV nuovo = SnapshotBinario.apri(percorso.toString(), fuoriHeap);
+        if (nuovo.getNumeroStrutture() == 0) {
+            System.err.println("[CSV] Ricarica ignorata: nessuna struttura letta da " + percorso);
+            return false;
+        }
+        GestoreCSV vecchio = corrente.getAndSet(nuovo);
+        // Le risposte in cache appartengono al vecchio snapshot: rilasciarle subito
+        cache.svuota();
+        System.out.println("[CSV] Ricaricate " + nuovo.getNumeroStrutture() + " strutture (erano "
+                + vecchio.getNumeroStrutture() + ") in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inizio) + " ms");
+        return true;
+    }
+}
@@ -0,0 +1,116 @@
+package server.src;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Confronta il filtro per comune servito dall'indice invertito con la
+ * scansione lineare di tutte le strutture, come avveniva prima degli indici,
+ * su dataset sintetici ottenuti ripetendo le righe del CSV del Piemonte.
+ *
+ * <p>Uso: {@code java server.src.BenchmarkIndici [csv] [moltiplicatori]},
+ * ad esempio {@code ... BenchmarkIndici dati.csv 1,10,100}. Per ogni
+ * moltiplicatore stampa il tempo medio di una ricerca con i due metodi.
+ */
+final class BenchmarkIndici {
+    /** Moltiplicatori di default del numero di righe del CSV. */
+    private static final String MOLTIPLICATORI = "1,10,100";
+    /** Durata minima di ogni misura, e del riscaldamento che la precede. */
+    private static final long DURATA_NS = TimeUnit.SECONDS.toNanos(2);
+    /** Comuni cercati, presi a intervalli regolari nel dataset. */
+    private static final int COMUNI = 5;
+
+    /** Righe trovate, sommate perché il JIT non elimini le ricerche. */
+    private static long trovate;
+
+    private BenchmarkIndici() {
+    }
+
+    /**
+     * Esegue il confronto.
+     *
+     * @param args [0]=percorso del CSV, [1]=moltiplicatori separati da virgola
+     * @throws IOException se il CSV non può essere letto o il dataset sintetico scritto
+     */
+    public static void main(String[] args) throws IOException {
+        Path csv = Paths.get(args.length >= 1 ? args[0]
+                : "src/server/Regione-Piemonte---Elenco-delle-strutture-ricettive.csv");
+        String moltiplicatori = args.length >= 2 ? args[1] : MOLTIPLICATORI;
+
+        System.out.printf("%10s %14s %14s %10s%n", "righe", "scansione", "indice", "rapporto");
+        for (String m : moltiplicatori.split(",")) {
+            GestoreCSV g = carica(csv, Integer.parseInt(m.trim()));
+            int n = g.getNumeroStrutture();
+            // Scansione lineare: la lista delle strutture filtrata per comune
+            List<StrutturaRicettiva> tutte = g.getTutteLeStrutture();
+            Function<String, List<StrutturaRicettiva>> scansione = comune -> tutte.stream()
+                    .filter(s -> s.getChiaveComune().equalsIgnoreCase(comune))
+                    .collect(Collectors.toList());
+
+            String[] comuni = new String[COMUNI];
+            for (int i = 0; i < COMUNI; i++) {
+                comuni[i] = tutte.get((int) ((long) i * (n - 1) / (COMUNI - 1))).getChiaveComune();
+                if (scansione.apply(comuni[i]).size() != g.filtraPerComune(comuni[i]).size()) {
+                    throw new IllegalStateException("Risultati diversi per il comune " + comuni[i]);
+                }
+            }
+            double us = misura(scansione, comuni);
+            double ui = misura(g::filtraPerComune, comuni);
+            System.out.printf("%10d %11.1f us %11.1f us %9.0fx%n", n, us, ui, us / ui);
+        }
+    }
+
+    /**
+     * Scrive un CSV con l'intestazione e le righe del file ripetute, e lo carica.
+     */
+    private static GestoreCSV carica(Path csv, int volte) throws IOException {
+        byte[] dati = Files.readAllBytes(csv);
+        // Le righe dei dati iniziano dopo l'intestazione
+        int corpo = 0;
+        while (corpo < dati.length && dati[corpo] != '\n') {
+            corpo++;
+        }
+        corpo = Math.min(corpo + 1, dati.length);
+        Path sintetico = Files.createTempFile("strutture-x" + volte + "-", ".csv");
+        try {
+            try (OutputStream out = Files.newOutputStream(sintetico)) {
+                out.write(dati, 0, corpo);
+                for (int i = 0; i < volte; i++) {
+                    out.write(dati, corpo, dati.length - corpo);
+                    if (dati[dati.length - 1] != '\n') {
+                        out.write('\n');
+                    }
+                }
+            }
+            return new GestoreCSV(sintetico.toString());
+        } finally {
+            Files.delete(sintetico);
+        }
+    }
+
+    /**
+     * Restituisce il tempo medio di una ricerca in microsecondi, dopo un
+     * riscaldamento della stessa durata, alternando i comuni.
+     */
+    private static double misura(Function<String, List<StrutturaRicettiva>> filtro, String[] comuni) {
+        double media = 0;
+        for (int giro = 0; giro < 2; giro++) {
+            int ricerche = 0;
+            long inizio = System.nanoTime();
+            long ora;
+            do {
+                trovate += filtro.apply(comuni[ricerche % comuni.length]).size();
+                ricerche++;
+            } while ((ora = System.nanoTime()) - inizio < DURATA_NS || ricerche < comuni.length);
+            media = (ora - inizio) / 1e3 / ricerche;
+        }
+        return media;
+    }
+}
@@ -0,0 +1,138 @@
+package server.src;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * CacheRisposte memorizza le risposte già calcolate, indicizzate per comando
+ * normalizzato, con politica di rimozione LRU. Il limite è espresso in byte
+ * (peso stimato delle risposte) e non in numero di voci.
+ *
+ * <p>La cache è legata al dataset con cui sono state calcolate le risposte:
+ * quando arriva una richiesta su un GestoreCSV diverso viene svuotata.
+ */
+public class CacheRisposte {
+    /** Voci in ordine di accesso: la prima è la meno usata di recente. */
+    private final LinkedHashMap<String, Risposta> voci = new LinkedHashMap<>(64, 0.75f, true);
+    /** Peso massimo complessivo delle voci, in byte. */
+    private final long maxByte;
+    /** Peso corrente complessivo delle voci, in byte. */
+    private long byteOccupati;
+    /** Dataset a cui si riferiscono le voci presenti. */
+    private GestoreCSV dataset;
+
+    private long hit;
+    private long miss;
+    private long rimozioni;
+
+    /**
+     * Costruisce una cache con il limite di occupazione indicato.
+     *
+     * @param maxByte peso massimo complessivo delle risposte memorizzate, in byte
+     */
+    public CacheRisposte(long maxByte) {
+        this.maxByte = maxByte;
+    }
+
+    /**
+     * Restituisce la risposta memorizzata per il comando oppure la calcola,
+     * la memorizza e la restituisce. Il calcolo avviene fuori dal lock:
+     * due richieste concorrenti sullo stesso comando possono calcolarlo entrambe.
+     *
+     * @param g       dataset su cui viene elaborato il comando
+     * @param chiave  comando normalizzato
+     * @param calcolo funzione che calcola la risposta in caso di miss
+     * @return risposta al comando
+     */
+    public Risposta ottieni(GestoreCSV g, String chiave, Supplier<Risposta> calcolo) {
+        synchronized (this) {
+            if (g != dataset) {
+                svuota();
+                dataset = g;
+            }
+            Risposta r = voci.get(chiave);
+            if (r != null) {
+                hit++;
+                return r;
+            }
+            miss++;
+        }
+        Risposta r = calcolo.get();
+        inserisci(g, chiave, r);
+        return r;
+    }
+
+    /**
+     * Inserisce una risposta rimuovendo le voci meno usate finché il peso
+     * complessivo non rientra nel limite. Le risposte più grandi del limite
+     * non vengono memorizzate.
+     */
+    private synchronized void inserisci(GestoreCSV g, String chiave, Risposta r) {
+        long peso = r.pesoInByte();
+        if (g != dataset || peso > maxByte) {
+            return;
+        }
+        Risposta precedente = voci.put(chiave, r);
+        if (precedente != null) {
+            byteOccupati -= precedente.pesoInByte();
+        }
+        byteOccupati += peso;
+        Iterator<Map.Entry<String, Risposta>> it = voci.entrySet().iterator();
+        while (byteOccupati > maxByte && it.hasNext()) {
+            Map.Entry<String, Risposta> piuVecchia = it.next();
+            byteOccupati -= piuVecchia.getValue().pesoInByte();
+            it.remove();
+            rimozioni++;
+        }
+    }
+
+    /**
+     * Svuota la cache, ad esempio quando il dataset cambia. Anche il
+     * riferimento al dataset viene rilasciato, così un vecchio snapshot
+     * non resta in memoria per la cache.
+     */
+    public synchronized void svuota() {
+        voci.clear();
+        byteOccupati = 0;
+        dataset = null;
+    }
+
+    /**
+     * Restituisce il numero di richieste servite dalla cache.
+     *
+     * @return contatore degli hit
+     */
+    public synchronized long getHit() {
+        return hit;
+    }
+
+    /**
+     * Restituisce il numero di richieste che hanno richiesto il calcolo della risposta.
+     *
+     * @return contatore dei miss
+     */
+    public synchronized long getMiss() {
+        return miss;
+    }
+
+    /**
+     * Restituisce il numero di voci rimosse per rispettare il limite di occupazione.
+     *
+     * @return contatore delle rimozioni
+     */
+    public synchronized long getRimozioni() {
+        return rimozioni;
+    }
+
+    /**
+     * Restituisce un riepilogo testuale dei contatori della cache.
+     *
+     * @return stato della cache su una riga
+     */
+    public synchronized String getStato() {
+        return "Cache: hit=" + hit + ", miss=" + miss + ", rimozioni=" + rimozioni
+                + ", voci=" + voci.size() + ", byte=" + byteOccupati + "/" + maxByte;
+    }
+}
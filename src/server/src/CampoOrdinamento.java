@@ -0,0 +1,76 @@
+package server.src;
+
+import java.util.Locale;
+
+/**
+ * Campi di una struttura ricettiva per cui GestoreCSV mantiene una
+ * permutazione ordinata delle righe, usata dal modificatore "ordina per".
+ * I campi numerici sono confrontati per valore e non come testo; il nome
+ * nel protocollo coincide con quello del campo in ColonneCodificate.
+ */
+public enum CampoOrdinamento {
+    NOME("nome", false),
+    COMUNE("comune", false),
+    PROVINCIA("provincia", false),
+    TIPOLOGIA("tipologia", false),
+    STELLE("stelle", true),
+    ATL("atl", false),
+    ALTITUDINE_COMUNE("altitudine_comune", true),
+    ALTITUDINE_STRUTTURA("altitudine_struttura", true);
+
+    /** Nome del campo nei comandi del protocollo. */
+    private final String nome;
+    /** Indice del campo nelle righe del CSV. */
+    private final int campo;
+    /** true se i valori sono confrontati come numeri. */
+    private final boolean numerico;
+
+    CampoOrdinamento(String nome, boolean numerico) {
+        this.nome = nome;
+        this.campo = ColonneCodificate.campo(nome);
+        this.numerico = numerico;
+    }
+
+    /**
+     * Restituisce il nome del campo usato nel protocollo.
+     *
+     * @return nome del campo
+     */
+    public String getNome() {
+        return nome;
+    }
+
+    /**
+     * Restituisce l'indice del campo nelle righe del CSV.
+     *
+     * @return indice del campo in ColonneCodificate
+     */
+    int getCampo() {
+        return campo;
+    }
+
+    /**
+     * Indica se i valori del campo sono confrontati come numeri.
+     *
+     * @return true per i campi numerici
+     */
+    boolean isNumerico() {
+        return numerico;
+    }
+
+    /**
+     * Cerca un campo a partire dal nome (case-insensitive).
+     *
+     * @param nome nome del campo
+     * @return il campo corrispondente, o null se sconosciuto
+     */
+    public static CampoOrdinamento daNome(String nome) {
+        String n = nome.trim().toLowerCase(Locale.ROOT);
+        for (CampoOrdinamento c : values()) {
+            if (c.nome.equals(n)) {
+                return c;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,230 @@
+package server.src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * CaricatoreCSV legge il file delle strutture in parallelo. Il file viene
+ * mappato in memoria e diviso in intervalli che terminano a capo riga; ogni
+ * intervallo è analizzato da un compito del ForkJoinPool comune e i risultati
+ * sono riuniti nell'ordine del file, quindi la numerazione delle righe non
+ * dipende da come il file è stato diviso.
+ *
+ * <p>Le righe terminano come per {@code BufferedReader.readLine} ("\n", "\r"
+ * o "\r\n"); i campi sono separati da ';', le virgolette proteggono il
+ * separatore e vengono rimosse, i campi vuoti diventano "NON_PRESENTE".
+ * Il risultato è già in forma colonnare: ogni valore distinto di una colonna
+ * compare una sola volta nel suo dizionario e le righe ne tengono il codice.
+ */
+final class CaricatoreCSV {
+    /** Codifica del file della Regione: Latin-1 (ad esempio "Idoneità"). */
+    static final Charset CODIFICA = StandardCharsets.ISO_8859_1;
+    /** Sotto questa dimensione un intervallo non viene ulteriormente diviso. */
+    private static final long MIN_BYTE_PER_PARTE = 256 * 1024;
+    /** Dimensione indicativa massima di un intervallo, ben sotto il limite di una mappatura. */
+    private static final long MAX_BYTE_PER_PARTE = 256L * 1024 * 1024;
+    /** Intervalli per thread del pool, per bilanciare parti di costo diverso. */
+    private static final int PARTI_PER_THREAD = 4;
+
+    private CaricatoreCSV() {
+    }
+
+    /**
+     * Risultato dell'analisi di un intervallo: le righe valide come codici
+     * della tabella dei valori dell'intervallo.
+     */
+    private static final class Parte {
+        /** Valori distinti letti nell'intervallo. */
+        final TabellaValori valori = new TabellaValori(CODIFICA);
+        /** Codici dei campi delle righe valide, NUMERO_CAMPI per riga. */
+        int[] codici = new int[256 * ColonneCodificate.NUMERO_CAMPI];
+        /** Numero di righe valide. */
+        int numeroValide;
+        /** Righe saltate: numero di riga nell'intervallo (da 1) e campi trovati. */
+        final List<int[]> saltate = new ArrayList<>();
+        /** Righe lette nell'intervallo, valide o no. */
+        int numeroRighe;
+    }
+
+    /**
+     * Legge il file e restituisce le righe valide nell'ordine del file, in
+     * forma colonnare. Le righe con meno di {@link ColonneCodificate#NUMERO_CAMPI}
+     * campi vengono segnalate e saltate.
+     *
+     * @param csvPath   percorso del file CSV
+     * @param fuoriHeap true per tenere le colonne in buffer diretti
+     * @return colonne delle righe valide
+     * @throws IOException se il file non può essere letto
+     */
+    static ColonneCodificate carica(String csvPath, boolean fuoriHeap) throws IOException {
+        List<ForkJoinTask<Parte>> compiti = new ArrayList<>();
+        try (FileChannel canale = FileChannel.open(Paths.get(csvPath), StandardOpenOption.READ)) {
+            long[] confini = confini(canale);
+            for (int i = 0; i + 1 < confini.length; i++) {
+                if (confini[i + 1] > confini[i]) {
+                    // La mappatura resta valida anche dopo la chiusura del canale
+                    ByteBuffer mappa = canale.map(FileChannel.MapMode.READ_ONLY, confini[i], confini[i + 1] - confini[i]);
+                    compiti.add(ForkJoinPool.commonPool().submit(() -> analizza(mappa)));
+                }
+            }
+        }
+        List<Parte> parti = new ArrayList<>(compiti.size());
+        int totale = 0;
+        for (ForkJoinTask<Parte> compito : compiti) {
+            Parte parte = compito.join();
+            parti.add(parte);
+            totale += parte.numeroValide;
+        }
+        // Dizionari per colonna: i codici di ogni intervallo vengono tradotti in codici globali
+        List<List<String>> dizionari = new ArrayList<>();
+        List<Map<String, Integer>> posizioni = new ArrayList<>();
+        for (int c = 0; c < ColonneCodificate.NUMERO_CAMPI; c++) {
+            dizionari.add(new ArrayList<>());
+            posizioni.add(new HashMap<>());
+        }
+        int[][] codici = new int[ColonneCodificate.NUMERO_CAMPI][totale];
+        int righePrecedenti = 0;
+        int validePrecedenti = 0;
+        for (Parte parte : parti) {
+            for (int[] saltata : parte.saltate) {
+                // Logga righe con numero di campi non corretto
+                System.err.printf("Riga %d saltata: trovati %d campi anziché %d%n",
+                        righePrecedenti + saltata[0], saltata[1], ColonneCodificate.NUMERO_CAMPI);
+            }
+            int[][] traduzioni = new int[ColonneCodificate.NUMERO_CAMPI][];
+            for (int r = 0, k = 0; r < parte.numeroValide; r++) {
+                for (int c = 0; c < ColonneCodificate.NUMERO_CAMPI; c++) {
+                    int locale = parte.codici[k++];
+                    if (traduzioni[c] == null) {
+                        traduzioni[c] = new int[parte.valori.dimensione()];
+                    }
+                    // 0 = non ancora tradotto, altrimenti codice globale più uno
+                    int globale = traduzioni[c][locale] - 1;
+                    if (globale < 0) {
+                        List<String> dizionario = dizionari.get(c);
+                        globale = posizioni.get(c).computeIfAbsent(parte.valori.valore(locale), v -> {
+                            dizionario.add(v);
+                            return dizionario.size() - 1;
+                        });
+                        traduzioni[c][locale] = globale + 1;
+                    }
+                    codici[c][validePrecedenti + r] = globale;
+                }
+            }
+            righePrecedenti += parte.numeroRighe;
+            validePrecedenti += parte.numeroValide;
+        }
+        return ColonneCodificate.da(dizionari, codici, fuoriHeap);
+    }
+
+    /**
+     * Divide il file in intervalli: ogni confine interno cade subito dopo un
+     * '\n', quindi nessuna riga è spezzata tra due intervalli.
+     *
+     * @return posizioni crescenti, dalla prima (0) alla fine del file
+     */
+    private static long[] confini(FileChannel canale) throws IOException {
+        long dimensione = canale.size();
+        long parti = Math.min(dimensione / MIN_BYTE_PER_PARTE,
+                (long) PARTI_PER_THREAD * ForkJoinPool.getCommonPoolParallelism());
+        parti = Math.max(Math.max(parti, 1), (dimensione + MAX_BYTE_PER_PARTE - 1) / MAX_BYTE_PER_PARTE);
+        long[] confini = new long[(int) parti + 1];
+        confini[confini.length - 1] = dimensione;
+        ByteBuffer lettura = ByteBuffer.allocate(4096);
+        for (int i = 1; i < parti; i++) {
+            long stimato = Math.max(dimensione * i / parti, confini[i - 1]);
+            confini[i] = stimato == 0 ? 0 : dopoACapo(canale, stimato, lettura);
+        }
+        return confini;
+    }
+
+    /**
+     * Restituisce la posizione che segue il primo '\n' a partire da pos - 1,
+     * o la fine del file.
+     */
+    private static long dopoACapo(FileChannel canale, long pos, ByteBuffer lettura) throws IOException {
+        long p = pos - 1;
+        while (true) {
+            lettura.clear();
+            int n = canale.read(lettura, p);
+            if (n <= 0) {
+                return canale.size();
+            }
+            for (int j = 0; j < n; j++) {
+                if (lettura.get(j) == '\n') {
+                    return p + j + 1;
+                }
+            }
+            p += n;
+        }
+    }
+
+    /**
+     * Analizza le righe di un intervallo direttamente dai byte mappati. I byte
+     * di ogni campo, senza virgolette, passano per un unico buffer riusato e
+     * la tabella dei valori li converte in codici: per riga non si alloca nulla.
+     */
+    private static Parte analizza(ByteBuffer mappa) {
+        Parte parte = new Parte();
+        byte[] campo = new byte[256];
+        int[] riga = new int[ColonneCodificate.NUMERO_CAMPI];
+        int n = mappa.limit();
+        int i = 0;
+        while (i < n) {
+            parte.numeroRighe++;
+            int campi = 0;
+            int lunghezza = 0;
+            boolean inQuotes = false;
+            byte b = 0;
+            while (true) {
+                boolean fineRiga = i == n || (b = mappa.get(i)) == '\n' || b == '\r';
+                if (fineRiga || (b == ';' && !inQuotes)) {
+                    // Oltre NUMERO_CAMPI i campi sono solo contati
+                    if (campi < riga.length) {
+                        riga[campi] = parte.valori.codice(campo, lunghezza);
+                    }
+                    campi++;
+                    lunghezza = 0;
+                    if (fineRiga) {
+                        break;
+                    }
+                } else if (b == '"') {
+                    inQuotes = !inQuotes;
+                } else {
+                    if (lunghezza == campo.length) {
+                        campo = Arrays.copyOf(campo, lunghezza * 2);
+                    }
+                    campo[lunghezza++] = b;
+                }
+                i++;
+            }
+            // "\r\n" è un solo terminatore
+            if (i < n && b == '\r' && i + 1 < n && mappa.get(i + 1) == '\n') {
+                i++;
+            }
+            i++;
+            if (campi >= riga.length) {
+                int k = parte.numeroValide++ * riga.length;
+                if (k + riga.length > parte.codici.length) {
+                    parte.codici = Arrays.copyOf(parte.codici, parte.codici.length * 2);
+                }
+                System.arraycopy(riga, 0, parte.codici, k, riga.length);
+            } else {
+                parte.saltate.add(new int[]{parte.numeroRighe, campi});
+            }
+        }
+        return parte;
+    }
+}
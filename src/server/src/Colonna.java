@@ -0,0 +1,60 @@
+package server.src;
+
+import java.util.Locale;
+
+/**
+ * Colonne categoriche di una struttura ricettiva su cui GestoreCSV
+ * mantiene un indice invertito per i filtri di uguaglianza. Il nome
+ * nel protocollo coincide con quello del campo in ColonneCodificate.
+ */
+public enum Colonna {
+    COMUNE("comune"),
+    PROVINCIA("provincia"),
+    TIPOLOGIA("tipologia"),
+    STELLE("stelle"),
+    ATL("atl");
+
+    /** Nome della colonna nei comandi del protocollo. */
+    private final String nome;
+    /** Indice del campo nelle righe del CSV. */
+    private final int campo;
+
+    Colonna(String nome) {
+        this.nome = nome;
+        this.campo = ColonneCodificate.campo(nome);
+    }
+
+    /**
+     * Restituisce il nome della colonna usato nel protocollo.
+     *
+     * @return nome della colonna
+     */
+    public String getNome() {
+        return nome;
+    }
+
+    /**
+     * Restituisce l'indice del campo della colonna nelle righe del CSV.
+     *
+     * @return indice del campo in ColonneCodificate
+     */
+    int getCampo() {
+        return campo;
+    }
+
+    /**
+     * Cerca una colonna a partire dal nome (case-insensitive).
+     *
+     * @param nome nome della colonna
+     * @return la colonna corrispondente, o null se sconosciuta
+     */
+    public static Colonna daNome(String nome) {
+        String n = nome.trim().toLowerCase(Locale.ROOT);
+        for (Colonna c : values()) {
+            if (c.nome.equals(n)) {
+                return c;
+            }
+        }
+        return null;
+    }
+}
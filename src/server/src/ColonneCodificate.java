@@ -0,0 +1,442 @@
+package server.src;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Campi del dataset in forma colonnare e codificata a dizionario: per ogni
+ * colonna del CSV i valori distinti compaiono una sola volta nel dizionario
+ * e ogni riga ne memorizza solo il codice. È la sola copia dei dati tenuta da
+ * GestoreCSV: le StrutturaRicettiva vengono create solo quando servono.
+ *
+ * <p>I codici di una colonna occupano 1, 2 o 4 byte per riga secondo la
+ * dimensione del dizionario, quindi SI/NO, province, ATL, stelle e tipologie
+ * costano un byte per riga e i comuni due. I valori sono tenuti già
+ * codificati in UTF-8: il protocollo binario li copia senza conversioni e la
+ * forma di presentazione di una riga si compone direttamente da questi byte.
+ *
+ * <p>Codici e dizionari stanno in ByteBuffer: nell'heap, oppure fuori
+ * (buffer diretti o byte dello snapshot mappato) quando il server è avviato
+ * con la memoria "offheap". In quel caso l'heap contiene solo poche decine di
+ * oggetti per colonna, qualunque sia il numero di righe, e il garbage
+ * collector non deve mai scorrere i dati.
+ */
+final class ColonneCodificate {
+    /** Numero di campi di una riga del CSV. */
+    static final int NUMERO_CAMPI = 28;
+
+    /** Nomi dei campi nell'ordine del CSV, usati dal protocollo binario. */
+    static final String[] NOMI_CAMPI = {
+            "comune", "provincia", "atl", "stelle", "qualifica", "tipologia",
+            "nome", "indirizzo", "numero_civico", "cap", "telefono", "fax", "email",
+            "altitudine_comune", "altitudine_struttura",
+            "ecolabel", "marchio_q", "marchio_yes",
+            "disabili", "animali", "assegno", "bancomat", "carta_credito",
+            "garage", "ascensore", "parcheggio", "aria_camere", "aria_appartamenti"
+    };
+
+    /**
+     * Forma di presentazione di una riga (StrutturaRicettiva.toString() seguito
+     * da '\n') scomposta in testi fissi, in UTF-8, alternati ai campi: il testo i
+     * precede il campo CAMPI_PRESENTAZIONE[i], l'ultimo chiude la riga. È
+     * ricavata da toString() stesso, quindi le due forme non possono divergere.
+     */
+    private static final byte[][] TESTI_PRESENTAZIONE;
+    private static final int[] CAMPI_PRESENTAZIONE;
+    /** Byte dei testi fissi di una riga. */
+    private static final int LUNGHEZZA_TESTI;
+
+    static {
+        // Ogni campo è un segnaposto "\0" seguito dal suo indice
+        String[] segnaposto = new String[NUMERO_CAMPI];
+        for (int c = 0; c < NUMERO_CAMPI; c++) {
+            segnaposto[c] = "\0" + (char) c;
+        }
+        String modello = struttura(segnaposto) + "\n";
+        List<byte[]> testi = new ArrayList<>();
+        List<Integer> campi = new ArrayList<>();
+        int inizio = 0;
+        for (int i = modello.indexOf('\0'); i >= 0; i = modello.indexOf('\0', inizio)) {
+            testi.add(modello.substring(inizio, i).getBytes(StandardCharsets.UTF_8));
+            campi.add((int) modello.charAt(i + 1));
+            inizio = i + 2;
+        }
+        testi.add(modello.substring(inizio).getBytes(StandardCharsets.UTF_8));
+        TESTI_PRESENTAZIONE = testi.toArray(new byte[0][]);
+        CAMPI_PRESENTAZIONE = campi.stream().mapToInt(Integer::intValue).toArray();
+        LUNGHEZZA_TESTI = testi.stream().mapToInt(t -> t.length).sum();
+    }
+
+    /**
+     * Letture little-endian di char e int dall'array di un buffer nell'heap:
+     * più rapide delle letture assolute del ByteBuffer, che qui sono le più frequenti.
+     */
+    static final VarHandle CARATTERE = MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.LITTLE_ENDIAN);
+    static final VarHandle INTERO = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** Numero di righe. */
+    private final int numeroRighe;
+    /** Valori distinti di ogni colonna in UTF-8, in ordine di prima comparsa. */
+    private final Dizionario[] dizionari;
+    /**
+     * Codice del valore di ogni riga, per colonna, nella larghezza più stretta
+     * che contiene il dizionario: larghezze[colonna] vale 1 (byte senza segno),
+     * 2 (char) o 4 (int) byte per riga.
+     */
+    private final ByteBuffer[] codici;
+    private final int[] larghezze;
+    /** Array dei codici di ogni colonna se il buffer è nell'heap, altrimenti null. */
+    private final byte[][] array;
+
+    private ColonneCodificate(int numeroRighe, Dizionario[] dizionari, ByteBuffer[] codici, int[] larghezze) {
+        this.numeroRighe = numeroRighe;
+        this.dizionari = dizionari;
+        this.codici = codici;
+        this.larghezze = larghezze;
+        this.array = new byte[NUMERO_CAMPI][];
+        for (int c = 0; c < NUMERO_CAMPI; c++) {
+            array[c] = heap(codici[c]);
+        }
+    }
+
+    /**
+     * Alloca un buffer nell'heap o, se richiesto, fuori (buffer diretto).
+     * Codici e offset sono little-endian, l'ordine nativo delle piattaforme
+     * comuni, sia in memoria sia nello snapshot.
+     *
+     * @param dimensione byte del buffer
+     * @param fuoriHeap  true per un buffer diretto
+     * @return buffer azzerato
+     */
+    static ByteBuffer alloca(int dimensione, boolean fuoriHeap) {
+        ByteBuffer b = fuoriHeap ? ByteBuffer.allocateDirect(dimensione) : ByteBuffer.allocate(dimensione);
+        return b.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Restituisce l'array di un buffer allocato da {@link #alloca(int, boolean)}
+     * nell'heap, che inizia sempre dal primo byte dell'array.
+     *
+     * @param b buffer
+     * @return array del buffer, o null se il buffer è diretto
+     */
+    static byte[] heap(ByteBuffer b) {
+        return b.hasArray() && b.arrayOffset() == 0 ? b.array() : null;
+    }
+
+    /**
+     * Costruisce le colonne a partire da dizionari e codici già calcolati.
+     *
+     * @param dizionari valori distinti di ogni colonna
+     * @param codici    codici[colonna][riga], posizioni nel dizionario della colonna
+     * @param fuoriHeap true per tenere dizionari e codici in buffer diretti
+     * @return colonne con i codici nella larghezza minima
+     */
+    static ColonneCodificate da(List<List<String>> dizionari, int[][] codici, boolean fuoriHeap) {
+        int numeroRighe = codici.length == 0 ? 0 : codici[0].length;
+        Dizionario[] codificati = new Dizionario[NUMERO_CAMPI];
+        ByteBuffer[] buffer = new ByteBuffer[NUMERO_CAMPI];
+        int[] larghezze = new int[NUMERO_CAMPI];
+        for (int c = 0; c < NUMERO_CAMPI; c++) {
+            List<String> valori = dizionari.get(c);
+            codificati[c] = Dizionario.da(valori, fuoriHeap);
+            larghezze[c] = valori.size() <= 1 << 8 ? Byte.BYTES
+                    : valori.size() <= 1 << 16 ? Character.BYTES : Integer.BYTES;
+            buffer[c] = alloca(numeroRighe * larghezze[c], fuoriHeap);
+            for (int v : codici[c]) {
+                if (larghezze[c] == Byte.BYTES) {
+                    buffer[c].put((byte) v);
+                } else if (larghezze[c] == Character.BYTES) {
+                    buffer[c].putChar((char) v);
+                } else {
+                    buffer[c].putInt(v);
+                }
+            }
+            buffer[c].clear();
+        }
+        return new ColonneCodificate(numeroRighe, codificati, buffer, larghezze);
+    }
+
+    /**
+     * Scrive dizionari e codici nello snapshot binario, byte per byte come
+     * sono in memoria.
+     *
+     * @param out flusso dello snapshot
+     * @throws IOException se la scrittura fallisce
+     */
+    void scrivi(DataOutputStream out) throws IOException {
+        out.writeInt(numeroRighe);
+        for (int c = 0; c < NUMERO_CAMPI; c++) {
+            dizionari[c].scrivi(out);
+            out.writeByte(larghezze[c]);
+            SnapshotBinario.scriviBlocco(out, codici[c]);
+        }
+    }
+
+    /**
+     * Legge dizionari e codici scritti da {@link #scrivi(DataOutputStream)}.
+     *
+     * @param in        dati dello snapshot, posizionati sulle colonne
+     * @param fuoriHeap true per usare direttamente i byte dello snapshot mappato
+     *                  invece di copiarli nell'heap
+     * @return colonne lette
+     * @throws java.nio.BufferUnderflowException se i dati sono troncati
+     */
+    static ColonneCodificate leggi(ByteBuffer in, boolean fuoriHeap) {
+        int numeroRighe = in.getInt();
+        Dizionario[] dizionari = new Dizionario[NUMERO_CAMPI];
+        ByteBuffer[] codici = new ByteBuffer[NUMERO_CAMPI];
+        int[] larghezze = new int[NUMERO_CAMPI];
+        for (int c = 0; c < NUMERO_CAMPI; c++) {
+            dizionari[c] = Dizionario.leggi(in, fuoriHeap);
+            larghezze[c] = in.get();
+            if (larghezze[c] != Byte.BYTES && larghezze[c] != Character.BYTES && larghezze[c] != Integer.BYTES) {
+                throw new IllegalStateException("Larghezza dei codici non valida: " + larghezze[c]);
+            }
+            codici[c] = SnapshotBinario.leggiBlocco(in, numeroRighe * larghezze[c], fuoriHeap);
+        }
+        return new ColonneCodificate(numeroRighe, dizionari, codici, larghezze);
+    }
+
+    /**
+     * Restituisce colonne senza righe, per un file che non può essere letto.
+     *
+     * @return colonne vuote
+     */
+    static ColonneCodificate vuote() {
+        List<List<String>> dizionari = new ArrayList<>();
+        for (int c = 0; c < NUMERO_CAMPI; c++) {
+            dizionari.add(List.of());
+        }
+        return da(dizionari, new int[NUMERO_CAMPI][0], false);
+    }
+
+    /**
+     * Restituisce l'indice del campo con il nome indicato.
+     *
+     * @param nome nome del campo (vedi NOMI_CAMPI)
+     * @return indice della colonna
+     * @throws IllegalArgumentException se il campo non esiste
+     */
+    static int campo(String nome) {
+        for (int c = 0; c < NUMERO_CAMPI; c++) {
+            if (NOMI_CAMPI[c].equals(nome)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("Campo sconosciuto: " + nome);
+    }
+
+    /**
+     * Crea una struttura dai suoi campi nell'ordine del CSV.
+     */
+    private static StrutturaRicettiva struttura(String[] campi) {
+        return new StrutturaRicettiva(
+                campi[0],  campi[1],  campi[2],  campi[3],  campi[4],
+                campi[5],  campi[6],  campi[7],  campi[8],  campi[9],
+                campi[10], campi[11], campi[12], campi[13], campi[14],
+                campi[15], campi[16], campi[17], campi[18], campi[19],
+                campi[20], campi[21], campi[22], campi[23], campi[24],
+                campi[25], campi[26], campi[27]
+        );
+    }
+
+    /**
+     * Restituisce il numero di righe.
+     *
+     * @return righe del dataset
+     */
+    int numeroRighe() {
+        return numeroRighe;
+    }
+
+    /**
+     * Restituisce il codice del valore della riga nella colonna indicata.
+     *
+     * @param colonna indice della colonna (0..NUMERO_CAMPI-1)
+     * @param riga    indice (0-based) della riga
+     * @return posizione del valore nel dizionario della colonna
+     */
+    int codice(int colonna, int riga) {
+        byte[] a = array[colonna];
+        if (a != null) {
+            switch (larghezze[colonna]) {
+                case Byte.BYTES:
+                    return a[riga] & 0xFF;
+                case Character.BYTES:
+                    return (char) CARATTERE.get(a, riga * Character.BYTES);
+                default:
+                    return (int) INTERO.get(a, riga * Integer.BYTES);
+            }
+        }
+        ByteBuffer b = codici[colonna];
+        switch (larghezze[colonna]) {
+            case Byte.BYTES:
+                return b.get(riga) & 0xFF;
+            case Character.BYTES:
+                return b.getChar(riga * Character.BYTES);
+            default:
+                return b.getInt(riga * Integer.BYTES);
+        }
+    }
+
+    /**
+     * Restituisce il valore con il codice indicato.
+     *
+     * @param colonna indice della colonna
+     * @param codice  posizione nel dizionario della colonna
+     * @return valore del campo
+     */
+    String valore(int colonna, int codice) {
+        return dizionari[colonna].valore(codice);
+    }
+
+    /**
+     * Restituisce la lunghezza in byte (UTF-8) del valore con il codice indicato.
+     *
+     * @param colonna indice della colonna
+     * @param codice  posizione nel dizionario della colonna
+     * @return byte del valore
+     */
+    int lunghezzaValore(int colonna, int codice) {
+        return dizionari[colonna].lunghezza(codice);
+    }
+
+    /**
+     * Copia il valore con il codice indicato, in UTF-8, nel buffer di uscita.
+     *
+     * @param colonna indice della colonna
+     * @param codice  posizione nel dizionario della colonna
+     * @param uscita  buffer di destinazione, avanzato della lunghezza del valore
+     */
+    void copiaValore(int colonna, int codice, ByteBuffer uscita) {
+        dizionari[colonna].copia(codice, uscita);
+    }
+
+    /**
+     * Restituisce il numero di valori distinti della colonna.
+     *
+     * @param colonna indice della colonna
+     * @return dimensione del dizionario
+     */
+    int dimensioneDizionario(int colonna) {
+        return dizionari[colonna].dimensione();
+    }
+
+    /**
+     * Conta le righe per ciascun valore della colonna, scorrendo i soli codici.
+     *
+     * @param colonna indice della colonna
+     * @return numero di righe per codice
+     */
+    int[] conteggi(int colonna) {
+        int[] conteggi = new int[dimensioneDizionario(colonna)];
+        for (int r = 0; r < numeroRighe; r++) {
+            conteggi[codice(colonna, r)]++;
+        }
+        return conteggi;
+    }
+
+    /**
+     * Raggruppa le righe per valore della colonna.
+     *
+     * @param colonna indice della colonna
+     * @return per ogni codice gli indici crescenti delle righe con quel valore
+     */
+    int[][] righePerCodice(int colonna) {
+        int[] conteggi = conteggi(colonna);
+        int[][] gruppi = new int[conteggi.length][];
+        for (int v = 0; v < conteggi.length; v++) {
+            gruppi[v] = new int[conteggi[v]];
+        }
+        int[] riempiti = new int[conteggi.length];
+        for (int r = 0; r < numeroRighe; r++) {
+            int v = codice(colonna, r);
+            gruppi[v][riempiti[v]++] = r;
+        }
+        return gruppi;
+    }
+
+    /**
+     * Restituisce il bitset delle righe il cui valore nella colonna è uno di
+     * quelli indicati: il confronto avviene sui codici, una sola volta per valore.
+     *
+     * @param colonna indice della colonna
+     * @param codici  codici ammessi, uno per posizione del dizionario
+     * @return bitset delle righe
+     */
+    BitSet righeConCodici(int colonna, BitSet codici) {
+        BitSet righe = new BitSet(numeroRighe);
+        for (int r = 0; r < numeroRighe; r++) {
+            if (codici.get(codice(colonna, r))) {
+                righe.set(r);
+            }
+        }
+        return righe;
+    }
+
+    /**
+     * Crea la struttura della riga indicata a partire dai dizionari.
+     *
+     * @param riga indice (0-based) della riga
+     * @return nuova struttura con i campi della riga
+     */
+    StrutturaRicettiva struttura(int riga) {
+        String[] campi = new String[NUMERO_CAMPI];
+        for (int c = 0; c < NUMERO_CAMPI; c++) {
+            campi[c] = valore(c, codice(c, riga));
+        }
+        return struttura(campi);
+    }
+
+    /**
+     * Restituisce la lunghezza in byte della forma di presentazione della riga.
+     *
+     * @param riga indice (0-based) della riga
+     * @return byte di {@link #presentazione(int)}
+     */
+    int lunghezzaPresentazione(int riga) {
+        int lunghezza = LUNGHEZZA_TESTI;
+        for (int c : CAMPI_PRESENTAZIONE) {
+            lunghezza += dizionari[c].lunghezza(codice(c, riga));
+        }
+        return lunghezza;
+    }
+
+    /**
+     * Compone la forma di presentazione della riga (toString() della struttura
+     * seguito da '\n') in UTF-8, copiando i byte dei dizionari senza creare stringhe.
+     *
+     * @param riga indice (0-based) della riga
+     * @return byte della riga
+     */
+    byte[] presentazione(int riga) {
+        // Codici letti una volta sola: servono sia per la lunghezza sia per la copia
+        int[] valori = new int[CAMPI_PRESENTAZIONE.length];
+        int lunghezza = LUNGHEZZA_TESTI;
+        for (int i = 0; i < valori.length; i++) {
+            int c = CAMPI_PRESENTAZIONE[i];
+            valori[i] = codice(c, riga);
+            lunghezza += dizionari[c].lunghezza(valori[i]);
+        }
+        byte[] out = new byte[lunghezza];
+        int n = 0;
+        for (int i = 0; i < valori.length; i++) {
+            byte[] testo = TESTI_PRESENTAZIONE[i];
+            System.arraycopy(testo, 0, out, n, testo.length);
+            n += testo.length;
+            n = dizionari[CAMPI_PRESENTAZIONE[i]].copia(valori[i], out, n);
+        }
+        byte[] fine = TESTI_PRESENTAZIONE[valori.length];
+        System.arraycopy(fine, 0, out, n, fine.length);
+        return out;
+    }
+}
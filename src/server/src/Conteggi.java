@@ -0,0 +1,237 @@
+package server.src;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumMap;
+
+/**
+ * Contatori del dataset calcolati una volta al caricamento, per rispondere
+ * ai comandi di conteggio senza scorrere le righe: per ogni colonna
+ * categorica il numero di righe per valore e, per ogni coppia di colonne,
+ * per combinazione di valori. Ogni contatore esiste per tutte le righe e
+ * per le sole righe che offrono ciascun servizio.
+ *
+ * <p>I valori sono identificati dal loro codice nel dizionario della
+ * colonna (vedi {@link ColonneCodificate}); le coppie memorizzano solo le
+ * combinazioni presenti, che non sono mai più delle righe.
+ */
+final class Conteggi {
+    private static final Colonna[] COLONNE = Colonna.values();
+    private static final Servizio[] SERVIZI = Servizio.values();
+    /** Filtri dei contatori: 0 per tutte le righe, 1 + s per le righe con il servizio s. */
+    private static final int FILTRI = 1 + SERVIZI.length;
+
+    /** perColonna[filtro][colonna][codice]: righe con quel valore. */
+    private final int[][][] perColonna;
+    /**
+     * Per ogni coppia di colonne a < b (nell'ordine di Colonna): codici delle
+     * combinazioni presenti, codiciA[coppia][k] e codiciB[coppia][k], e righe
+     * per combinazione, perCoppia[coppia][filtro][k].
+     */
+    private final int[][] codiciA;
+    private final int[][] codiciB;
+    private final int[][][] perCoppia;
+
+    private Conteggi(int[][][] perColonna, int[][] codiciA, int[][] codiciB, int[][][] perCoppia) {
+        this.perColonna = perColonna;
+        this.codiciA = codiciA;
+        this.codiciB = codiciB;
+        this.perCoppia = perCoppia;
+    }
+
+    /**
+     * Calcola i contatori dai codici delle colonne e dall'indice dei servizi.
+     *
+     * @param colonne campi di tutte le righe
+     * @param servizi bitset delle righe per servizio
+     * @return contatori del dataset
+     */
+    static Conteggi calcola(ColonneCodificate colonne, EnumMap<Servizio, BitSet> servizi) {
+        // Servizi di ogni riga come maschera di bit, per aggiornare tutti i filtri in un passaggio
+        int[] maschere = new int[colonne.numeroRighe()];
+        for (int s = 0; s < SERVIZI.length; s++) {
+            BitSet righe = servizi.get(SERVIZI[s]);
+            for (int r = righe.nextSetBit(0); r >= 0; r = righe.nextSetBit(r + 1)) {
+                maschere[r] |= 1 << s;
+            }
+        }
+
+        int[][][] perColonna = new int[FILTRI][COLONNE.length][];
+        for (int c = 0; c < COLONNE.length; c++) {
+            int campo = COLONNE[c].getCampo();
+            for (int f = 0; f < FILTRI; f++) {
+                perColonna[f][c] = new int[colonne.dimensioneDizionario(campo)];
+            }
+            for (int r = 0; r < maschere.length; r++) {
+                int v = colonne.codice(campo, r);
+                perColonna[0][c][v]++;
+                for (int m = maschere[r]; m != 0; m &= m - 1) {
+                    perColonna[1 + Integer.numberOfTrailingZeros(m)][c][v]++;
+                }
+            }
+        }
+
+        int coppie = COLONNE.length * (COLONNE.length - 1) / 2;
+        int[][] codiciA = new int[coppie][];
+        int[][] codiciB = new int[coppie][];
+        int[][][] perCoppia = new int[coppie][][];
+        for (int a = 0; a < COLONNE.length; a++) {
+            int[][] gruppi = colonne.righePerCodice(COLONNE[a].getCampo());
+            for (int b = a + 1; b < COLONNE.length; b++) {
+                int p = coppia(a, b);
+                int campoB = COLONNE[b].getCampo();
+                int dimensioneB = colonne.dimensioneDizionario(campoB);
+                // Per ogni valore di b: ultimo gruppo di a in cui è comparso e sua posizione
+                int[] gruppoDi = new int[dimensioneB];
+                int[] posizione = new int[dimensioneB];
+                Arrays.fill(gruppoDi, -1);
+                int combinazioni = 0;
+                for (int va = 0; va < gruppi.length; va++) {
+                    for (int r : gruppi[va]) {
+                        int vb = colonne.codice(campoB, r);
+                        if (gruppoDi[vb] != va) {
+                            gruppoDi[vb] = va;
+                            combinazioni++;
+                        }
+                    }
+                }
+                codiciA[p] = new int[combinazioni];
+                codiciB[p] = new int[combinazioni];
+                perCoppia[p] = new int[FILTRI][combinazioni];
+                Arrays.fill(gruppoDi, -1);
+                int k = 0;
+                for (int va = 0; va < gruppi.length; va++) {
+                    for (int r : gruppi[va]) {
+                        int vb = colonne.codice(campoB, r);
+                        if (gruppoDi[vb] != va) {
+                            gruppoDi[vb] = va;
+                            posizione[vb] = k;
+                            codiciA[p][k] = va;
+                            codiciB[p][k] = vb;
+                            k++;
+                        }
+                        int i = posizione[vb];
+                        perCoppia[p][0][i]++;
+                        for (int m = maschere[r]; m != 0; m &= m - 1) {
+                            perCoppia[p][1 + Integer.numberOfTrailingZeros(m)][i]++;
+                        }
+                    }
+                }
+            }
+        }
+        return new Conteggi(perColonna, codiciA, codiciB, perCoppia);
+    }
+
+    /**
+     * Restituisce la posizione della coppia di colonne a < b.
+     */
+    private static int coppia(int a, int b) {
+        // Coppie in ordine (0,1), (0,2), ..., (1,2), ...
+        return a * (2 * COLONNE.length - a - 1) / 2 + (b - a - 1);
+    }
+
+    /**
+     * Scrive i contatori nello snapshot binario.
+     *
+     * @param out flusso dello snapshot
+     * @throws IOException se la scrittura fallisce
+     */
+    void scrivi(DataOutputStream out) throws IOException {
+        for (int[][] filtro : perColonna) {
+            for (int[] conteggi : filtro) {
+                out.writeInt(conteggi.length);
+                SnapshotBinario.scriviInteri(out, conteggi);
+            }
+        }
+        for (int p = 0; p < codiciA.length; p++) {
+            out.writeInt(codiciA[p].length);
+            SnapshotBinario.scriviInteri(out, codiciA[p]);
+            SnapshotBinario.scriviInteri(out, codiciB[p]);
+            for (int[] conteggi : perCoppia[p]) {
+                SnapshotBinario.scriviInteri(out, conteggi);
+            }
+        }
+    }
+
+    /**
+     * Legge i contatori scritti da {@link #scrivi(DataOutputStream)}.
+     *
+     * @param in dati dello snapshot
+     * @return contatori letti
+     */
+    static Conteggi leggi(ByteBuffer in) {
+        int[][][] perColonna = new int[FILTRI][COLONNE.length][];
+        for (int f = 0; f < FILTRI; f++) {
+            for (int c = 0; c < COLONNE.length; c++) {
+                perColonna[f][c] = SnapshotBinario.leggiInteri(in, in.getInt());
+            }
+        }
+        int coppie = COLONNE.length * (COLONNE.length - 1) / 2;
+        int[][] codiciA = new int[coppie][];
+        int[][] codiciB = new int[coppie][];
+        int[][][] perCoppia = new int[coppie][FILTRI][];
+        for (int p = 0; p < coppie; p++) {
+            int combinazioni = in.getInt();
+            codiciA[p] = SnapshotBinario.leggiInteri(in, combinazioni);
+            codiciB[p] = SnapshotBinario.leggiInteri(in, combinazioni);
+            for (int f = 0; f < FILTRI; f++) {
+                perCoppia[p][f] = SnapshotBinario.leggiInteri(in, combinazioni);
+            }
+        }
+        return new Conteggi(perColonna, codiciA, codiciB, perCoppia);
+    }
+
+    /**
+     * Restituisce il numero di righe per valore della colonna.
+     * L'array è condiviso e non va modificato.
+     *
+     * @param colonna colonna da contare
+     * @param filtro  servizio richiesto, o null per tutte le righe
+     * @return righe per codice del valore nel dizionario della colonna
+     */
+    int[] perColonna(Colonna colonna, Servizio filtro) {
+        return perColonna[filtro(filtro)][colonna.ordinal()];
+    }
+
+    /**
+     * Restituisce il numero di righe per combinazione di valori di due colonne
+     * distinte, come tre array paralleli: codice nella prima colonna, codice
+     * nella seconda e righe. Gli array sono condivisi e non vanno modificati;
+     * le combinazioni senza righe con il filtro hanno conteggio 0.
+     *
+     * @param prima   colonna del primo livello
+     * @param seconda colonna del secondo livello, diversa dalla prima
+     * @param filtro  servizio richiesto, o null per tutte le righe
+     * @return {codici della prima colonna, codici della seconda, righe}
+     */
+    int[][] perCoppia(Colonna prima, Colonna seconda, Servizio filtro) {
+        int a = prima.ordinal(), b = seconda.ordinal();
+        if (a < b) {
+            int p = coppia(a, b);
+            return new int[][]{codiciA[p], codiciB[p], perCoppia[p][filtro(filtro)]};
+        }
+        int p = coppia(b, a);
+        return new int[][]{codiciB[p], codiciA[p], perCoppia[p][filtro(filtro)]};
+    }
+
+    /**
+     * Restituisce il numero di righe che offrono il servizio.
+     *
+     * @param servizio servizio richiesto
+     * @return righe con il servizio
+     */
+    int conServizio(Servizio servizio) {
+        int totale = 0;
+        for (int n : perColonna[filtro(servizio)][0]) {
+            totale += n;
+        }
+        return totale;
+    }
+
+    private static int filtro(Servizio servizio) {
+        return servizio == null ? 0 : 1 + servizio.ordinal();
+    }
+}
@@ -0,0 +1,174 @@
+package server.src;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Dizionario dei valori distinti di una colonna: i valori, in UTF-8, sono
+ * concatenati in un solo buffer e una tabella di offset indica dove inizia
+ * ciascuno. Qualunque sia il numero di valori, il dizionario è composto da
+ * due buffer, che possono stare nell'heap o fuori (buffer diretti o
+ * mappati dallo snapshot): i valori sono letti direttamente dalla memoria e
+ * diventano String solo quando servono.
+ */
+final class Dizionario {
+    /** Numero di valori. */
+    private final int dimensione;
+    /** Offset (int) del valore v in valori: da inizi[v] (incluso) a inizi[v + 1] (escluso). */
+    private final ByteBuffer inizi;
+    /** Byte di tutti i valori, uno dopo l'altro. */
+    private final ByteBuffer valori;
+    /** Array di offset e valori se i buffer sono nell'heap, altrimenti null. */
+    private final byte[] arrayInizi;
+    private final byte[] array;
+
+    private Dizionario(int dimensione, ByteBuffer inizi, ByteBuffer valori) {
+        this.dimensione = dimensione;
+        this.inizi = inizi;
+        this.valori = valori;
+        this.arrayInizi = ColonneCodificate.heap(inizi);
+        this.array = ColonneCodificate.heap(valori);
+    }
+
+    /**
+     * Costruisce il dizionario dei valori indicati, nell'ordine dato.
+     *
+     * @param valori    valori distinti
+     * @param fuoriHeap true per tenere i byte in buffer diretti
+     * @return dizionario dei valori
+     */
+    static Dizionario da(List<String> valori, boolean fuoriHeap) {
+        byte[][] codificati = new byte[valori.size()][];
+        int totale = 0;
+        for (int v = 0; v < codificati.length; v++) {
+            codificati[v] = valori.get(v).getBytes(StandardCharsets.UTF_8);
+            totale += codificati[v].length;
+        }
+        ByteBuffer inizi = ColonneCodificate.alloca((codificati.length + 1) * Integer.BYTES, fuoriHeap);
+        ByteBuffer byteValori = ColonneCodificate.alloca(totale, fuoriHeap);
+        for (byte[] valore : codificati) {
+            inizi.putInt(byteValori.position());
+            byteValori.put(valore);
+        }
+        inizi.putInt(totale);
+        return new Dizionario(codificati.length, inizi.clear(), byteValori.clear());
+    }
+
+    /**
+     * Scrive il dizionario nello snapshot binario: dimensione, offset e byte dei valori.
+     *
+     * @param out flusso dello snapshot
+     * @throws IOException se la scrittura fallisce
+     */
+    void scrivi(DataOutputStream out) throws IOException {
+        out.writeInt(dimensione);
+        SnapshotBinario.scriviBlocco(out, inizi);
+        SnapshotBinario.scriviBlocco(out, valori);
+    }
+
+    /**
+     * Legge un dizionario scritto da {@link #scrivi(DataOutputStream)}.
+     *
+     * @param in        dati dello snapshot
+     * @param fuoriHeap true per usare direttamente i byte mappati, false per copiarli nell'heap
+     * @return dizionario letto
+     */
+    static Dizionario leggi(ByteBuffer in, boolean fuoriHeap) {
+        int dimensione = in.getInt();
+        ByteBuffer inizi = SnapshotBinario.leggiBlocco(in, (dimensione + 1) * Integer.BYTES, fuoriHeap);
+        ByteBuffer valori = SnapshotBinario.leggiBlocco(in, inizi.getInt(dimensione * Integer.BYTES), fuoriHeap);
+        return new Dizionario(dimensione, inizi, valori);
+    }
+
+    /**
+     * @return numero di valori
+     */
+    int dimensione() {
+        return dimensione;
+    }
+
+    /**
+     * @param v codice del valore
+     * @return lunghezza in byte del valore
+     */
+    int lunghezza(int v) {
+        return inizio(v + 1) - inizio(v);
+    }
+
+    private int inizio(int v) {
+        if (arrayInizi != null) {
+            return (int) ColonneCodificate.INTERO.get(arrayInizi, v * Integer.BYTES);
+        }
+        return inizi.getInt(v * Integer.BYTES);
+    }
+
+    /**
+     * Decodifica il valore indicato.
+     *
+     * @param v codice del valore
+     * @return valore come stringa
+     */
+    String valore(int v) {
+        if (array != null) {
+            return new String(array, inizio(v), lunghezza(v), StandardCharsets.UTF_8);
+        }
+        byte[] b = new byte[lunghezza(v)];
+        valori.get(inizio(v), b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copia i byte del valore nell'array indicato.
+     *
+     * @param v    codice del valore
+     * @param dest array di destinazione
+     * @param pos  posizione di destinazione
+     * @return posizione che segue il valore copiato
+     */
+    int copia(int v, byte[] dest, int pos) {
+        int lunghezza = lunghezza(v);
+        if (array != null) {
+            System.arraycopy(array, inizio(v), dest, pos, lunghezza);
+        } else {
+            valori.get(inizio(v), dest, pos, lunghezza);
+        }
+        return pos + lunghezza;
+    }
+
+    /**
+     * Copia i byte del valore nel buffer indicato, a partire dalla sua posizione.
+     *
+     * @param v    codice del valore
+     * @param dest buffer di destinazione, avanzato della lunghezza del valore
+     */
+    void copia(int v, ByteBuffer dest) {
+        int lunghezza = lunghezza(v);
+        dest.put(dest.position(), valori, inizio(v), lunghezza);
+        dest.position(dest.position() + lunghezza);
+    }
+
+    /**
+     * Verifica se il valore contiene la sequenza di byte indicata. Con testi in
+     * UTF-8 equivale a {@link String#contains(CharSequence)} sui valori decodificati.
+     *
+     * @param v      codice del valore
+     * @param parola byte da cercare
+     * @return true se il valore li contiene
+     */
+    boolean contiene(int v, byte[] parola) {
+        int ultimo = inizio(v + 1) - parola.length;
+        for (int i = inizio(v); i <= ultimo; i++) {
+            int j = 0;
+            while (j < parola.length && valori.get(i + j) == parola[j]) {
+                j++;
+            }
+            if (j == parola.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,21 +1,71 @@
 package server.src;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * GestoreCSV si occupa di caricare e gestire i dati delle strutture ricettive
  * da un file CSV. Fornisce metodi per filtrare, raggruppare e contare le strutture
  * in base a vari criteri, oltre a esportare i dati nuovamente in formato CSV.
+ *
+ * <p>Un'istanza non cambia dopo la costruzione: è lo snapshot del file nel
+ * momento in cui è stato letto. Le ricariche creano una nuova istanza
+ * (vedi {@link ArchivioStrutture}).
  */
 public class GestoreCSV {
+    /** Indice del campo con il nome della struttura. */
+    private static final int CAMPO_NOME = ColonneCodificate.campo("nome");
+
+    /**
+     * Campi di tutte le righe in forma colonnare e codificata a dizionario:
+     * è la sola copia dei dati, le strutture vengono create quando servono.
+     */
+    private final ColonneCodificate colonne;
+
+    /**
+     * Indici invertiti per i filtri di uguaglianza: per ogni colonna,
+     * valore normalizzato (minuscolo) -> indici ordinati delle righe che lo contengono.
+     */
+    private final EnumMap<Colonna, IndiceInvertito> indiciColonne;
+
+    /**
+     * Indice bitset dei servizi SI/NO: il bit i è impostato se la riga i
+     * offre il servizio.
+     */
+    private final EnumMap<Servizio, BitSet> indiceServizi;
+
     /**
-     * Lista interna delle strutture lette dal CSV.
+     * Indici 0..n-1 di tutte le righe, condivisi dalle risposte a "tutti";
+     * null fuori heap, dove sono creati a ogni richiesta.
      */
-    private final List<StrutturaRicettiva> strutture;
+    private final int[] tutteLeRighe;
+
+    /** Lunghezza degli n-grammi dell'indice sui nomi. */
+    private static final int N_GRAMMA = 3;
+
+    /** Nomi distinti delle strutture già normalizzati (minuscolo), per codice del nome. */
+    private final Dizionario nomiNormalizzati;
+
+    /**
+     * Indice a trigrammi sui nomi normalizzati: trigramma -> indici crescenti
+     * delle righe il cui nome lo contiene.
+     */
+    private final IndiceInvertito indiceTrigrammi;
+
+    /** Conteggi per valore e per coppia di colonne, calcolati al caricamento. */
+    private final Conteggi conteggi;
+
+    /** Righe ordinate per ciascun campo ordinabile, calcolate al caricamento. */
+    private final Permutazioni permutazioni;
+
+    /**
+     * Identificativo di questo caricamento del dataset, usato per riconoscere
+     * i cursori di paginazione emessi su un dataset diverso.
+     */
+    private final long generazione = System.nanoTime();
 
     /**
      * Costruisce un nuovo GestoreCSV e carica i dati dal file CSV specificato.
@@ -23,64 +73,472 @@ public class GestoreCSV {
      * @param csvPath percorso del file CSV contenente i dati delle strutture
      */
     public GestoreCSV(String csvPath) {
-        strutture = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(csvPath))) {
-            String line;
-            int lineNum = 0;
-            // Legge ogni riga del file CSV (incluse eventuali intestazioni)
-            while ((line = br.readLine()) != null) {
-                lineNum++;
-                String[] campi = splitCSV(line);
-                if (campi.length >= 28) {
-                    // Crea e aggiunge una nuova StrutturaRicettiva con i campi letti
-                    strutture.add(new StrutturaRicettiva(
-                            campi[0],  campi[1],  campi[2],  campi[3],  campi[4],
-                            campi[5],  campi[6],  campi[7],  campi[8],  campi[9],
-                            campi[10], campi[11], campi[12], campi[13], campi[14],
-                            campi[15], campi[16], campi[17], campi[18], campi[19],
-                            campi[20], campi[21], campi[22], campi[23], campi[24],
-                            campi[25], campi[26], campi[27]
-                    ));
-                } else {
-                    // Logga righe con numero di campi non corretto
-                    System.err.printf(
-                            "Riga %d saltata: trovati %d campi anziché 28%n",
-                            lineNum, campi.length
-                    );
-                }
-            }
+        this(csvPath, false);
+    }
+
+    /**
+     * Costruisce un nuovo GestoreCSV e carica i dati dal file CSV specificato,
+     * tenendo codici, dizionari, nomi normalizzati, posting list degli
+     * indici e permutazioni ordinate nell'heap o fuori.
+     *
+     * @param csvPath   percorso del file CSV contenente i dati delle strutture
+     * @param fuoriHeap true per usare buffer diretti
+     */
+    public GestoreCSV(String csvPath, boolean fuoriHeap) {
+        this(leggiCSV(csvPath, fuoriHeap), fuoriHeap);
+    }
+
+    /**
+     * Costruisce il gestore sulle colonne indicate, ricavandone gli indici.
+     *
+     * @param colonne   campi di tutte le righe
+     * @param fuoriHeap true per tenere nomi normalizzati e posting list in buffer diretti
+     */
+    private GestoreCSV(ColonneCodificate colonne, boolean fuoriHeap) {
+        this.colonne = colonne;
+
+        // Costruisce gli indici una sola volta, a caricamento completato, dai soli codici
+        indiciColonne = new EnumMap<>(Colonna.class);
+        for (Colonna colonna : Colonna.values()) {
+            indiciColonne.put(colonna, IndiceInvertito.da(costruisciIndice(colonna), fuoriHeap));
+        }
+        indiceServizi = costruisciIndiceServizi();
+        List<String> nomi = new ArrayList<>(colonne.dimensioneDizionario(CAMPO_NOME));
+        for (int v = 0; v < colonne.dimensioneDizionario(CAMPO_NOME); v++) {
+            nomi.add(normalizza(colonne.valore(CAMPO_NOME, v)));
+        }
+        nomiNormalizzati = Dizionario.da(nomi, fuoriHeap);
+        indiceTrigrammi = IndiceInvertito.da(costruisciIndiceTrigrammi(nomi), fuoriHeap);
+        conteggi = Conteggi.calcola(colonne, indiceServizi);
+        permutazioni = Permutazioni.calcola(colonne, fuoriHeap);
+        tutteLeRighe = fuoriHeap ? null : sequenza(colonne.numeroRighe());
+    }
+
+    /**
+     * Costruisce il gestore su colonne e indici già calcolati, letti da uno snapshot.
+     */
+    private GestoreCSV(ColonneCodificate colonne, EnumMap<Colonna, IndiceInvertito> indiciColonne,
+                       EnumMap<Servizio, BitSet> indiceServizi, Dizionario nomiNormalizzati,
+                       IndiceInvertito indiceTrigrammi, Conteggi conteggi, Permutazioni permutazioni,
+                       boolean fuoriHeap) {
+        this.colonne = colonne;
+        this.indiciColonne = indiciColonne;
+        this.indiceServizi = indiceServizi;
+        this.nomiNormalizzati = nomiNormalizzati;
+        this.indiceTrigrammi = indiceTrigrammi;
+        this.conteggi = conteggi;
+        this.permutazioni = permutazioni;
+        this.tutteLeRighe = fuoriHeap ? null : sequenza(colonne.numeroRighe());
+    }
+
+    /**
+     * Legge le righe dal file CSV; un file illeggibile dà un dataset vuoto.
+     */
+    private static ColonneCodificate leggiCSV(String csvPath, boolean fuoriHeap) {
+        try {
+            // Lettura in parallelo, righe nell'ordine del file (incluse eventuali intestazioni)
+            return CaricatoreCSV.carica(csvPath, fuoriHeap);
         } catch (IOException e) {
             // Gestione dell'eccezione in caso di errore di I/O sul file
             System.err.println("Errore durante la lettura del CSV: " + e.getMessage());
+            return ColonneCodificate.vuote();
+        }
+    }
+
+    /**
+     * Restituisce gli indici 0..n-1.
+     */
+    private static int[] sequenza(int n) {
+        int[] righe = new int[n];
+        Arrays.setAll(righe, i -> i);
+        return righe;
+    }
+
+    /**
+     * Scrive colonne e indici nello snapshot binario, nell'ordine letto da
+     * {@link #leggi(ByteBuffer)}.
+     *
+     * @param out flusso dello snapshot
+     * @throws IOException se la scrittura fallisce
+     */
+    void scrivi(DataOutputStream out) throws IOException {
+        colonne.scrivi(out);
+        for (Colonna colonna : Colonna.values()) {
+            indiciColonne.get(colonna).scrivi(out);
         }
+        for (Servizio servizio : Servizio.values()) {
+            long[] parole = indiceServizi.get(servizio).toLongArray();
+            out.writeInt(parole.length);
+            for (long parola : parole) {
+                out.writeLong(parola);
+            }
+        }
+        nomiNormalizzati.scrivi(out);
+        indiceTrigrammi.scrivi(out);
+        conteggi.scrivi(out);
+        permutazioni.scrivi(out);
     }
 
     /**
-     * Splitta una riga CSV in campi, gestendo correttamente i valori tra virgolette
-     * e il delimitatore ';'. I campi vuoti vengono sostituiti con "NON_PRESENTE".
+     * Legge colonne e indici scritti da {@link #scrivi(DataOutputStream)},
+     * senza ricalcolare nulla.
      *
-     * @param line riga del CSV da elaborare
-     * @return array di stringhe contenente i campi
+     * @param in        dati dello snapshot
+     * @param fuoriHeap true per usare direttamente i byte dello snapshot per
+     *                  codici, dizionari, nomi normalizzati, posting list e permutazioni
+     * @return gestore con i dati dello snapshot
+     * @throws java.nio.BufferUnderflowException se i dati sono troncati
      */
-    private String[] splitCSV(String line) {
-        List<String> result = new ArrayList<>();
-        StringBuilder cur = new StringBuilder();
-        boolean inQuotes = false;
-        for (char c : line.toCharArray()) {
-            if (c == '"') {
-                inQuotes = !inQuotes;
-            } else if (c == ';' && !inQuotes) {
-                String field = cur.toString().trim();
-                result.add(field.isEmpty() ? "NON_PRESENTE" : field);
-                cur.setLength(0);
+    static GestoreCSV leggi(ByteBuffer in, boolean fuoriHeap) {
+        ColonneCodificate colonne = ColonneCodificate.leggi(in, fuoriHeap);
+        EnumMap<Colonna, IndiceInvertito> indiciColonne = new EnumMap<>(Colonna.class);
+        for (Colonna colonna : Colonna.values()) {
+            indiciColonne.put(colonna, IndiceInvertito.leggi(in, fuoriHeap));
+        }
+        EnumMap<Servizio, BitSet> indiceServizi = new EnumMap<>(Servizio.class);
+        for (Servizio servizio : Servizio.values()) {
+            long[] parole = new long[in.getInt()];
+            in.asLongBuffer().get(parole);
+            in.position(in.position() + parole.length * Long.BYTES);
+            indiceServizi.put(servizio, BitSet.valueOf(parole));
+        }
+        Dizionario nomiNormalizzati = Dizionario.leggi(in, fuoriHeap);
+        IndiceInvertito indiceTrigrammi = IndiceInvertito.leggi(in, fuoriHeap);
+        Conteggi conteggi = Conteggi.leggi(in);
+        Permutazioni permutazioni = Permutazioni.leggi(in, fuoriHeap);
+        return new GestoreCSV(colonne, indiciColonne, indiceServizi, nomiNormalizzati, indiceTrigrammi,
+                conteggi, permutazioni, fuoriHeap);
+    }
+
+    /**
+     * Normalizza un valore per il confronto case-insensitive negli indici.
+     *
+     * @param valore valore da normalizzare (può essere null)
+     * @return valore in minuscolo, o stringa vuota se null
+     */
+    static String normalizza(String valore) {
+        return valore == null ? "" : valore.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Costruisce un indice invertito sulla colonna indicata: per ogni valore
+     * normalizzato memorizza gli indici (crescenti) delle righe corrispondenti.
+     *
+     * @param colonna colonna da indicizzare
+     * @return mappa da valore normalizzato a posting list
+     */
+    private Map<String, int[]> costruisciIndice(Colonna colonna) {
+        int campo = colonna.getCampo();
+        int[][] gruppi = colonne.righePerCodice(campo);
+        Map<String, int[]> indice = new HashMap<>(gruppi.length * 2);
+        for (int v = 0; v < gruppi.length; v++) {
+            // Valori che differiscono solo per maiuscole condividono la chiave
+            indice.merge(normalizza(colonne.valore(campo, v)), gruppi[v], GestoreCSV::unisci);
+        }
+        return indice;
+    }
+
+    /**
+     * Unisce due posting list ordinate e disgiunte.
+     *
+     * @param a prima lista crescente
+     * @param b seconda lista crescente
+     * @return elementi di entrambe, in ordine crescente
+     */
+    private static int[] unisci(int[] a, int[] b) {
+        int[] out = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            out[n++] = j == b.length || (i < a.length && a[i] < b[j]) ? a[i++] : b[j++];
+        }
+        return out;
+    }
+
+    /**
+     * Costruisce un bitset per ciascun servizio SI/NO. Il valore "SI" viene
+     * cercato una volta nel dizionario di ogni campo, poi si confrontano i codici.
+     *
+     * @return mappa da servizio a bitset delle righe che lo offrono
+     */
+    private EnumMap<Servizio, BitSet> costruisciIndiceServizi() {
+        EnumMap<Servizio, BitSet> indice = new EnumMap<>(Servizio.class);
+        for (Servizio servizio : Servizio.values()) {
+            BitSet bits = new BitSet(colonne.numeroRighe());
+            for (int campo : servizio.getCampi()) {
+                BitSet si = new BitSet();
+                for (int v = 0; v < colonne.dimensioneDizionario(campo); v++) {
+                    if (colonne.valore(campo, v).equalsIgnoreCase("SI")) {
+                        si.set(v);
+                    }
+                }
+                bits.or(colonne.righeConCodici(campo, si));
+            }
+            indice.put(servizio, bits);
+        }
+        return indice;
+    }
+
+    /**
+     * Costruisce l'indice a trigrammi sui nomi normalizzati. Ogni riga compare
+     * al più una volta per trigramma anche se questo si ripete nel nome.
+     *
+     * @param nomi nomi normalizzati, per codice del nome
+     * @return mappa da trigramma a posting list
+     */
+    private Map<String, int[]> costruisciIndiceTrigrammi(List<String> nomi) {
+        Map<String, List<Integer>> accumulo = new HashMap<>();
+        for (int i = 0; i < colonne.numeroRighe(); i++) {
+            String nome = nomi.get(colonne.codice(CAMPO_NOME, i));
+            for (int j = 0; j + N_GRAMMA <= nome.length(); j++) {
+                List<Integer> righe = accumulo.computeIfAbsent(nome.substring(j, j + N_GRAMMA), k -> new ArrayList<>());
+                // Le righe arrivano in ordine: basta confrontare l'ultima per evitare duplicati
+                if (righe.isEmpty() || righe.get(righe.size() - 1) != i) {
+                    righe.add(i);
+                }
+            }
+        }
+        Map<String, int[]> indice = new HashMap<>(accumulo.size() * 2);
+        accumulo.forEach((trigramma, righe) ->
+                indice.put(trigramma, righe.stream().mapToInt(Integer::intValue).toArray()));
+        return indice;
+    }
+
+    /**
+     * Restituisce le posting list dei trigrammi distinti della parola,
+     * ordinate per lunghezza crescente.
+     *
+     * @param parola parola già normalizzata, lunga almeno N_GRAMMA caratteri
+     * @return posting list dei trigrammi (una lista vuota indica nessun risultato possibile)
+     */
+    private List<int[]> postingTrigrammi(String parola) {
+        Set<String> visti = new HashSet<>();
+        List<int[]> liste = new ArrayList<>();
+        for (int j = 0; j + N_GRAMMA <= parola.length(); j++) {
+            String trigramma = parola.substring(j, j + N_GRAMMA);
+            if (visti.add(trigramma)) {
+                liste.add(indiceTrigrammi.righe(trigramma));
+            }
+        }
+        liste.sort(Comparator.comparingInt(l -> l.length));
+        return liste;
+    }
+
+    /**
+     * Interseca due posting list ordinate.
+     *
+     * @param a prima lista crescente
+     * @param b seconda lista crescente
+     * @return elementi comuni, in ordine crescente
+     */
+    private static int[] interseca(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
             } else {
-                cur.append(c);
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Cerca le righe il cui nome contiene la parola indicata (case-insensitive).
+     * Con parole di almeno tre caratteri i candidati vengono ristretti
+     * intersecando le posting list dei trigrammi e solo questi sono verificati;
+     * parole più corte richiedono la verifica dei nomi distinti e una
+     * scansione dei soli codici.
+     *
+     * @param parola sottostringa da cercare
+     * @return indici crescenti delle righe corrispondenti
+     */
+    int[] righePerNome(String parola) {
+        String kw = normalizza(parola);
+        byte[] codificata = kw.getBytes(StandardCharsets.UTF_8);
+        if (kw.length() < N_GRAMMA) {
+            BitSet nomi = new BitSet(nomiNormalizzati.dimensione());
+            for (int v = 0; v < nomiNormalizzati.dimensione(); v++) {
+                if (nomiNormalizzati.contiene(v, codificata)) {
+                    nomi.set(v);
+                }
             }
+            return colonne.righeConCodici(CAMPO_NOME, nomi).stream().toArray();
+        }
+        List<int[]> liste = postingTrigrammi(kw);
+        int[] candidati = liste.get(0);
+        for (int k = 1; k < liste.size() && candidati.length > 0; k++) {
+            candidati = interseca(candidati, liste.get(k));
         }
-        // Aggiunge l'ultimo campo residuo
-        String last = cur.toString().trim();
-        result.add(last.isEmpty() ? "NON_PRESENTE" : last);
-        return result.toArray(new String[0]);
+
+        int[] out = new int[candidati.length];
+        int trovati = 0;
+        for (int r : candidati) {
+            // Verifica finale: i trigrammi non garantiscono la contiguità
+            if (nomeContiene(r, codificata)) {
+                out[trovati++] = r;
+            }
+        }
+        return Arrays.copyOf(out, trovati);
+    }
+
+    /**
+     * Stima dall'indice a trigrammi quante righe contengono la parola nel nome.
+     *
+     * @param parola sottostringa da cercare
+     * @return limite superiore del numero di righe corrispondenti
+     */
+    int stimaPerNome(String parola) {
+        String kw = normalizza(parola);
+        if (kw.length() < N_GRAMMA) {
+            return colonne.numeroRighe();
+        }
+        // La lista più corta limita i risultati: basta la lunghezza, senza copiarla
+        int stima = colonne.numeroRighe();
+        for (int j = 0; j + N_GRAMMA <= kw.length(); j++) {
+            stima = Math.min(stima, indiceTrigrammi.numeroRighe(kw.substring(j, j + N_GRAMMA)));
+        }
+        return stima;
+    }
+
+    /**
+     * Verifica se il nome della riga indicata contiene la parola (case-insensitive).
+     *
+     * @param riga   indice (0-based) della riga
+     * @param parola sottostringa già normalizzata, in UTF-8
+     * @return true se il nome la contiene
+     */
+    boolean nomeContiene(int riga, byte[] parola) {
+        return nomiNormalizzati.contiene(colonne.codice(CAMPO_NOME, riga), parola);
+    }
+
+    /**
+     * Cerca un valore nell'indice invertito della colonna indicata.
+     * L'array restituito può essere condiviso con l'indice e non va modificato.
+     *
+     * @param colonna colonna su cui cercare
+     * @param valore  valore richiesto (case-insensitive)
+     * @return indici crescenti delle righe corrispondenti, eventualmente vuoto
+     */
+    int[] righePer(Colonna colonna, String valore) {
+        return indiciColonne.get(colonna).righe(normalizza(valore));
+    }
+
+    /**
+     * Conta le righe con il valore indicato nella colonna, senza copiarne la posting list.
+     *
+     * @param colonna colonna su cui cercare
+     * @param valore  valore richiesto (case-insensitive)
+     * @return numero di righe corrispondenti
+     */
+    int numeroRighePer(Colonna colonna, String valore) {
+        return indiciColonne.get(colonna).numeroRighe(normalizza(valore));
+    }
+
+    /**
+     * Restituisce il bitset delle righe che offrono il servizio indicato.
+     * Il bitset è condiviso con l'indice e non va modificato.
+     *
+     * @param servizio servizio richiesto
+     * @return bitset delle righe
+     */
+    BitSet righeConServizio(Servizio servizio) {
+        return indiceServizi.get(servizio);
+    }
+
+    /**
+     * Restituisce la forma di presentazione della riga, codificata in UTF-8 e
+     * terminata da '\n', composta al momento dai byte dei dizionari.
+     *
+     * @param idx indice (0-based) della riga
+     * @return buffer posizionato all'inizio della riga
+     */
+    ByteBuffer rigaCodificata(int idx) {
+        return ByteBuffer.wrap(colonne.presentazione(idx));
+    }
+
+    /**
+     * Restituisce la lunghezza in byte di {@link #rigaCodificata(int)}, senza comporre la riga.
+     *
+     * @param idx indice (0-based) della riga
+     * @return byte della riga, '\n' compreso
+     */
+    int lunghezzaRiga(int idx) {
+        return colonne.lunghezzaPresentazione(idx);
+    }
+
+    /**
+     * Restituisce i campi di tutte le righe in forma colonnare e codificata a dizionario.
+     *
+     * @return colonne del dataset
+     */
+    ColonneCodificate getColonne() {
+        return colonne;
+    }
+
+    /**
+     * Restituisce le righe ordinate per ciascun campo ordinabile.
+     *
+     * @return permutazioni del dataset
+     */
+    Permutazioni getPermutazioni() {
+        return permutazioni;
+    }
+
+    /**
+     * Restituisce gli indici di tutte le righe. L'array può essere condiviso e non va modificato.
+     *
+     * @return indici 0..n-1
+     */
+    int[] tutteLeRighe() {
+        return tutteLeRighe != null ? tutteLeRighe : sequenza(colonne.numeroRighe());
+    }
+
+    /**
+     * Restituisce il bitset delle righe con il marchio indicato ("Q", "Yes" o "Ecolabel").
+     * Il bitset è condiviso con l'indice e non va modificato.
+     *
+     * @param marchio marchio da ricercare (case-insensitive)
+     * @return bitset delle righe, vuoto se il marchio non è riconosciuto
+     */
+    BitSet righePerMarchio(String marchio) {
+        Servizio servizio = Servizio.daNome(marchio);
+        if (servizio != Servizio.ECOLABEL && servizio != Servizio.MARCHIO_Q && servizio != Servizio.MARCHIO_YES) {
+            return new BitSet();
+        }
+        return indiceServizi.get(servizio);
+    }
+
+    /**
+     * Converte un bitset di righe nella lista delle strutture corrispondenti.
+     *
+     * @param righe bitset delle righe selezionate
+     * @return lista di strutture in ordine di riga
+     */
+    private List<StrutturaRicettiva> materializza(BitSet righe) {
+        List<StrutturaRicettiva> risultato = new ArrayList<>(righe.cardinality());
+        for (int r = righe.nextSetBit(0); r >= 0; r = righe.nextSetBit(r + 1)) {
+            risultato.add(colonne.struttura(r));
+        }
+        return risultato;
+    }
+
+    /**
+     * Converte una posting list nella lista delle strutture corrispondenti.
+     *
+     * @param righe indici delle righe
+     * @return lista di strutture nello stesso ordine
+     */
+    private List<StrutturaRicettiva> materializza(int[] righe) {
+        List<StrutturaRicettiva> risultato = new ArrayList<>(righe.length);
+        for (int r : righe) {
+            risultato.add(colonne.struttura(r));
+        }
+        return risultato;
     }
 
     /**
@@ -90,8 +548,8 @@ public class GestoreCSV {
      * @return stringa CSV della struttura o codice di errore se indice non valido
      */
     public String getRiga(int idx) {
-        if (idx >= 0 && idx < strutture.size()) {
-            return strutture.get(idx).toString();
+        if (idx >= 0 && idx < colonne.numeroRighe()) {
+            return colonne.struttura(idx).toString();
         } else {
             return Protocollo.ERRORE_RIGA;
         }
@@ -103,16 +561,26 @@ public class GestoreCSV {
      * @return conteggio delle strutture
      */
     public int getNumeroStrutture() {
-        return strutture.size();
+        return colonne.numeroRighe();
     }
 
     /**
-     * Restituisce una copia della lista di tutte le strutture caricate.
+     * Restituisce l'identificativo del caricamento: due istanze caricate
+     * in momenti diversi hanno generazioni diverse.
+     *
+     * @return generazione del dataset
+     */
+    long getGenerazione() {
+        return generazione;
+    }
+
+    /**
+     * Restituisce la lista di tutte le strutture caricate, create al momento.
      *
      * @return lista di StrutturaRicettiva
      */
     public List<StrutturaRicettiva> getTutteLeStrutture() {
-        return new ArrayList<>(strutture);
+        return materializza(tutteLeRighe());
     }
 
     /**
@@ -122,9 +590,7 @@ public class GestoreCSV {
      * @return lista di strutture corrispondenti
      */
     public List<StrutturaRicettiva> filtraPerComune(String comune) {
-        return strutture.stream()
-                .filter(s -> s.haComune(comune))
-                .collect(Collectors.toList());
+        return materializza(righePer(Colonna.COMUNE, comune));
     }
 
     /**
@@ -134,9 +600,7 @@ public class GestoreCSV {
      * @return lista di strutture corrispondenti
      */
     public List<StrutturaRicettiva> filtraPerProvincia(String provincia) {
-        return strutture.stream()
-                .filter(s -> s.haProvincia(provincia))
-                .collect(Collectors.toList());
+        return materializza(righePer(Colonna.PROVINCIA, provincia));
     }
 
     /**
@@ -146,9 +610,7 @@ public class GestoreCSV {
      * @return lista di strutture con il rating specificato
      */
     public List<StrutturaRicettiva> filtraPerStelle(String stelle) {
-        return strutture.stream()
-                .filter(s -> s.haStelle(stelle))
-                .collect(Collectors.toList());
+        return materializza(righePer(Colonna.STELLE, stelle));
     }
 
     /**
@@ -158,9 +620,7 @@ public class GestoreCSV {
      * @return lista di strutture affiliate
      */
     public List<StrutturaRicettiva> filtraPerATL(String atl) {
-        return strutture.stream()
-                .filter(s -> atl.equalsIgnoreCase(s.getDenominazioneATL()))
-                .collect(Collectors.toList());
+        return materializza(righePer(Colonna.ATL, atl));
     }
 
     /**
@@ -170,9 +630,7 @@ public class GestoreCSV {
      * @return lista di strutture corrispondenti
      */
     public List<StrutturaRicettiva> filtraPerTipologia(String tipologia) {
-        return strutture.stream()
-                .filter(s -> s.getChiaveTipologia().equalsIgnoreCase(tipologia))
-                .collect(Collectors.toList());
+        return materializza(righePer(Colonna.TIPOLOGIA, tipologia));
     }
 
     /**
@@ -182,9 +640,7 @@ public class GestoreCSV {
      * @return lista di strutture con il marchio indicato
      */
     public List<StrutturaRicettiva> filtraPerMarchio(String marchio) {
-        return strutture.stream()
-                .filter(s -> s.haMarchio(marchio))
-                .collect(Collectors.toList());
+        return materializza(righePerMarchio(marchio));
     }
 
     /**
@@ -193,9 +649,7 @@ public class GestoreCSV {
      * @return lista di strutture con idoneità disabili
      */
     public List<StrutturaRicettiva> filtraAccessibiliDisabili() {
-        return strutture.stream()
-                .filter(StrutturaRicettiva::isIdoneitaDisabili)
-                .collect(Collectors.toList());
+        return materializza(indiceServizi.get(Servizio.DISABILI));
     }
 
     /**
@@ -204,10 +658,7 @@ public class GestoreCSV {
      * @return lista di strutture con aria condizionata
      */
     public List<StrutturaRicettiva> filtraConAriaCondizionata() {
-        return strutture.stream()
-                .filter(s -> "SI".equalsIgnoreCase(s.getAriaCondizionataCamere())
-                        || "SI".equalsIgnoreCase(s.getAriaCondizionataAppartamenti()))
-                .collect(Collectors.toList());
+        return materializza(indiceServizi.get(Servizio.ARIA_CONDIZIONATA));
     }
 
     /**
@@ -216,9 +667,7 @@ public class GestoreCSV {
      * @return lista di strutture che accettano carte
      */
     public List<StrutturaRicettiva> filtraCheAccettanoCarte() {
-        return strutture.stream()
-                .filter(StrutturaRicettiva::accettaCartaCredito)
-                .collect(Collectors.toList());
+        return materializza(indiceServizi.get(Servizio.CARTE));
     }
 
     /**
@@ -227,9 +676,7 @@ public class GestoreCSV {
      * @return lista di strutture che accettano animali
      */
     public List<StrutturaRicettiva> filtraCheAccettanoAnimali() {
-        return strutture.stream()
-                .filter(StrutturaRicettiva::accettaAnimali)
-                .collect(Collectors.toList());
+        return materializza(indiceServizi.get(Servizio.ANIMALI));
     }
 
     /**
@@ -238,9 +685,58 @@ public class GestoreCSV {
      * @return lista di strutture con parcheggio
      */
     public List<StrutturaRicettiva> filtraCheHannoParcheggio() {
-        return strutture.stream()
-                .filter(StrutturaRicettiva::haParcheggio)
-                .collect(Collectors.toList());
+        return materializza(indiceServizi.get(Servizio.PARCHEGGIO));
+    }
+
+    /**
+     * Filtra le strutture che offrono una combinazione di servizi.
+     * L'espressione usa '+' per l'AND e '|' per l'OR, con l'AND che lega
+     * più dell'OR: "animali+parcheggio|garage" equivale a
+     * (animali AND parcheggio) OR garage.
+     *
+     * @param espressione combinazione di nomi di servizi (vedi {@link Servizio})
+     * @return lista di strutture che soddisfano la combinazione
+     * @throws IllegalArgumentException se l'espressione contiene un servizio sconosciuto
+     */
+    public List<StrutturaRicettiva> filtraPerServizi(String espressione) {
+        return materializza(righePerServizi(espressione));
+    }
+
+    /**
+     * Valuta una combinazione di servizi con operazioni bitwise sugli indici.
+     *
+     * @param espressione combinazione di servizi ('+' = AND, '|' = OR)
+     * @return bitset delle righe selezionate (copia modificabile)
+     * @throws IllegalArgumentException se l'espressione contiene un servizio sconosciuto
+     */
+    public BitSet righePerServizi(String espressione) {
+        BitSet risultato = new BitSet(colonne.numeroRighe());
+        for (String gruppo : espressione.split("\\|")) {
+            BitSet congiunzione = null;
+            for (String nome : gruppo.split("\\+")) {
+                Servizio servizio = Servizio.daNome(nome);
+                if (servizio == null) {
+                    throw new IllegalArgumentException("Servizio sconosciuto: " + nome.trim());
+                }
+                if (congiunzione == null) {
+                    congiunzione = (BitSet) indiceServizi.get(servizio).clone();
+                } else {
+                    congiunzione.and(indiceServizi.get(servizio));
+                }
+            }
+            risultato.or(congiunzione);
+        }
+        return risultato;
+    }
+
+    /**
+     * Filtra le strutture che soddisfano una query composta.
+     *
+     * @param query interrogazione già analizzata
+     * @return lista di strutture in ordine di riga
+     */
+    public List<StrutturaRicettiva> filtraPerQuery(Interrogazione query) {
+        return materializza(query.esegui(this));
     }
 
     /**
@@ -250,9 +746,7 @@ public class GestoreCSV {
      * @return lista di strutture corrispondenti
      */
     public List<StrutturaRicettiva> filtraPerNome(String keyword) {
-        return strutture.stream()
-                .filter(s -> s.contieneNome(keyword))
-                .collect(Collectors.toList());
+        return materializza(righePerNome(keyword));
     }
 
     /**
@@ -261,9 +755,7 @@ public class GestoreCSV {
      * @return insieme dei nomi dei comuni
      */
     public Set<String> getComuniPresenti() {
-        return strutture.stream()
-                .map(StrutturaRicettiva::getChiaveComune)
-                .collect(Collectors.toCollection(TreeSet::new));
+        return valoriPresenti(Colonna.COMUNE);
     }
 
     /**
@@ -272,9 +764,7 @@ public class GestoreCSV {
      * @return insieme delle tipologie
      */
     public Set<String> getTipologiePresenti() {
-        return strutture.stream()
-                .map(StrutturaRicettiva::getChiaveTipologia)
-                .collect(Collectors.toCollection(TreeSet::new));
+        return valoriPresenti(Colonna.TIPOLOGIA);
     }
 
     /**
@@ -283,8 +773,7 @@ public class GestoreCSV {
      * @return mappa da comune a lista di strutture
      */
     public Map<String, List<StrutturaRicettiva>> raggruppaPerComune() {
-        return strutture.stream()
-                .collect(Collectors.groupingBy(StrutturaRicettiva::getChiaveComune));
+        return raggruppa(Colonna.COMUNE);
     }
 
     /**
@@ -293,8 +782,7 @@ public class GestoreCSV {
      * @return mappa da tipologia a lista di strutture
      */
     public Map<String, List<StrutturaRicettiva>> raggruppaPerTipologia() {
-        return strutture.stream()
-                .collect(Collectors.groupingBy(StrutturaRicettiva::getChiaveTipologia));
+        return raggruppa(Colonna.TIPOLOGIA);
     }
 
     /**
@@ -303,8 +791,7 @@ public class GestoreCSV {
      * @return mappa da comune a conteggio
      */
     public Map<String, Long> contaPerComune() {
-        return strutture.stream()
-                .collect(Collectors.groupingBy(StrutturaRicettiva::getChiaveComune, Collectors.counting()));
+        return contaPer(Colonna.COMUNE, null);
     }
 
     /**
@@ -313,8 +800,86 @@ public class GestoreCSV {
      * @return mappa da tipologia a conteggio
      */
     public Map<String, Long> contaPerTipologia() {
-        return strutture.stream()
-                .collect(Collectors.groupingBy(StrutturaRicettiva::getChiaveTipologia, Collectors.counting()));
+        return contaPer(Colonna.TIPOLOGIA, null);
+    }
+
+    /**
+     * Conta le strutture per valore della colonna, eventualmente solo tra
+     * quelle che offrono un servizio. Legge i contatori del caricamento.
+     *
+     * @param colonna colonna da contare
+     * @param filtro  servizio richiesto, o null per tutte le strutture
+     * @return mappa da valore a conteggio, senza i valori con conteggio 0
+     */
+    public Map<String, Long> contaPer(Colonna colonna, Servizio filtro) {
+        int[] perCodice = conteggi.perColonna(colonna, filtro);
+        Map<String, Long> risultato = new HashMap<>(perCodice.length * 2);
+        for (int v = 0; v < perCodice.length; v++) {
+            if (perCodice[v] > 0) {
+                risultato.put(colonne.valore(colonna.getCampo(), v), (long) perCodice[v]);
+            }
+        }
+        return risultato;
+    }
+
+    /**
+     * Conta le strutture per coppia di valori di due colonne (tabella pivot),
+     * eventualmente solo tra quelle che offrono un servizio. Legge i
+     * contatori del caricamento.
+     *
+     * @param prima   colonna del primo livello
+     * @param seconda colonna del secondo livello, diversa dalla prima
+     * @param filtro  servizio richiesto, o null per tutte le strutture
+     * @return mappa da valore della prima colonna a conteggi per valore della
+     *         seconda, senza le coppie con conteggio 0
+     * @throws IllegalArgumentException se le due colonne coincidono
+     */
+    public Map<String, Map<String, Long>> contaPer(Colonna prima, Colonna seconda, Servizio filtro) {
+        if (prima == seconda) {
+            throw new IllegalArgumentException("Colonne uguali: " + prima.getNome());
+        }
+        int[][] coppie = conteggi.perCoppia(prima, seconda, filtro);
+        Map<String, Map<String, Long>> risultato = new HashMap<>();
+        for (int k = 0; k < coppie[2].length; k++) {
+            if (coppie[2][k] > 0) {
+                risultato.computeIfAbsent(colonne.valore(prima.getCampo(), coppie[0][k]), v -> new HashMap<>())
+                        .put(colonne.valore(seconda.getCampo(), coppie[1][k]), (long) coppie[2][k]);
+            }
+        }
+        return risultato;
+    }
+
+    /**
+     * Conta le strutture che offrono il servizio, dai contatori del caricamento.
+     *
+     * @param servizio servizio richiesto
+     * @return numero di strutture con il servizio
+     */
+    public int contaConServizio(Servizio servizio) {
+        return conteggi.conServizio(servizio);
+    }
+
+    /**
+     * Restituisce i valori distinti della colonna, letti dal suo dizionario.
+     */
+    private Set<String> valoriPresenti(Colonna colonna) {
+        Set<String> valori = new TreeSet<>();
+        for (int v = 0; v < colonne.dimensioneDizionario(colonna.getCampo()); v++) {
+            valori.add(colonne.valore(colonna.getCampo(), v));
+        }
+        return valori;
+    }
+
+    /**
+     * Raggruppa le righe per codice della colonna e crea le strutture di ogni gruppo.
+     */
+    private Map<String, List<StrutturaRicettiva>> raggruppa(Colonna colonna) {
+        int[][] gruppi = colonne.righePerCodice(colonna.getCampo());
+        Map<String, List<StrutturaRicettiva>> risultato = new HashMap<>(gruppi.length * 2);
+        for (int v = 0; v < gruppi.length; v++) {
+            risultato.put(colonne.valore(colonna.getCampo(), v), materializza(gruppi[v]));
+        }
+        return risultato;
     }
 
     /**
@@ -323,8 +888,10 @@ public class GestoreCSV {
      * @return lista di righe CSV, una per struttura
      */
     public List<String> esportaCSV() {
-        return strutture.stream()
-                .map(StrutturaRicettiva::toCSV)
-                .collect(Collectors.toList());
+        List<String> righe = new ArrayList<>(colonne.numeroRighe());
+        for (int r = 0; r < colonne.numeroRighe(); r++) {
+            righe.add(colonne.struttura(r).toCSV());
+        }
+        return righe;
     }
 }
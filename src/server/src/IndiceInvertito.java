@@ -0,0 +1,170 @@
+package server.src;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Indice invertito: chiave -> indici crescenti delle righe (posting list).
+ *
+ * <p>Nell'heap ogni posting list è un int[] condiviso con chi la richiede.
+ * Fuori heap le liste sono concatenate in un solo buffer, con una tabella
+ * di offset come per i {@link Dizionario}: nell'heap restano solo le chiavi,
+ * e una lista diventa un int[] solo quando viene richiesta. Lunghezza e
+ * appartenenza di una riga si leggono direttamente dal buffer.
+ */
+final class IndiceInvertito {
+    /** Posting list vuota condivisa per le chiavi assenti. */
+    private static final int[] NESSUNA_RIGA = new int[0];
+
+    /** Posizione della posting list di ogni chiave. */
+    private final Map<String, Integer> posizioni;
+    /** Chiavi per posizione. */
+    private final String[] chiavi;
+    /** Posting list per posizione se l'indice è nell'heap, altrimenti null. */
+    private final int[][] liste;
+    /** Fuori heap: offset (int, in righe) della lista p, da inizi[p] a inizi[p + 1] escluso. */
+    private final ByteBuffer inizi;
+    /** Fuori heap: righe (int) di tutte le liste, una dopo l'altra. */
+    private final ByteBuffer righe;
+
+    private IndiceInvertito(String[] chiavi, int[][] liste, ByteBuffer inizi, ByteBuffer righe) {
+        this.chiavi = chiavi;
+        this.liste = liste;
+        this.inizi = inizi;
+        this.righe = righe;
+        this.posizioni = new HashMap<>(chiavi.length * 2);
+        for (int p = 0; p < chiavi.length; p++) {
+            posizioni.put(chiavi[p], p);
+        }
+    }
+
+    /**
+     * Costruisce l'indice dalle posting list indicate.
+     *
+     * @param indice    chiave -> indici crescenti delle righe
+     * @param fuoriHeap true per copiare le liste in buffer diretti
+     * @return indice invertito
+     */
+    static IndiceInvertito da(Map<String, int[]> indice, boolean fuoriHeap) {
+        String[] chiavi = indice.keySet().toArray(new String[0]);
+        int[][] liste = new int[chiavi.length][];
+        long totale = 0;
+        for (int p = 0; p < chiavi.length; p++) {
+            liste[p] = indice.get(chiavi[p]);
+            totale += liste[p].length;
+        }
+        if (!fuoriHeap) {
+            return new IndiceInvertito(chiavi, liste, null, null);
+        }
+        ByteBuffer inizi = ColonneCodificate.alloca((chiavi.length + 1) * Integer.BYTES, true);
+        ByteBuffer righe = ColonneCodificate.alloca(Math.toIntExact(totale * Integer.BYTES), true);
+        for (int[] lista : liste) {
+            inizi.putInt(righe.position() / Integer.BYTES);
+            for (int r : lista) {
+                righe.putInt(r);
+            }
+        }
+        inizi.putInt(righe.position() / Integer.BYTES);
+        return new IndiceInvertito(chiavi, null, inizi.clear(), righe.clear());
+    }
+
+    /**
+     * Scrive l'indice nello snapshot binario: chiavi, offset e righe, questi
+     * ultimi nella stessa forma dei buffer fuori heap.
+     *
+     * @param out flusso dello snapshot
+     * @throws IOException se la scrittura fallisce
+     */
+    void scrivi(DataOutputStream out) throws IOException {
+        out.writeInt(chiavi.length);
+        for (String chiave : chiavi) {
+            SnapshotBinario.scriviTesto(out, chiave);
+        }
+        if (liste == null) {
+            SnapshotBinario.scriviBlocco(out, inizi);
+            SnapshotBinario.scriviBlocco(out, righe);
+            return;
+        }
+        // Interi little-endian come nei buffer
+        int inizio = 0;
+        for (int[] lista : liste) {
+            out.writeInt(Integer.reverseBytes(inizio));
+            inizio += lista.length;
+        }
+        out.writeInt(Integer.reverseBytes(inizio));
+        for (int[] lista : liste) {
+            for (int r : lista) {
+                out.writeInt(Integer.reverseBytes(r));
+            }
+        }
+    }
+
+    /**
+     * Legge un indice scritto da {@link #scrivi(DataOutputStream)}.
+     *
+     * @param in        dati dello snapshot
+     * @param fuoriHeap true per usare direttamente i byte mappati, false per copiare le liste nell'heap
+     * @return indice letto
+     */
+    static IndiceInvertito leggi(ByteBuffer in, boolean fuoriHeap) {
+        String[] chiavi = new String[in.getInt()];
+        for (int p = 0; p < chiavi.length; p++) {
+            chiavi[p] = SnapshotBinario.leggiTesto(in);
+        }
+        ByteBuffer inizi = SnapshotBinario.leggiBlocco(in, (chiavi.length + 1) * Integer.BYTES, fuoriHeap);
+        int totale = inizi.getInt(chiavi.length * Integer.BYTES);
+        ByteBuffer righe = SnapshotBinario.leggiBlocco(in, Math.multiplyExact(totale, Integer.BYTES), fuoriHeap);
+        if (fuoriHeap) {
+            return new IndiceInvertito(chiavi, null, inizi, righe);
+        }
+        int[][] liste = new int[chiavi.length][];
+        for (int p = 0; p < chiavi.length; p++) {
+            int inizio = inizi.getInt(p * Integer.BYTES);
+            liste[p] = new int[inizi.getInt((p + 1) * Integer.BYTES) - inizio];
+            righe.asIntBuffer().get(inizio, liste[p]);
+        }
+        return new IndiceInvertito(chiavi, liste, null, null);
+    }
+
+    /**
+     * Restituisce la posting list della chiave. Nell'heap l'array è condiviso
+     * con l'indice, fuori heap è una copia; in entrambi i casi non va modificato.
+     *
+     * @param chiave chiave cercata
+     * @return indici crescenti delle righe, eventualmente vuoto
+     */
+    int[] righe(String chiave) {
+        Integer p = posizioni.get(chiave);
+        if (p == null) {
+            return NESSUNA_RIGA;
+        }
+        if (liste != null) {
+            return liste[p];
+        }
+        int[] lista = new int[lunghezza(p)];
+        righe.asIntBuffer().get(inizio(p), lista);
+        return lista;
+    }
+
+    /**
+     * Restituisce la lunghezza della posting list della chiave, senza copiarla.
+     *
+     * @param chiave chiave cercata
+     * @return numero di righe con la chiave
+     */
+    int numeroRighe(String chiave) {
+        Integer p = posizioni.get(chiave);
+        return p == null ? 0 : liste != null ? liste[p].length : lunghezza(p);
+    }
+
+    private int inizio(int p) {
+        return inizi.getInt(p * Integer.BYTES);
+    }
+
+    private int lunghezza(int p) {
+        return inizio(p + 1) - inizio(p);
+    }
+}
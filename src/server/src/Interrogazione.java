@@ -0,0 +1,535 @@
+package server.src;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Interrogazione rappresenta una query composta sulle strutture ricettive,
+ * analizzata una sola volta in un albero di predicati.
+ *
+ * <p>Grammatica (gli spazi attorno agli operatori sono facoltativi):
+ * <pre>
+ *   espressione := congiunzione ( '|' congiunzione )*
+ *   congiunzione := fattore ( '&amp;' fattore )*
+ *   fattore     := '!' fattore | '(' espressione ')' | atomo
+ *   atomo       := colonna '=' valore | 'nome' '~' testo | servizio
+ * </pre>
+ * dove colonna è una {@link Colonna} e servizio un {@link Servizio},
+ * ad esempio {@code comune=torino & stelle=3 & animali}. Negazioni e
+ * parentesi possono annidarsi al più per {@value #MAX_ANNIDAMENTO} livelli.
+ *
+ * <p>In esecuzione il pianificatore valuta per primo, in ogni AND, il predicato
+ * indicizzato più selettivo e verifica i restanti solo sulle righe candidate.
+ */
+public final class Interrogazione {
+    /** Livelli massimi di negazioni e parentesi annidate. */
+    static final int MAX_ANNIDAMENTO = 100;
+
+    /** Radice dell'albero dei predicati. */
+    private final Nodo radice;
+    /** Testo originale della query, usato nella spiegazione del piano. */
+    private final String testo;
+
+    private Interrogazione(Nodo radice, String testo) {
+        this.radice = radice;
+        this.testo = testo;
+    }
+
+    /**
+     * Analizza il testo di una query e costruisce l'albero dei predicati.
+     *
+     * @param testo query da analizzare
+     * @return interrogazione pronta per l'esecuzione
+     * @throws IllegalArgumentException se la query non è sintatticamente valida
+     */
+    public static Interrogazione analizza(String testo) {
+        Analizzatore a = new Analizzatore(testo);
+        Nodo radice = a.espressione();
+        a.saltaSpazi();
+        if (!a.fine()) {
+            throw new IllegalArgumentException("carattere inatteso '" + a.corrente() + "'");
+        }
+        return new Interrogazione(radice, testo.trim());
+    }
+
+    /**
+     * Esegue la query sul gestore indicato.
+     *
+     * @param g gestore dei dati delle strutture
+     * @return bitset delle righe che soddisfano la query
+     */
+    public BitSet esegui(GestoreCSV g) {
+        return radice.valuta(g, null, 0);
+    }
+
+    /**
+     * Esegue la query e descrive il piano scelto con le cardinalità di ogni passo.
+     *
+     * @param g gestore dei dati delle strutture
+     * @return descrizione testuale multilinea del piano
+     */
+    public String spiega(GestoreCSV g) {
+        List<String> traccia = new ArrayList<>();
+        BitSet risultato = radice.valuta(g, traccia, 0);
+        StringBuilder sb = new StringBuilder("Piano per: ").append(testo);
+        for (String passo : traccia) {
+            sb.append('\n').append(passo);
+        }
+        sb.append("\nRisultato: ").append(risultato.cardinality()).append(" righe");
+        return sb.toString();
+    }
+
+    /**
+     * Aggiunge un passo alla traccia del piano, se richiesta.
+     */
+    private static void traccia(List<String> traccia, int livello, String passo) {
+        if (traccia != null) {
+            traccia.add("  ".repeat(livello) + "- " + passo);
+        }
+    }
+
+    /**
+     * Nodo dell'albero dei predicati.
+     */
+    private abstract static class Nodo {
+        /** Stima del numero di righe selezionate dal nodo. */
+        abstract int stima(GestoreCSV g);
+
+        /** True se il nodo può essere valutato dagli indici senza scansione. */
+        abstract boolean indicizzato();
+
+        /** Valuta il nodo su tutto il dataset. */
+        abstract BitSet valuta(GestoreCSV g, List<String> traccia, int livello);
+
+        /** Verifica il predicato su una singola riga. */
+        abstract boolean verifica(GestoreCSV g, int riga);
+    }
+
+    /** Predicato di uguaglianza su una colonna indicizzata. */
+    private static final class Uguaglianza extends Nodo {
+        private final Colonna colonna;
+        private final String valore;
+        /** Gestore per cui è stata risolta la posting list, o null. */
+        private GestoreCSV risolto;
+        /** Posting list del valore nel gestore risolto. */
+        private int[] righe;
+
+        Uguaglianza(Colonna colonna, String valore) {
+            this.colonna = colonna;
+            this.valore = valore;
+        }
+
+        @Override
+        int stima(GestoreCSV g) {
+            return g.numeroRighePer(colonna, valore);
+        }
+
+        @Override
+        boolean indicizzato() {
+            return true;
+        }
+
+        @Override
+        BitSet valuta(GestoreCSV g, List<String> traccia, int livello) {
+            int[] righe = righe(g);
+            BitSet bits = new BitSet(g.getNumeroStrutture());
+            for (int r : righe) {
+                bits.set(r);
+            }
+            traccia(traccia, livello, "indice " + this + " -> " + righe.length + " righe");
+            return bits;
+        }
+
+        @Override
+        boolean verifica(GestoreCSV g, int riga) {
+            return Arrays.binarySearch(righe(g), riga) >= 0;
+        }
+
+        /**
+         * Restituisce la posting list del valore, cercata nell'indice una sola
+         * volta per gestore invece che a ogni riga verificata.
+         */
+        private int[] righe(GestoreCSV g) {
+            if (risolto != g) {
+                righe = g.righePer(colonna, valore);
+                risolto = g;
+            }
+            return righe;
+        }
+
+        @Override
+        public String toString() {
+            return colonna.getNome() + "=" + valore;
+        }
+    }
+
+    /** Predicato su un servizio SI/NO, servito dall'indice bitset. */
+    private static final class ConServizio extends Nodo {
+        private final Servizio servizio;
+
+        ConServizio(Servizio servizio) {
+            this.servizio = servizio;
+        }
+
+        @Override
+        int stima(GestoreCSV g) {
+            return g.righeConServizio(servizio).cardinality();
+        }
+
+        @Override
+        boolean indicizzato() {
+            return true;
+        }
+
+        @Override
+        BitSet valuta(GestoreCSV g, List<String> traccia, int livello) {
+            BitSet bits = (BitSet) g.righeConServizio(servizio).clone();
+            traccia(traccia, livello, "indice " + this + " -> " + bits.cardinality() + " righe");
+            return bits;
+        }
+
+        @Override
+        boolean verifica(GestoreCSV g, int riga) {
+            return g.righeConServizio(servizio).get(riga);
+        }
+
+        @Override
+        public String toString() {
+            return servizio.getNome();
+        }
+    }
+
+    /**
+     * Ricerca di una sottostringa nel nome, servita dall'indice a trigrammi
+     * quando la parola ha almeno tre caratteri.
+     */
+    private static final class NomeContiene extends Nodo {
+        private final String parola;
+        /** Parola in UTF-8, confrontata direttamente con i byte dei nomi. */
+        private final byte[] codificata;
+
+        NomeContiene(String parola) {
+            this.parola = GestoreCSV.normalizza(parola);
+            this.codificata = this.parola.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        int stima(GestoreCSV g) {
+            return g.stimaPerNome(parola);
+        }
+
+        @Override
+        boolean indicizzato() {
+            return parola.length() >= 3;
+        }
+
+        @Override
+        BitSet valuta(GestoreCSV g, List<String> traccia, int livello) {
+            int[] righe = g.righePerNome(parola);
+            BitSet bits = new BitSet(g.getNumeroStrutture());
+            for (int r : righe) {
+                bits.set(r);
+            }
+            traccia(traccia, livello, (indicizzato() ? "indice trigrammi " : "scansione nomi ") + this
+                    + " -> " + righe.length + " righe");
+            return bits;
+        }
+
+        @Override
+        boolean verifica(GestoreCSV g, int riga) {
+            return g.nomeContiene(riga, codificata);
+        }
+
+        @Override
+        public String toString() {
+            return "nome~" + parola;
+        }
+    }
+
+    /** Negazione di un predicato. */
+    private static final class Negazione extends Nodo {
+        private final Nodo figlio;
+
+        Negazione(Nodo figlio) {
+            this.figlio = figlio;
+        }
+
+        @Override
+        int stima(GestoreCSV g) {
+            return g.getNumeroStrutture() - figlio.stima(g);
+        }
+
+        @Override
+        boolean indicizzato() {
+            return false;
+        }
+
+        @Override
+        BitSet valuta(GestoreCSV g, List<String> traccia, int livello) {
+            traccia(traccia, livello, "NOT");
+            BitSet bits = figlio.valuta(g, traccia, livello + 1);
+            bits.flip(0, g.getNumeroStrutture());
+            traccia(traccia, livello, "complemento -> " + bits.cardinality() + " righe");
+            return bits;
+        }
+
+        @Override
+        boolean verifica(GestoreCSV g, int riga) {
+            return !figlio.verifica(g, riga);
+        }
+
+        @Override
+        public String toString() {
+            return "!" + figlio;
+        }
+    }
+
+    /** Disgiunzione di predicati: unione dei risultati dei figli. */
+    private static final class Disgiunzione extends Nodo {
+        private final List<Nodo> figli;
+
+        Disgiunzione(List<Nodo> figli) {
+            this.figli = figli;
+        }
+
+        @Override
+        int stima(GestoreCSV g) {
+            long somma = 0;
+            for (Nodo f : figli) {
+                somma += f.stima(g);
+            }
+            return (int) Math.min(somma, g.getNumeroStrutture());
+        }
+
+        @Override
+        boolean indicizzato() {
+            return figli.stream().allMatch(Nodo::indicizzato);
+        }
+
+        @Override
+        BitSet valuta(GestoreCSV g, List<String> traccia, int livello) {
+            traccia(traccia, livello, "OR (" + figli.size() + " rami)");
+            BitSet bits = new BitSet(g.getNumeroStrutture());
+            for (Nodo f : figli) {
+                bits.or(f.valuta(g, traccia, livello + 1));
+            }
+            traccia(traccia, livello, "unione -> " + bits.cardinality() + " righe");
+            return bits;
+        }
+
+        @Override
+        boolean verifica(GestoreCSV g, int riga) {
+            for (Nodo f : figli) {
+                if (f.verifica(g, riga)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < figli.size(); i++) {
+                sb.append(i == 0 ? "" : " | ").append(figli.get(i));
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+    /**
+     * Congiunzione di predicati: il figlio indicizzato più selettivo fornisce
+     * i candidati, gli altri vengono verificati riga per riga in ordine di selettività.
+     */
+    private static final class Congiunzione extends Nodo {
+        private final List<Nodo> figli;
+
+        Congiunzione(List<Nodo> figli) {
+            this.figli = figli;
+        }
+
+        @Override
+        int stima(GestoreCSV g) {
+            int min = g.getNumeroStrutture();
+            for (Nodo f : figli) {
+                min = Math.min(min, f.stima(g));
+            }
+            return min;
+        }
+
+        @Override
+        boolean indicizzato() {
+            return figli.stream().anyMatch(Nodo::indicizzato);
+        }
+
+        @Override
+        BitSet valuta(GestoreCSV g, List<String> traccia, int livello) {
+            traccia(traccia, livello, "AND (" + figli.size() + " predicati)");
+            // Ordina: prima gli indicizzati, poi per cardinalità stimata crescente
+            List<Nodo> ordinati = new ArrayList<>(figli);
+            ordinati.sort(Comparator.comparing((Nodo f) -> !f.indicizzato())
+                    .thenComparingInt(f -> f.stima(g)));
+
+            BitSet candidati = ordinati.get(0).valuta(g, traccia, livello + 1);
+            for (Nodo f : ordinati.subList(1, ordinati.size())) {
+                int prima = candidati.cardinality();
+                for (int r = candidati.nextSetBit(0); r >= 0; r = candidati.nextSetBit(r + 1)) {
+                    if (!f.verifica(g, r)) {
+                        candidati.clear(r);
+                    }
+                }
+                traccia(traccia, livello + 1, "verifica " + f + " su " + prima
+                        + " candidati -> " + candidati.cardinality() + " righe");
+            }
+            return candidati;
+        }
+
+        @Override
+        boolean verifica(GestoreCSV g, int riga) {
+            for (Nodo f : figli) {
+                if (!f.verifica(g, riga)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < figli.size(); i++) {
+                sb.append(i == 0 ? "" : " & ").append(figli.get(i));
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+    /**
+     * Analizzatore a discesa ricorsiva per la grammatica delle query.
+     */
+    private static final class Analizzatore {
+        private final String s;
+        private int pos;
+        /** Negazioni e parentesi aperte attorno al fattore corrente. */
+        private int annidamento;
+
+        Analizzatore(String s) {
+            this.s = s;
+        }
+
+        boolean fine() {
+            return pos >= s.length();
+        }
+
+        char corrente() {
+            return s.charAt(pos);
+        }
+
+        void saltaSpazi() {
+            while (!fine() && Character.isWhitespace(corrente())) {
+                pos++;
+            }
+        }
+
+        /** Consuma il carattere indicato se è il prossimo non-spazio. */
+        boolean accetta(char c) {
+            saltaSpazi();
+            if (!fine() && corrente() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        Nodo espressione() {
+            List<Nodo> rami = new ArrayList<>();
+            rami.add(congiunzione());
+            while (accetta('|')) {
+                rami.add(congiunzione());
+            }
+            return rami.size() == 1 ? rami.get(0) : new Disgiunzione(rami);
+        }
+
+        Nodo congiunzione() {
+            List<Nodo> fattori = new ArrayList<>();
+            fattori.add(fattore());
+            while (accetta('&')) {
+                fattori.add(fattore());
+            }
+            return fattori.size() == 1 ? fattori.get(0) : new Congiunzione(fattori);
+        }
+
+        Nodo fattore() {
+            if (accetta('!')) {
+                entra();
+                Nodo figlio = fattore();
+                annidamento--;
+                return new Negazione(figlio);
+            }
+            if (accetta('(')) {
+                entra();
+                Nodo interno = espressione();
+                if (!accetta(')')) {
+                    throw new IllegalArgumentException("')' mancante");
+                }
+                annidamento--;
+                return interno;
+            }
+            return atomo();
+        }
+
+        /** Apre un livello di annidamento, rifiutando la query oltre il limite. */
+        private void entra() {
+            if (++annidamento > MAX_ANNIDAMENTO) {
+                throw new IllegalArgumentException("annidamento oltre " + MAX_ANNIDAMENTO + " livelli");
+            }
+        }
+
+        Nodo atomo() {
+            saltaSpazi();
+            int inizio = pos;
+            while (!fine() && "&|()!=~".indexOf(corrente()) < 0) {
+                pos++;
+            }
+            String nome = s.substring(inizio, pos).trim();
+            if (nome.isEmpty()) {
+                throw new IllegalArgumentException("predicato mancante");
+            }
+            if (accetta('=')) {
+                Colonna colonna = Colonna.daNome(nome);
+                if (colonna == null) {
+                    throw new IllegalArgumentException("colonna sconosciuta '" + nome + "'");
+                }
+                return new Uguaglianza(colonna, valore());
+            }
+            if (accetta('~')) {
+                if (!nome.equalsIgnoreCase("nome")) {
+                    throw new IllegalArgumentException("'~' è ammesso solo su nome");
+                }
+                return new NomeContiene(valore());
+            }
+            Servizio servizio = Servizio.daNome(nome);
+            if (servizio == null) {
+                throw new IllegalArgumentException("servizio sconosciuto '" + nome + "'");
+            }
+            return new ConServizio(servizio);
+        }
+
+        /** Legge un valore fino al prossimo operatore, spazi interni compresi. */
+        String valore() {
+            int inizio = pos;
+            while (!fine() && "&|()".indexOf(corrente()) < 0) {
+                pos++;
+            }
+            String v = s.substring(inizio, pos).trim();
+            if (v.isEmpty()) {
+                throw new IllegalArgumentException("valore mancante");
+            }
+            return v;
+        }
+    }
+}
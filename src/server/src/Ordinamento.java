@@ -0,0 +1,186 @@
+package server.src;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Ordinamento dei comandi che elencano strutture.
+ *
+ * <p>Un comando seguito da {@code ordina per <campo> [asc|desc]} restituisce
+ * le stesse righe ordinate per il campo (vedi {@link CampoOrdinamento}); con
+ * {@code top <k>} solo le prime k. I modificatori valgono per qualsiasi
+ * comando che elenca strutture e precedono quelli di {@link Paginazione}.
+ *
+ * <p>Le righe non vengono mai confrontate per valore: l'ordine viene dalle
+ * {@link Permutazioni} calcolate al caricamento. Se le righe selezionate sono
+ * molte rispetto a quelle richieste, basta scorrere la permutazione del
+ * campo tenendo quelle selezionate; altrimenti si ordinano le sole righe
+ * selezionate per rango del valore, e per le prime k si tiene un heap di k
+ * righe invece di ordinarle tutte.
+ */
+final class Ordinamento {
+    /** Modificatore "top k" in coda al comando. */
+    private static final Pattern TOP = Pattern.compile("\\s+" + Protocollo.TOP + "\\s+(\\S+)$");
+    /** Modificatore "ordina per campo [asc|desc]" in coda al comando. */
+    private static final Pattern ORDINA = Pattern.compile("\\s+" + Protocollo.ORDINA_PER + "\\s+(\\S+)(?:\\s+("
+            + Protocollo.CRESCENTE + "|" + Protocollo.DECRESCENTE + "))?$");
+
+    private Ordinamento() {
+    }
+
+    /**
+     * Elabora un comando già normalizzato applicando gli eventuali
+     * modificatori di ordinamento. I comandi senza modificatori e le
+     * risposte testuali passano invariati.
+     *
+     * @param g      gestore dei dati delle strutture
+     * @param cmd    comando normalizzato (trim e minuscolo), senza modificatori di paginazione
+     * @param esegui elaborazione del comando di base, senza modificatori
+     * @return righe ordinate, oppure la risposta del comando di base
+     */
+    static Risposta elabora(GestoreCSV g, String cmd, Function<String, Risposta> esegui) {
+        CampoOrdinamento campo = null;
+        boolean discendente = false;
+        int k = Integer.MAX_VALUE;
+        boolean modificato = false;
+        while (true) {
+            Matcher m = TOP.matcher(cmd);
+            if (m.find()) {
+                try {
+                    k = Integer.parseInt(m.group(1));
+                } catch (NumberFormatException e) {
+                    return Risposta.testo(Protocollo.ERRORE_ORDINE);
+                }
+                if (k <= 0) {
+                    return Risposta.testo(Protocollo.ERRORE_ORDINE);
+                }
+            } else if ((m = ORDINA.matcher(cmd)).find()) {
+                campo = CampoOrdinamento.daNome(m.group(1));
+                if (campo == null) {
+                    return Risposta.testo(Protocollo.ERRORE_COLONNA);
+                }
+                discendente = Protocollo.DECRESCENTE.equals(m.group(2));
+            } else {
+                break;
+            }
+            modificato = true;
+            cmd = cmd.substring(0, m.start());
+        }
+        if (!modificato) {
+            return esegui.apply(cmd);
+        }
+        Risposta base = esegui.apply(cmd);
+        if (!base.isElenco()) {
+            return base;
+        }
+        if (campo == null) {
+            // Solo "top": le prime k righe nell'ordine del CSV
+            return Risposta.righe(g, base.pagina(0, k, null, null).indiciRighe());
+        }
+        return Risposta.ordinate(g, ordina(g, base.indiciRighe(), campo, discendente, k));
+    }
+
+    /**
+     * Ordina le righe selezionate per il campo e ne restituisce le prime k.
+     *
+     * @param g           gestore dei dati delle strutture
+     * @param selezionate indici crescenti delle righe selezionate
+     * @param campo       campo di ordinamento
+     * @param discendente true per l'ordine decrescente
+     * @param k           numero massimo di righe da restituire
+     * @return righe nell'ordine richiesto
+     */
+    private static int[] ordina(GestoreCSV g, int[] selezionate, CampoOrdinamento campo, boolean discendente, int k) {
+        int m = selezionate.length;
+        int quante = Math.min(k, m);
+        if (quante == 0) {
+            return selezionate;
+        }
+        int n = g.getNumeroStrutture();
+        // Scorrendo la permutazione si visitano circa quante * n / m righe;
+        // ordinando le selezionate si fanno circa m * log2(quante) confronti
+        long visite = (long) quante * n / m;
+        long confronti = (long) m * (Integer.SIZE - Integer.numberOfLeadingZeros(quante));
+        if (visite <= confronti) {
+            return scorri(g, selezionate, campo, discendente, quante);
+        }
+        Permutazioni permutazioni = g.getPermutazioni();
+        ColonneCodificate colonne = g.getColonne();
+        // Chiave: rango del valore nei 32 bit alti, riga in quelli bassi (a parità di valore, ordine del CSV)
+        long[] chiavi = new long[quante];
+        int dimensione = 0;
+        for (int r : selezionate) {
+            long chiave = (long) permutazioni.chiave(campo, colonne.codice(campo.getCampo(), r), discendente) << 32 | r;
+            if (dimensione < quante) {
+                chiavi[dimensione++] = chiave;
+                if (dimensione == quante && quante < m) {
+                    creaHeap(chiavi);
+                }
+            } else if (chiave < chiavi[0]) {
+                chiavi[0] = chiave;
+                scendi(chiavi, 0);
+            }
+        }
+        Arrays.sort(chiavi);
+        int[] righe = new int[quante];
+        for (int i = 0; i < quante; i++) {
+            righe[i] = (int) chiavi[i];
+        }
+        return righe;
+    }
+
+    /**
+     * Scorre la permutazione del campo tenendo le prime righe selezionate.
+     */
+    private static int[] scorri(GestoreCSV g, int[] selezionate, CampoOrdinamento campo,
+                                boolean discendente, int quante) {
+        BitSet scelte = null;
+        if (selezionate.length < g.getNumeroStrutture()) {
+            scelte = new BitSet(g.getNumeroStrutture());
+            for (int r : selezionate) {
+                scelte.set(r);
+            }
+        }
+        BitSet filtro = scelte;
+        int[] righe = new int[quante];
+        int[] trovate = {0};
+        g.getPermutazioni().scorri(campo, g.getColonne(), discendente, r -> {
+            if (filtro == null || filtro.get(r)) {
+                righe[trovate[0]++] = r;
+            }
+            return trovate[0] < quante;
+        });
+        return righe;
+    }
+
+    /**
+     * Dispone le chiavi in un heap con la massima in cima.
+     */
+    private static void creaHeap(long[] chiavi) {
+        for (int i = chiavi.length / 2 - 1; i >= 0; i--) {
+            scendi(chiavi, i);
+        }
+    }
+
+    /**
+     * Fa scendere la chiave in posizione i finché non supera i figli.
+     */
+    private static void scendi(long[] chiavi, int i) {
+        long chiave = chiavi[i];
+        while (2 * i + 1 < chiavi.length) {
+            int figlio = 2 * i + 1;
+            if (figlio + 1 < chiavi.length && chiavi[figlio + 1] > chiavi[figlio]) {
+                figlio++;
+            }
+            if (chiavi[figlio] <= chiave) {
+                break;
+            }
+            chiavi[i] = chiavi[figlio];
+            i = figlio;
+        }
+        chiavi[i] = chiave;
+    }
+}
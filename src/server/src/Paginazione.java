@@ -0,0 +1,163 @@
+package server.src;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Paginazione dei comandi che elencano strutture.
+ *
+ * <p>Un comando seguito da {@code limit <n>} e/o {@code offset <m>} restituisce
+ * solo una pagina delle righe, nell'ordine stabile della risposta: quello
+ * del CSV o quello richiesto con {@link Ordinamento}. La prima pagina
+ * inizia con la riga "Totale: N"; se restano altre righe, l'ultima riga è
+ * "Cursore: c" e {@code continua c} restituisce la pagina successiva.
+ *
+ * <p>Il cursore è opaco per il client e contiene il comando di base, la
+ * generazione del dataset, la dimensione della pagina e l'indice della prima
+ * riga ancora da inviare (la sua posizione, negli elenchi ordinati). La
+ * ripresa rielabora il comando di base: se la sua risposta è ancora nella
+ * cache la pagina parte direttamente da quella riga, altrimenti la selezione
+ * completa viene ricalcolata prima di estrarre la pagina. Un cursore emesso
+ * su un dataset diverso (ad esempio dopo un riavvio) viene rifiutato.
+ */
+final class Paginazione {
+    /** Modificatore di paginazione in coda al comando, ad esempio " limit 50". */
+    private static final Pattern MODIFICATORE = Pattern.compile(
+            "\\s+(" + Protocollo.LIMIT + "|" + Protocollo.OFFSET + ")\\s+(\\S+)$");
+
+    private Paginazione() {
+    }
+
+    /**
+     * Elabora un comando già normalizzato applicando l'eventuale paginazione.
+     * I comandi senza modificatori e le risposte testuali passano invariati.
+     *
+     * @param g      gestore dei dati delle strutture
+     * @param cmd    comando normalizzato (trim e minuscolo)
+     * @param esegui elaborazione del comando di base, senza modificatori
+     * @return pagina richiesta, oppure la risposta del comando di base
+     */
+    static Risposta elabora(GestoreCSV g, String cmd, Function<String, Risposta> esegui) {
+        if (cmd.startsWith(Protocollo.CONTINUA)) {
+            return continua(g, cmd.substring(Protocollo.CONTINUA.length()).trim(), esegui);
+        }
+        int limite = Integer.MAX_VALUE;
+        int salta = 0;
+        boolean paginato = false;
+        Matcher m = MODIFICATORE.matcher(cmd);
+        while (m.find()) {
+            int valore;
+            try {
+                valore = Integer.parseInt(m.group(2));
+            } catch (NumberFormatException e) {
+                return Risposta.testo(Protocollo.ERRORE_PAGINA);
+            }
+            if (m.group(1).equals(Protocollo.LIMIT)) {
+                limite = valore;
+            } else {
+                salta = valore;
+            }
+            paginato = true;
+            cmd = cmd.substring(0, m.start());
+            m = MODIFICATORE.matcher(cmd);
+        }
+        if (!paginato) {
+            return esegui.apply(cmd);
+        }
+        if (limite <= 0 || salta < 0) {
+            return Risposta.testo(Protocollo.ERRORE_PAGINA);
+        }
+        Risposta base = esegui.apply(cmd);
+        if (!base.isElenco()) {
+            return base;
+        }
+        int daRiga = salta == 0 ? 0 : base.rigaDopo(0, salta);
+        if (daRiga < 0) {
+            // Offset oltre la fine: pagina vuota
+            daRiga = Integer.MAX_VALUE;
+        }
+        return pagina(g, base, cmd, daRiga, limite, Protocollo.TOTALE + base.conteggio());
+    }
+
+    /**
+     * Restituisce la pagina indicata da un cursore. Il comando di base passa
+     * di nuovo da esegui: senza la sua risposta in cache la selezione viene
+     * ricalcolata per intero.
+     */
+    private static Risposta continua(GestoreCSV g, String cursore, Function<String, Risposta> esegui) {
+        String[] campi = decodifica(cursore);
+        if (campi == null) {
+            return Risposta.testo(Protocollo.ERRORE_CURSORE);
+        }
+        long generazione;
+        int daRiga;
+        int limite;
+        try {
+            generazione = Long.parseUnsignedLong(campi[0], 16);
+            daRiga = Integer.parseInt(campi[1]);
+            limite = Integer.parseInt(campi[2]);
+        } catch (NumberFormatException e) {
+            return Risposta.testo(Protocollo.ERRORE_CURSORE);
+        }
+        if (generazione != g.getGenerazione() || daRiga < 0 || limite <= 0) {
+            return Risposta.testo(Protocollo.ERRORE_CURSORE);
+        }
+        Risposta base = esegui.apply(campi[3]);
+        if (!base.isElenco()) {
+            return Risposta.testo(Protocollo.ERRORE_CURSORE);
+        }
+        return pagina(g, base, campi[3], daRiga, limite, null);
+    }
+
+    /**
+     * Costruisce la pagina che parte da daRiga, con il cursore verso la successiva
+     * se restano altre righe.
+     */
+    private static Risposta pagina(GestoreCSV g, Risposta base, String cmd,
+                                   int daRiga, int limite, String intestazione) {
+        int successiva = base.rigaDopo(daRiga, limite);
+        String chiusura = null;
+        if (successiva >= 0) {
+            chiusura = Protocollo.CURSORE + codifica(
+                    Long.toHexString(g.getGenerazione()) + ":" + successiva + ":" + limite + ":" + cmd);
+        }
+        return base.pagina(daRiga, limite, intestazione, chiusura);
+    }
+
+    /**
+     * Codifica il contenuto del cursore in esadecimale: il risultato non
+     * contiene spazi e sopravvive alla normalizzazione in minuscolo dei comandi.
+     */
+    private static String codifica(String contenuto) {
+        byte[] b = contenuto.getBytes(StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (byte x : b) {
+            sb.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decodifica un cursore nei campi generazione, riga, limite e comando.
+     *
+     * @return campi del cursore, o null se il cursore non è ben formato
+     */
+    private static String[] decodifica(String cursore) {
+        if (cursore.isEmpty() || cursore.length() % 2 != 0) {
+            return null;
+        }
+        byte[] b = new byte[cursore.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            int alto = Character.digit(cursore.charAt(2 * i), 16);
+            int basso = Character.digit(cursore.charAt(2 * i + 1), 16);
+            if (alto < 0 || basso < 0) {
+                return null;
+            }
+            b[i] = (byte) (alto << 4 | basso);
+        }
+        String[] campi = new String(b, StandardCharsets.UTF_8).split(":", 4);
+        return campi.length == 4 ? campi : null;
+    }
+}
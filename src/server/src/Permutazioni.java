@@ -0,0 +1,255 @@
+package server.src;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.IntPredicate;
+
+/**
+ * Permutazioni ordinate delle righe, una per {@link CampoOrdinamento},
+ * calcolate una volta al caricamento: le righe in ordine crescente di
+ * valore e, a parità di valore, nell'ordine del CSV. I valori mancanti
+ * (campi vuoti, o non numerici per i campi numerici) sono sempre in coda.
+ *
+ * <p>Poiché i campi sono codificati a dizionario, basta ordinare i valori
+ * distinti: ogni codice riceve un rango e le righe sono distribuite per
+ * rango con un ordinamento per conteggio, in tempo lineare. Il rango del
+ * codice è anche la chiave con cui ordinare un sottoinsieme di righe.
+ * Come le posting list degli indici, le permutazioni stanno nell'heap o
+ * in un buffer fuori heap.
+ */
+final class Permutazioni {
+    private static final CampoOrdinamento[] CAMPI = CampoOrdinamento.values();
+
+    /** Righe del dataset, e quindi lunghezza di ogni permutazione. */
+    private final int numeroRighe;
+    /** ranghi[campo][codice]: posizione del valore tra quelli del campo in ordine crescente. */
+    private final int[][] ranghi;
+    /** Valori non mancanti per campo: hanno i ranghi più bassi. */
+    private final int[] presenti;
+    /** Righe con valore mancante per campo, in coda alla permutazione. */
+    private final int[] righeMancanti;
+    /** Permutazione di ogni campo se nell'heap, altrimenti null. */
+    private final int[][] ordini;
+    /** Fuori heap: le permutazioni una dopo l'altra, numeroRighe interi per campo. */
+    private final ByteBuffer buffer;
+
+    private Permutazioni(int numeroRighe, int[][] ranghi, int[] presenti, int[] righeMancanti,
+                         int[][] ordini, ByteBuffer buffer) {
+        this.numeroRighe = numeroRighe;
+        this.ranghi = ranghi;
+        this.presenti = presenti;
+        this.righeMancanti = righeMancanti;
+        this.ordini = ordini;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Calcola le permutazioni di tutti i campi ordinabili.
+     *
+     * @param colonne   campi di tutte le righe
+     * @param fuoriHeap true per tenere le permutazioni in un buffer diretto
+     * @return permutazioni del dataset
+     */
+    static Permutazioni calcola(ColonneCodificate colonne, boolean fuoriHeap) {
+        int n = colonne.numeroRighe();
+        int[][] ranghi = new int[CAMPI.length][];
+        int[] presenti = new int[CAMPI.length];
+        int[] righeMancanti = new int[CAMPI.length];
+        int[][] ordini = new int[CAMPI.length][];
+        for (int c = 0; c < CAMPI.length; c++) {
+            int campo = CAMPI[c].getCampo();
+            int d = colonne.dimensioneDizionario(campo);
+            String[] valori = new String[d];
+            Long[] numeri = new Long[d];
+            boolean[] mancanti = new boolean[d];
+            Integer[] codici = new Integer[d];
+            for (int v = 0; v < d; v++) {
+                valori[v] = colonne.valore(campo, v);
+                numeri[v] = CAMPI[c].isNumerico() ? numero(valori[v]) : null;
+                mancanti[v] = CAMPI[c].isNumerico() ? numeri[v] == null
+                        : valori[v].isBlank() || valori[v].equals(TabellaValori.NON_PRESENTE);
+                codici[v] = v;
+                if (!mancanti[v]) {
+                    presenti[c]++;
+                }
+            }
+            Arrays.sort(codici, confronto(valori, numeri, mancanti));
+            ranghi[c] = new int[d];
+            for (int i = 0; i < d; i++) {
+                ranghi[c][codici[i]] = i;
+            }
+
+            // Ordinamento per conteggio dei ranghi, stabile rispetto all'ordine delle righe
+            int[] inizi = new int[d + 1];
+            for (int r = 0; r < n; r++) {
+                inizi[ranghi[c][colonne.codice(campo, r)] + 1]++;
+            }
+            for (int i = 0; i < d; i++) {
+                inizi[i + 1] += inizi[i];
+            }
+            righeMancanti[c] = n - inizi[presenti[c]];
+            ordini[c] = new int[n];
+            for (int r = 0; r < n; r++) {
+                ordini[c][inizi[ranghi[c][colonne.codice(campo, r)]]++] = r;
+            }
+        }
+        if (!fuoriHeap) {
+            return new Permutazioni(n, ranghi, presenti, righeMancanti, ordini, null);
+        }
+        ByteBuffer buffer = ColonneCodificate.alloca(
+                Math.multiplyExact(Math.multiplyExact(n, CAMPI.length), Integer.BYTES), true);
+        for (int c = 0; c < CAMPI.length; c++) {
+            buffer.asIntBuffer().put(c * n, ordini[c]);
+        }
+        return new Permutazioni(n, ranghi, presenti, righeMancanti, null, buffer);
+    }
+
+    /**
+     * Ordine dei valori distinti di un campo: i mancanti in coda, i numeri
+     * per valore, i testi senza distinguere maiuscole e minuscole; a parità
+     * decide il testo, così ogni valore ha un rango diverso.
+     */
+    private static Comparator<Integer> confronto(String[] valori, Long[] numeri, boolean[] mancanti) {
+        return Comparator.<Integer, Boolean>comparing(v -> mancanti[v])
+                .thenComparing(v -> numeri[v], Comparator.nullsLast(Comparator.naturalOrder()))
+                .thenComparing(v -> valori[v], String.CASE_INSENSITIVE_ORDER)
+                .thenComparing(v -> valori[v]);
+    }
+
+    /**
+     * Legge il numero intero all'inizio del valore ("5L" vale 5).
+     *
+     * @return il numero, o null se il valore non inizia con un numero
+     */
+    private static Long numero(String valore) {
+        String s = valore.trim();
+        int inizio = s.startsWith("-") ? 1 : 0;
+        int fine = inizio;
+        // Al più 18 cifre, sempre rappresentabili in un long
+        while (fine < s.length() && fine - inizio < 18 && s.charAt(fine) >= '0' && s.charAt(fine) <= '9') {
+            fine++;
+        }
+        return fine == inizio ? null : Long.parseLong(s.substring(0, fine));
+    }
+
+    /**
+     * Scrive le permutazioni nello snapshot binario; le permutazioni sono
+     * scritte nella stessa forma del buffer fuori heap.
+     *
+     * @param out flusso dello snapshot
+     * @throws IOException se la scrittura fallisce
+     */
+    void scrivi(DataOutputStream out) throws IOException {
+        out.writeInt(numeroRighe);
+        for (int c = 0; c < CAMPI.length; c++) {
+            out.writeInt(ranghi[c].length);
+            SnapshotBinario.scriviInteri(out, ranghi[c]);
+            out.writeInt(presenti[c]);
+            out.writeInt(righeMancanti[c]);
+        }
+        if (ordini == null) {
+            SnapshotBinario.scriviBlocco(out, buffer);
+            return;
+        }
+        // Interi little-endian come nel buffer
+        for (int[] ordine : ordini) {
+            for (int r : ordine) {
+                out.writeInt(Integer.reverseBytes(r));
+            }
+        }
+    }
+
+    /**
+     * Legge le permutazioni scritte da {@link #scrivi(DataOutputStream)}.
+     *
+     * @param in        dati dello snapshot
+     * @param fuoriHeap true per usare direttamente i byte mappati, false per copiarli nell'heap
+     * @return permutazioni lette
+     */
+    static Permutazioni leggi(ByteBuffer in, boolean fuoriHeap) {
+        int n = in.getInt();
+        int[][] ranghi = new int[CAMPI.length][];
+        int[] presenti = new int[CAMPI.length];
+        int[] righeMancanti = new int[CAMPI.length];
+        for (int c = 0; c < CAMPI.length; c++) {
+            ranghi[c] = SnapshotBinario.leggiInteri(in, in.getInt());
+            presenti[c] = in.getInt();
+            righeMancanti[c] = in.getInt();
+        }
+        ByteBuffer buffer = SnapshotBinario.leggiBlocco(in,
+                Math.multiplyExact(Math.multiplyExact(n, CAMPI.length), Integer.BYTES), fuoriHeap);
+        if (fuoriHeap) {
+            return new Permutazioni(n, ranghi, presenti, righeMancanti, null, buffer);
+        }
+        int[][] ordini = new int[CAMPI.length][n];
+        for (int c = 0; c < CAMPI.length; c++) {
+            buffer.asIntBuffer().get(c * n, ordini[c]);
+        }
+        return new Permutazioni(n, ranghi, presenti, righeMancanti, ordini, null);
+    }
+
+    /**
+     * Restituisce la chiave con cui ordinare una riga: le chiavi crescenti
+     * seguono l'ordine richiesto, con i valori mancanti in coda anche
+     * nell'ordine decrescente.
+     *
+     * @param campo       campo di ordinamento
+     * @param codice      codice del valore della riga nel campo
+     * @param discendente true per l'ordine decrescente
+     * @return chiave non negativa
+     */
+    int chiave(CampoOrdinamento campo, int codice, boolean discendente) {
+        int rango = ranghi[campo.ordinal()][codice];
+        int p = presenti[campo.ordinal()];
+        return discendente && rango < p ? p - 1 - rango : rango;
+    }
+
+    /**
+     * Scorre le righe nell'ordine del campo finché l'azione restituisce true.
+     * Nell'ordine decrescente le righe con lo stesso valore restano
+     * nell'ordine del CSV e quelle con valore mancante restano in coda.
+     *
+     * @param campo       campo di ordinamento
+     * @param colonne     campi di tutte le righe, per riconoscere i valori uguali
+     * @param discendente true per l'ordine decrescente
+     * @param azione      chiamata per ogni riga; restituisce false per fermarsi
+     */
+    void scorri(CampoOrdinamento campo, ColonneCodificate colonne, boolean discendente, IntPredicate azione) {
+        int c = campo.ordinal();
+        if (!discendente) {
+            for (int pos = 0; pos < numeroRighe; pos++) {
+                if (!azione.test(riga(c, pos))) {
+                    return;
+                }
+            }
+            return;
+        }
+        int fine = numeroRighe - righeMancanti[c];
+        // Gruppi di valori uguali dall'ultimo al primo, ciascuno nell'ordine del CSV
+        for (int ultima = fine - 1; ultima >= 0; ) {
+            int codice = colonne.codice(campo.getCampo(), riga(c, ultima));
+            int prima = ultima;
+            while (prima > 0 && colonne.codice(campo.getCampo(), riga(c, prima - 1)) == codice) {
+                prima--;
+            }
+            for (int pos = prima; pos <= ultima; pos++) {
+                if (!azione.test(riga(c, pos))) {
+                    return;
+                }
+            }
+            ultima = prima - 1;
+        }
+        for (int pos = fine; pos < numeroRighe; pos++) {
+            if (!azione.test(riga(c, pos))) {
+                return;
+            }
+        }
+    }
+
+    private int riga(int c, int pos) {
+        return ordini != null ? ordini[c][pos] : buffer.getInt((c * numeroRighe + pos) * Integer.BYTES);
+    }
+}
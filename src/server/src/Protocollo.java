@@ -3,7 +3,11 @@ package server.src;
 public class Protocollo {
     public static final int TCP_PORT       = 1050;
     public static final int UDP_PORT       = 3030;
+    /** Porta TCP del protocollo binario a frame, per client automatici. */
+    public static final int BIN_PORT       = 1060;
     public static final int UDP_CHUNK_SIZE = 1024;
+    /** Payload UDP massimo su IPv4: limite dei frammenti negoziati (MTU di loopback). */
+    public static final int UDP_MAX_PAYLOAD = 65507;
 
     public static final String TUTTI              = "tutti";
     public static final String GET_ROW            = "get_row";
@@ -16,16 +20,53 @@ public class Protocollo {
     public static final String FILTRA_ATL         = "filtra atl:";
     public static final String FILTRA_TIPOLOGIA   = "filtra tipologia:";
     public static final String FILTRA_MARCHIO     = "filtra marchio:";
+    public static final String FILTRA_SERVIZI     = "filtra servizi:";
     public static final String DISABILI          = "disabili";
     public static final String ARIA_CONDIZIONATA = "aria condizionata";
     public static final String CARTE              = "carte";
     public static final String ANIMALI            = "animali";
     public static final String PARCHEGGIO         = "parcheggio";
     public static final String CERCA_NOME         = "cerca nome:";
+    public static final String QUERY              = "query ";
+    public static final String EXPLAIN            = "explain ";
+    public static final String STATO_CACHE        = "stato cache";
+    public static final String CONTA              = "conta ";
+    public static final String CONTA_PER          = "conta per ";
+    /** Separatore delle due colonne di un conteggio a due livelli. */
+    public static final String PER_COPPIA         = " x ";
+    /** Introduce il servizio che filtra un conteggio per colonna. */
+    public static final String CON_SERVIZIO       = " con ";
+    public static final String CONTINUA           = "continua ";
+    public static final String LIMIT              = "limit";
+    public static final String OFFSET             = "offset";
+    public static final String ORDINA_PER         = "ordina per";
+    public static final String CRESCENTE          = "asc";
+    public static final String DECRESCENTE        = "desc";
+    public static final String TOP                = "top";
+    public static final String TOTALE             = "Totale: ";
+    public static final String CURSORE            = "Cursore: ";
+    public static final String MODO_FRAME         = "modo frame";
+    /**
+     * Inizio della riga che precede ogni risposta in modalità frame: "#" seguito
+     * dai byte della risposta, oppure "#id byte" per una richiesta "#id comando".
+     */
+    public static final String INIZIO_FRAME       = "#";
+    /** Id di una richiesta che non ne porta uno. */
+    public static final int SENZA_ID              = -1;
+    /** Cifre massime dell'id di una richiesta. */
+    private static final int MAX_CIFRE_ID         = 9;
+    public static final String FRAME_ATTIVO       = "OK: modalità frame attiva.";
     public static final String HELP               = "help";
     public static final String EXIT               = "exit";
     public static final String ERRORE_COMANDO  = "ERROR: Comando non riconosciuto.";
     public static final String ERRORE_RIGA     = "ERROR: Riga non valida.";
+    public static final String ERRORE_SERVIZIO = "ERROR: Servizio non riconosciuto.";
+    public static final String ERRORE_COLONNA  = "ERROR: Colonna non riconosciuta.";
+    public static final String ERRORE_CONTA    = "ERROR: Conteggio non valido.";
+    public static final String ERRORE_ORDINE   = "ERROR: Ordinamento non valido.";
+    public static final String ERRORE_QUERY    = "ERROR: Query non valida";
+    public static final String ERRORE_PAGINA   = "ERROR: Paginazione non valida.";
+    public static final String ERRORE_CURSORE  = "ERROR: Cursore non valido o scaduto.";
 
     /**
      * Messaggio di help completo, terminato dal marker __END__.
@@ -48,14 +89,74 @@ public class Protocollo {
                 "- " + FILTRA_ATL + "<atl>            : filtra per ATL",
                 "- " + FILTRA_TIPOLOGIA + "<tipo>      : filtra per tipologia",
                 "- " + FILTRA_MARCHIO + "<mar>         : filtra per marchio",
+                "- " + FILTRA_SERVIZI + "<s1+s2|s3>    : combina servizi (+ = AND, | = OR)",
+                "  servizi: disabili, animali, assegno, bancomat, carte, garage, ascensore,",
+                "           parcheggio, aria, aria_camere, aria_appartamenti, ecolabel, q, yes",
                 "- " + DISABILI + "                   : filtra per disabili",
                 "- " + ARIA_CONDIZIONATA + "           : filtra con aria condizionata",
                 "- " + CARTE + "                      : filtra che accettano carte",
                 "- " + ANIMALI + "                    : filtra che accettano animali",
                 "- " + PARCHEGGIO + "                 : filtra con parcheggio",
                 "- " + CERCA_NOME + "<parola>         : ricerca nel nome",
+                "- " + QUERY + "<espressione>        : query composta, es. comune=torino & stelle=3 & animali",
+                "  predicati: <colonna>=<valore> (comune, provincia, tipologia, stelle, atl),",
+                "             nome~<parola>, <servizio>; operatori: & | ! ( )",
+                "- " + EXPLAIN + "<espressione>      : mostra il piano della query e le cardinalità",
+                "- " + STATO_CACHE + "                : contatori della cache delle risposte",
+                "- " + CONTA + "<servizio>              : numero di strutture con il servizio",
+                "- " + CONTA_PER + "<colonna>[" + PER_COPPIA + "<colonna>][" + CON_SERVIZIO + "<servizio>]",
+                "                             : strutture per valore (o coppia di valori) della colonna,",
+                "                               eventualmente solo quelle con il servizio",
+                "- <comando> " + ORDINA_PER + " <campo> [" + CRESCENTE + "|" + DECRESCENTE + "] : elenca le strutture ordinate per campo",
+                "  campi: nome, comune, provincia, tipologia, stelle, atl, altitudine_comune, altitudine_struttura",
+                "  (stelle e altitudini confrontate come numeri; valori mancanti in coda)",
+                "- <comando> [" + ORDINA_PER + " <campo> ...] " + TOP + " <k> : solo le prime k strutture dell'elenco",
+                "- <comando> " + LIMIT + " <n> [" + OFFSET + " <m>] : pagina i comandi che elencano strutture",
+                "  la prima pagina inizia con \"" + TOTALE + "<n>\"; se restano righe l'ultima è \"" + CURSORE + "<c>\"",
+                "- " + CONTINUA + "<cursore>           : pagina successiva a quella che ha restituito il cursore",
+                "- " + MODO_FRAME + "                 : (TCP) ogni risposta è preceduta da \"" + INIZIO_FRAME + "<byte>\" e non segue il prompt;",
+                "  a un comando \"" + INIZIO_FRAME + "<id> <comando>\" si risponde con \"" + INIZIO_FRAME + "<id> <byte>\"",
                 "- " + EXIT + "                      : termina il server",
                 "__END__"
         );
     }
+
+    /**
+     * Restituisce l'id di una richiesta "#id comando".
+     *
+     * @param riga riga ricevuta dal client
+     * @return l'id, oppure {@link #SENZA_ID} se la riga non inizia con un id valido
+     */
+    public static int idRichiesta(String riga) {
+        int fine = fineId(riga);
+        return fine < 0 ? SENZA_ID : Integer.parseInt(riga.substring(INIZIO_FRAME.length(), fine));
+    }
+
+    /**
+     * Restituisce il comando di una richiesta, senza l'eventuale id iniziale.
+     *
+     * @param riga riga ricevuta dal client
+     * @return il comando da eseguire
+     */
+    public static String comandoRichiesta(String riga) {
+        int fine = fineId(riga);
+        return fine < 0 ? riga : riga.substring(fine).trim();
+    }
+
+    /**
+     * Restituisce la posizione che segue l'id della riga, o -1 se la riga non
+     * inizia con "#" seguito da 1-9 cifre e da uno spazio o dalla fine.
+     */
+    private static int fineId(String riga) {
+        if (!riga.startsWith(INIZIO_FRAME)) {
+            return -1;
+        }
+        int inizio = INIZIO_FRAME.length();
+        int i = inizio;
+        while (i < riga.length() && i - inizio < MAX_CIFRE_ID && riga.charAt(i) >= '0' && riga.charAt(i) <= '9') {
+            i++;
+        }
+        boolean valido = i > inizio && (i == riga.length() || Character.isWhitespace(riga.charAt(i)));
+        return valido ? i : -1;
+    }
 }
\ No newline at end of file
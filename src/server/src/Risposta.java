@@ -0,0 +1,386 @@
+package server.src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Risposta a un comando del protocollo. Può essere un testo semplice
+ * (messaggi, conteggi, elenchi) oppure un insieme di righe del dataset:
+ * in questo caso la risposta non viene mai costruita come stringa: ogni
+ * riga è composta, al momento della scrittura, dai byte già codificati dei
+ * dizionari di GestoreCSV.
+ *
+ * <p>Le righe sono scorse in modo pigro dalla posting list o dal bitset
+ * che le seleziona, senza copiarle: la memoria necessaria per inviare una
+ * risposta non dipende dal numero di righe restituite.
+ *
+ * <p>Le righe sono inviate nell'ordine del CSV, salvo per le risposte
+ * ordinate (vedi {@link Ordinamento}), che le inviano nell'ordine in cui
+ * sono elencate: in queste la paginazione identifica le righe con la loro
+ * posizione nell'elenco anziché con l'indice nel dataset.
+ *
+ * <p>Il contenuto corrisponde al testo storico del protocollo, con le righe
+ * separate da '\n' e senza '\n' finale. Una pagina di una risposta a righe
+ * può avere in più una riga di intestazione e una di chiusura.
+ */
+public final class Risposta {
+    /** Numero massimo di buffer passati a una singola scrittura gathering. */
+    private static final int BUFFER_PER_SCRITTURA = 256;
+
+    /** Testo della risposta, o null se la risposta è composta da righe. */
+    private final String testo;
+    /** Gestore che possiede le righe codificate, o null per le risposte testuali. */
+    private final GestoreCSV gestore;
+    /** Indici delle righe da inviare, se selezionate da una posting list o ordinate. */
+    private final int[] righe;
+    /** true se le righe sono in un ordine qualsiasi e vanno paginate per posizione. */
+    private final boolean ordinate;
+    /** Righe da inviare, se selezionate da un bitset. */
+    private final BitSet bits;
+    /** Prima riga del dataset (o posizione, se ordinate) da considerare: le precedenti sono saltate. */
+    private final int daRiga;
+    /** Numero massimo di righe da inviare. */
+    private final int limite;
+    /** Riga di testo inviata prima delle righe, o null. */
+    private final String intestazione;
+    /** Riga di testo inviata dopo le righe, o null. */
+    private final String chiusura;
+
+    private Risposta(String testo, GestoreCSV gestore, int[] righe, boolean ordinate, BitSet bits,
+                     int daRiga, int limite, String intestazione, String chiusura) {
+        this.testo = testo;
+        this.gestore = gestore;
+        this.righe = righe;
+        this.ordinate = ordinate;
+        this.bits = bits;
+        this.daRiga = daRiga;
+        this.limite = limite;
+        this.intestazione = intestazione;
+        this.chiusura = chiusura;
+    }
+
+    /**
+     * Crea una risposta testuale.
+     *
+     * @param testo contenuto della risposta
+     * @return risposta testuale
+     */
+    public static Risposta testo(String testo) {
+        return new Risposta(testo, null, null, false, null, 0, 0, null, null);
+    }
+
+    /**
+     * Crea una risposta composta dalle righe indicate del dataset.
+     * Un insieme vuoto produce lo stesso contenuto della risposta testuale vuota.
+     *
+     * @param gestore gestore che possiede le righe
+     * @param righe   indici crescenti delle righe (l'array non viene copiato né modificato)
+     * @return risposta a righe
+     */
+    public static Risposta righe(GestoreCSV gestore, int[] righe) {
+        return new Risposta(null, gestore, righe, false, null, 0, Integer.MAX_VALUE, null, null);
+    }
+
+    /**
+     * Crea una risposta composta dalle righe indicate, inviate nell'ordine
+     * dell'array e paginate per posizione.
+     *
+     * @param gestore gestore che possiede le righe
+     * @param righe   indici delle righe in ordine di invio (l'array non viene copiato né modificato)
+     * @return risposta a righe ordinata
+     */
+    static Risposta ordinate(GestoreCSV gestore, int[] righe) {
+        return new Risposta(null, gestore, righe, true, null, 0, Integer.MAX_VALUE, null, null);
+    }
+
+    /**
+     * Crea una risposta composta dalle righe selezionate in un bitset.
+     * Il bitset non viene copiato: non deve essere modificato in seguito.
+     *
+     * @param gestore gestore che possiede le righe
+     * @param righe   bitset delle righe, inviate in ordine crescente
+     * @return risposta a righe
+     */
+    public static Risposta righe(GestoreCSV gestore, BitSet righe) {
+        return new Risposta(null, gestore, null, false, righe, 0, Integer.MAX_VALUE, null, null);
+    }
+
+    /**
+     * Indica se la risposta è composta da righe del dataset e può quindi
+     * essere paginata.
+     *
+     * @return true per le risposte a righe, false per quelle testuali
+     */
+    public boolean isElenco() {
+        return testo == null;
+    }
+
+    /**
+     * Restituisce il numero di righe selezionate, senza tener conto
+     * di un'eventuale paginazione.
+     *
+     * @return numero di righe, 0 per le risposte testuali
+     */
+    public int conteggio() {
+        if (testo != null) {
+            return 0;
+        }
+        return righe != null ? righe.length : bits.cardinality();
+    }
+
+    /**
+     * Restituisce l'indice della riga che segue di n posizioni la prima riga
+     * selezionata non precedente a daRiga. Sulle posting list è una ricerca
+     * binaria, sui bitset salta direttamente alla parola che contiene daRiga:
+     * in nessun caso vengono riesaminate le righe precedenti. Nelle risposte
+     * ordinate daRiga e il risultato sono posizioni nell'elenco.
+     *
+     * @param daRiga indice di riga da cui partire
+     * @param n      numero di righe selezionate da saltare
+     * @return indice della riga trovata, o -1 se le righe finiscono prima
+     */
+    public int rigaDopo(int daRiga, int n) {
+        if (righe != null) {
+            long pos = (long) primaPosizione(daRiga) + n;
+            if (pos >= righe.length) {
+                return -1;
+            }
+            return ordinate ? (int) pos : righe[(int) pos];
+        }
+        return righeDaBitset(daRiga).skip(n).findFirst().orElse(-1);
+    }
+
+    /**
+     * Crea una pagina di questa risposta a righe: al più limite righe a partire
+     * dalla prima non precedente a daRiga, con righe di intestazione e chiusura
+     * opzionali. Le righe non vengono copiate.
+     *
+     * @param daRiga       indice della prima riga del dataset da considerare
+     * @param limite       numero massimo di righe nella pagina
+     * @param intestazione testo della riga iniziale, o null
+     * @param chiusura     testo della riga finale, o null
+     * @return pagina della risposta
+     */
+    public Risposta pagina(int daRiga, int limite, String intestazione, String chiusura) {
+        return new Risposta(null, gestore, righe, ordinate, bits, daRiga, limite, intestazione, chiusura);
+    }
+
+    /**
+     * Posizione nella posting list della prima riga non precedente a daRiga.
+     */
+    private int primaPosizione(int daRiga) {
+        if (ordinate) {
+            return Math.min(daRiga, righe.length);
+        }
+        int p = Arrays.binarySearch(righe, daRiga);
+        return p >= 0 ? p : -p - 1;
+    }
+
+    /**
+     * Scorre pigramente le righe del bitset a partire da daRiga.
+     */
+    private IntStream righeDaBitset(int daRiga) {
+        return IntStream.iterate(bits.nextSetBit(daRiga), i -> i >= 0, i -> bits.nextSetBit(i + 1));
+    }
+
+    /**
+     * Scorre pigramente gli indici delle righe della risposta, entro i limiti della pagina.
+     */
+    private IntStream righeSelezionate() {
+        if (righe != null) {
+            int inizio = primaPosizione(daRiga);
+            int fine = (int) Math.min(righe.length, (long) inizio + limite);
+            return Arrays.stream(righe, inizio, fine);
+        }
+        return righeDaBitset(daRiga).limit(limite);
+    }
+
+    /**
+     * Restituisce gli indici delle righe della risposta, entro i limiti della pagina.
+     *
+     * @return indici delle righe nell'ordine di invio; vuoto per le risposte testuali
+     */
+    int[] indiciRighe() {
+        return testo != null ? new int[0] : righeSelezionate().toArray();
+    }
+
+    /**
+     * Restituisce lo snapshot del dataset a cui si riferiscono le righe.
+     *
+     * @return dataset delle righe, o null per le risposte testuali
+     */
+    GestoreCSV getGestore() {
+        return gestore;
+    }
+
+    /**
+     * Restituisce la riga di testo che precede le righe di una pagina.
+     *
+     * @return intestazione, o null se assente
+     */
+    String getIntestazione() {
+        return intestazione;
+    }
+
+    /**
+     * Restituisce la riga di testo che segue le righe di una pagina.
+     *
+     * @return chiusura, o null se assente
+     */
+    String getChiusura() {
+        return chiusura;
+    }
+
+    /**
+     * Codifica una riga di testo seguita da '\n'.
+     */
+    private static ByteBuffer riga(String s) {
+        return ByteBuffer.wrap((s + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Restituisce la risposta, seguita da '\n', come sequenza di buffer prodotti
+     * uno alla volta. Per le risposte a righe ogni buffer contiene una riga,
+     * composta solo quando l'iteratore la raggiunge.
+     *
+     * @return iteratore pigro sui buffer da scrivere
+     */
+    public Iterator<ByteBuffer> buffer() {
+        return flusso().iterator();
+    }
+
+    /**
+     * Restituisce la risposta in modalità frame: una riga "#n", o "#id n" se la
+     * richiesta aveva un id, dove n è il numero di byte che seguono, poi la
+     * risposta seguita da '\n'. La lunghezza è calcolata dai codici delle
+     * righe, senza comporle due volte.
+     *
+     * @param id id della richiesta, o {@link Protocollo#SENZA_ID}
+     * @return iteratore pigro sui buffer da scrivere, intestazione compresa
+     */
+    public Iterator<ByteBuffer> bufferInFrame(int id) {
+        String intestazione = Protocollo.INIZIO_FRAME + (id == Protocollo.SENZA_ID ? "" : id + " ") + lunghezza();
+        return Stream.concat(Stream.of(riga(intestazione)), flusso()).iterator();
+    }
+
+    /**
+     * Restituisce il numero di byte di {@link #buffer()}, senza comporre le righe.
+     */
+    private long lunghezza() {
+        if (testo != null || (intestazione == null && chiusura == null && righeSelezionate().findFirst().isEmpty())) {
+            return flusso().mapToLong(ByteBuffer::remaining).sum();
+        }
+        return Stream.of(intestazione, chiusura).filter(Objects::nonNull).mapToLong(s -> riga(s).remaining()).sum()
+                + righeSelezionate().mapToLong(gestore::lunghezzaRiga).sum();
+    }
+
+    /**
+     * Scorre pigramente i buffer della risposta, seguita da '\n'.
+     */
+    private Stream<ByteBuffer> flusso() {
+        if (testo != null) {
+            return Stream.of(riga(testo));
+        }
+        if (intestazione == null && chiusura == null && righeSelezionate().findFirst().isEmpty()) {
+            // Nessuna riga: stesso contenuto della risposta testuale vuota
+            return Stream.of(riga(""));
+        }
+        return Stream.concat(Stream.concat(
+                        Stream.ofNullable(intestazione).map(Risposta::riga),
+                        righeSelezionate().mapToObj(gestore::rigaCodificata)),
+                Stream.ofNullable(chiusura).map(Risposta::riga));
+    }
+
+    /**
+     * Scrive i buffer indicati, seguiti dalla coda, in lotti di scritture gathering,
+     * ad esempio le risposte di più comandi in pipeline. Ogni scrittura raccoglie
+     * fino a BUFFER_PER_SCRITTURA buffer e la coda viaggia con l'ultima; su un
+     * canale bloccante un lettore lento rallenta la scrittura (backpressure).
+     *
+     * @param canale canale di destinazione in modalità bloccante
+     * @param it     buffer da scrivere
+     * @param coda   byte da inviare dopo l'ultimo buffer, o null
+     * @throws IOException se la scrittura fallisce
+     */
+    static void scrivi(GatheringByteChannel canale, Iterator<ByteBuffer> it, byte[] coda)
+            throws IOException {
+        ByteBuffer[] lotto = new ByteBuffer[BUFFER_PER_SCRITTURA + 1];
+        while (it.hasNext()) {
+            int n = 0;
+            while (n < BUFFER_PER_SCRITTURA && it.hasNext()) {
+                lotto[n++] = it.next();
+            }
+            if (!it.hasNext() && coda != null) {
+                lotto[n++] = ByteBuffer.wrap(coda);
+            }
+            scriviTutto(canale, lotto, n);
+        }
+    }
+
+    /**
+     * Ripete la scrittura gathering finché i primi n buffer non sono esauriti.
+     */
+    private static void scriviTutto(GatheringByteChannel canale, ByteBuffer[] bufs, int n) throws IOException {
+        int primo = 0;
+        while (primo < n) {
+            canale.write(bufs, primo, n - primo);
+            while (primo < n && !bufs[primo].hasRemaining()) {
+                primo++;
+            }
+        }
+    }
+
+    /**
+     * Restituisce il contenuto della risposta codificato in UTF-8, senza '\n' finale.
+     * Per le risposte a righe i byte vengono composti direttamente dai
+     * dizionari, senza passare da stringhe.
+     *
+     * @return byte della risposta
+     */
+    public byte[] toBytes() {
+        if (testo != null) {
+            return testo.getBytes(StandardCharsets.UTF_8);
+        }
+        // L'ultimo '\n' non fa parte del contenuto
+        ByteBuffer out = ByteBuffer.allocate((int) lunghezza() - 1);
+        for (Iterator<ByteBuffer> it = buffer(); it.hasNext(); ) {
+            ByteBuffer b = it.next();
+            if (b.remaining() > out.remaining()) {
+                b.limit(b.limit() - 1);
+            }
+            out.put(b);
+        }
+        return out.array();
+    }
+
+    /**
+     * Stima l'occupazione in memoria della risposta, usata da CacheRisposte
+     * per rispettare il proprio limite in byte.
+     *
+     * @return peso stimato in byte
+     */
+    public long pesoInByte() {
+        if (testo != null) {
+            return 40L + 2L * testo.length();
+        }
+        return righe != null ? 32L + 4L * righe.length : 32L + bits.size() / 8;
+    }
+
+    /**
+     * Restituisce il contenuto della risposta come stringa.
+     *
+     * @return testo della risposta, righe separate da '\n'
+     */
+    @Override
+    public String toString() {
+        return testo != null ? testo : new String(toBytes(), StandardCharsets.UTF_8);
+    }
+}
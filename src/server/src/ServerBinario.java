@@ -0,0 +1,100 @@
+package server.src;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * ServerBinario accetta le connessioni del protocollo binario, pensato per
+ * client automatici: ogni messaggio è un frame con lunghezza esplicita, quindi
+ * il client sa sempre dove finisce una risposta senza cercare marcatori nel
+ * testo né attendere timeout.
+ *
+ * <p>Formato di un frame (interi big-endian):
+ * <pre>
+ *   opcode (1 byte)  id richiesta (4 byte)  lunghezza (4 byte)  payload
+ * </pre>
+ * Appena connesso il client riceve un frame {@link #BENVENUTO} con la versione
+ * del protocollo e i nomi delle colonne. Ogni richiesta riceve esattamente un
+ * frame di risposta con lo stesso id, nell'ordine delle richieste: il client
+ * può inviarne più d'una senza attendere le risposte.
+ *
+ * <p>Le risposte che elencano strutture ({@link #RIGHE}) sono colonnari: per
+ * ogni colonna il dizionario dei valori presenti nella risposta, seguito dal
+ * codice di ogni riga. Il formato del payload è descritto in {@link SessioneBinaria}.
+ */
+public class ServerBinario implements Runnable {
+    /** Versione del protocollo, inviata nel frame di benvenuto. */
+    static final byte VERSIONE = 1;
+    /** Lunghezza dell'intestazione di un frame: opcode, id, lunghezza. */
+    static final int INTESTAZIONE = 9;
+    /** Payload massimo accettato in una richiesta. */
+    static final int MAX_RICHIESTA = 64 * 1024;
+
+    // Richieste del client
+    /** Comando testuale del protocollo, in UTF-8. */
+    static final byte COMANDO = 0x01;
+    /** Dettaglio di una riga: intero con il numero di riga (da 1). */
+    static final byte RIGA = 0x02;
+    /** Filtro di uguaglianza: byte con la colonna (ordine di {@link Colonna}) e valore in UTF-8. */
+    static final byte FILTRO = 0x03;
+    /** Verifica della connessione, senza payload. */
+    static final byte PING = 0x04;
+
+    // Risposte del server
+    /** Versione del protocollo e nomi delle colonne, con id 0. */
+    static final byte BENVENUTO = (byte) 0x80;
+    /** Risposta testuale, in UTF-8. */
+    static final byte TESTO = (byte) 0x81;
+    /** Righe del dataset in forma colonnare. */
+    static final byte RIGHE = (byte) 0x82;
+    /** Messaggio di errore, in UTF-8. */
+    static final byte ERRORE = (byte) 0x83;
+    /** Risposta a {@link #PING}, senza payload. */
+    static final byte PONG = (byte) 0x84;
+
+    /** Porta di ascolto del protocollo binario. */
+    private final int porta;
+    /** Archivio del dataset: ogni richiesta usa lo snapshot corrente. */
+    private final ArchivioStrutture archivio;
+    /** Cache delle risposte condivisa con gli altri protocolli. */
+    private final CacheRisposte cache;
+    /** Esecutore che ospita una sessione per connessione. */
+    private final ExecutorService esecutore;
+
+    /**
+     * Costruisce il server del protocollo binario.
+     *
+     * @param porta     porta TCP di ascolto
+     * @param archivio  archivio del dataset corrente
+     * @param cache     cache delle risposte
+     * @param esecutore esecutore delle sessioni
+     */
+    public ServerBinario(int porta, ArchivioStrutture archivio, CacheRisposte cache, ExecutorService esecutore) {
+        this.porta = porta;
+        this.archivio = archivio;
+        this.cache = cache;
+        this.esecutore = esecutore;
+    }
+
+    /**
+     * Accetta le connessioni e affida ciascuna a una sessione.
+     */
+    @Override
+    public void run() {
+        try (ServerSocketChannel ss = ServerSocketChannel.open()) {
+            ss.bind(new InetSocketAddress(porta));
+            while (true) {
+                SocketChannel client = ss.accept();
+                // Frame piccoli e spesso in sequenza: niente ritardo di Nagle
+                client.socket().setTcpNoDelay(true);
+                esecutore.execute(new SessioneBinaria(client, archivio, cache));
+            }
+        } catch (IOException e) {
+            // Errore di I/O sul ServerSocketChannel
+            System.err.println("[BIN] Errore: " + e.getMessage());
+        }
+    }
+}
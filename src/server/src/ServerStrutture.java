@@ -2,24 +2,48 @@ package server.src;
 
 import java.io.IOException;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
 
 /**
- * ServerStrutture implementa un server multi-protocollo (TCP e UDP)
- * per gestire richieste relative alle strutture ricettive.
- * Utilizza un thread pool per gestire connessioni concorrenti.
+ * ServerStrutture implementa un server multi-protocollo (TCP, UDP e
+ * binario a frame) per gestire richieste relative alle strutture ricettive.
+ * Utilizza un thread pool, oppure un thread virtuale per compito,
+ * per gestire connessioni concorrenti.
  */
 public class ServerStrutture {
+    /** Peso massimo della cache delle risposte, in byte */
+    private static final long CACHE_MAX_BYTE = 32L * 1024 * 1024;
+    /** Motore TCP con un thread bloccante per client (default) */
+    public static final String MOTORE_THREAD = "thread";
+    /** Motore TCP non bloccante basato su Selector */
+    public static final String MOTORE_NIO = "nio";
+    /** Motore TCP con un thread virtuale per sessione e per datagram UDP (Java 21+) */
+    public static final String MOTORE_VIRTUAL = "virtual";
+    /** Colonne del dataset nell'heap (default) */
+    public static final String MEMORIA_HEAP = "heap";
+    /** Colonne del dataset in buffer diretti o nello snapshot mappato, fuori dall'heap */
+    public static final String MEMORIA_OFFHEAP = "offheap";
+
     /** Porta di ascolto per connessioni TCP */
     private final int portaTcp;
     /** Porta di ascolto per richieste UDP */
     private final int portaUdp;
-    /** GestoreCSV che contiene e filtra i dati delle strutture */
-    private final GestoreCSV gestore;
-    /** Pool di thread per gestire clienti e richieste in parallelo */
+    /** Porta di ascolto per il protocollo binario */
+    private final int portaBinaria;
+    /** Motore TCP selezionato all'avvio */
+    private final String motoreTcp;
+    /** Dataset delle strutture, ricaricato quando il CSV cambia */
+    private final ArchivioStrutture archivio;
+    /** Cache delle risposte condivisa da TCP e UDP */
+    private final CacheRisposte cache;
+    /** Esecutore per gestire clienti e richieste in parallelo */
     private final ExecutorService threadPool;
 
     /**
@@ -30,19 +54,91 @@ public class ServerStrutture {
      * @param portaUdp porta UDP per richieste datagram
      */
     public ServerStrutture(String csvPath, int portaTcp, int portaUdp) {
+        this(csvPath, portaTcp, portaUdp, MOTORE_THREAD);
+    }
+
+    /**
+     * Costruisce un server specificando il percorso del CSV, le porte e il motore TCP.
+     *
+     * @param csvPath   percorso del file CSV delle strutture
+     * @param portaTcp  porta TCP per nuove connessioni
+     * @param portaUdp  porta UDP per richieste datagram
+     * @param motoreTcp {@link #MOTORE_THREAD}, {@link #MOTORE_NIO} o {@link #MOTORE_VIRTUAL}
+     */
+    public ServerStrutture(String csvPath, int portaTcp, int portaUdp, String motoreTcp) {
+        this(csvPath, portaTcp, portaUdp, motoreTcp, Protocollo.BIN_PORT);
+    }
+
+    /**
+     * Costruisce un server specificando il percorso del CSV, le porte, il motore TCP
+     * e la porta del protocollo binario.
+     *
+     * @param csvPath      percorso del file CSV delle strutture
+     * @param portaTcp     porta TCP per nuove connessioni
+     * @param portaUdp     porta UDP per richieste datagram
+     * @param motoreTcp    {@link #MOTORE_THREAD}, {@link #MOTORE_NIO} o {@link #MOTORE_VIRTUAL}
+     * @param portaBinaria porta TCP del protocollo binario
+     */
+    public ServerStrutture(String csvPath, int portaTcp, int portaUdp, String motoreTcp, int portaBinaria) {
+        this(csvPath, portaTcp, portaUdp, motoreTcp, portaBinaria, MEMORIA_HEAP);
+    }
+
+    /**
+     * Costruisce un server specificando il percorso del CSV, le porte, il motore TCP,
+     * la porta del protocollo binario e dove tenere le colonne del dataset.
+     *
+     * @param csvPath      percorso del file CSV delle strutture
+     * @param portaTcp     porta TCP per nuove connessioni
+     * @param portaUdp     porta UDP per richieste datagram
+     * @param motoreTcp    {@link #MOTORE_THREAD}, {@link #MOTORE_NIO} o {@link #MOTORE_VIRTUAL}
+     * @param portaBinaria porta TCP del protocollo binario
+     * @param memoria      {@link #MEMORIA_HEAP} o {@link #MEMORIA_OFFHEAP}
+     */
+    public ServerStrutture(String csvPath, int portaTcp, int portaUdp, String motoreTcp, int portaBinaria,
+                           String memoria) {
+        if (!MEMORIA_HEAP.equals(memoria) && !MEMORIA_OFFHEAP.equals(memoria)) {
+            throw new IllegalArgumentException("Memoria sconosciuta: " + memoria);
+        }
+        if (!MOTORE_THREAD.equals(motoreTcp) && !MOTORE_NIO.equals(motoreTcp)
+                && !MOTORE_VIRTUAL.equals(motoreTcp)) {
+            throw new IllegalArgumentException("Motore TCP sconosciuto: " + motoreTcp);
+        }
         this.portaTcp = portaTcp;
         this.portaUdp = portaUdp;
-        // Inizializza il gestore dei dati
-        this.gestore = new GestoreCSV(csvPath);
-        // Thread pool con numero variabile di thread
-        this.threadPool = Executors.newCachedThreadPool();
+        this.portaBinaria = portaBinaria;
+        this.motoreTcp = motoreTcp;
+        // Inizializza la cache e carica il dataset
+        this.cache = new CacheRisposte(CACHE_MAX_BYTE);
+        this.archivio = new ArchivioStrutture(csvPath, cache, MEMORIA_OFFHEAP.equals(memoria));
+        // Un thread virtuale per compito, oppure thread pool con numero variabile di thread
+        this.threadPool = MOTORE_VIRTUAL.equals(motoreTcp)
+                ? creaEsecutoreVirtuale()
+                : Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Crea un esecutore che avvia un thread virtuale per ogni compito.
+     * L'API è invocata per riflessione così che il server resti compilabile
+     * ed eseguibile anche su JDK precedenti al 21, dove la modalità non è disponibile.
+     *
+     * @return esecutore a thread virtuali
+     * @throws IllegalStateException se la JVM non supporta i thread virtuali
+     */
+    private static ExecutorService creaEsecutoreVirtuale() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("I thread virtuali richiedono Java 21 o superiore", e);
+        }
     }
 
     /**
      * Metodo main: avvia il server specificando eventuali argomenti
      * per il file CSV e le porte. Se non forniti, usa valori di default.
      *
-     * @param args [0]=path CSV, [1]=porta TCP, [2]=porta UDP
+     * @param args [0]=path CSV, [1]=porta TCP, [2]=porta UDP,
+     *             [3]=motore TCP ("thread", "nio" o "virtual"), [4]=porta binaria,
+     *             [5]=memoria delle colonne ("heap" o "offheap")
      */
     public static void main(String[] args) {
         String defaultCsv = "src/server/Regione-Piemonte---Elenco-delle-strutture-ricettive.csv";
@@ -51,213 +147,293 @@ public class ServerStrutture {
         // Porte da argomenti o costanti del protocollo
         int tcpPort = args.length >= 2 ? Integer.parseInt(args[1]) : Protocollo.TCP_PORT;
         int udpPort = args.length >= 3 ? Integer.parseInt(args[2]) : Protocollo.UDP_PORT;
+        // Motore TCP da argomenti o default a thread
+        String motore = args.length >= 4 ? args[3].toLowerCase() : MOTORE_THREAD;
+        int binPort = args.length >= 5 ? Integer.parseInt(args[4]) : Protocollo.BIN_PORT;
+        String memoria = args.length >= 6 ? args[5].toLowerCase() : MEMORIA_HEAP;
 
         System.out.println("CSV: " + csvPath);
-        System.out.println("Porte: TCP=" + tcpPort + "  UDP=" + udpPort);
+        System.out.println("Porte: TCP=" + tcpPort + "  UDP=" + udpPort + "  BIN=" + binPort);
+        System.out.println("Motore TCP: " + motore);
+        System.out.println("Memoria: " + memoria);
 
         // Crea e avvia il server
-        new ServerStrutture(csvPath, tcpPort, udpPort).avvia();
+        new ServerStrutture(csvPath, tcpPort, udpPort, motore, binPort, memoria).avvia();
     }
 
     /**
-     * Avvia i server TCP e UDP in thread separati.
+     * Avvia i server TCP, UDP e binario in thread separati e l'osservatore
+     * che ricarica il CSV quando viene modificato.
      */
     public void avvia() {
-        // Avvia listener TCP
-        threadPool.execute(this::avviaServerTCP);
-        // Avvia listener UDP
-        threadPool.execute(this::avviaServerUDP);
-        System.out.println("Server avviato su TCP " + portaTcp + " e UDP " + portaUdp);
+        // Avvia listener TCP con il motore scelto
+        if (MOTORE_NIO.equals(motoreTcp)) {
+            int core = Runtime.getRuntime().availableProcessors();
+            threadPool.execute(new ServerTcpNio(portaTcp, archivio, cache, Math.min(4, core), core));
+        } else {
+            threadPool.execute(this::avviaServerTCP);
+        }
+        // Avvia listener UDP, con un ciclo di ricezione per core
+        threadPool.execute(new ServerUdp(portaUdp, archivio, cache,
+                Runtime.getRuntime().availableProcessors(), threadPool));
+        // Avvia listener del protocollo binario, una sessione per connessione
+        threadPool.execute(new ServerBinario(portaBinaria, archivio, cache, threadPool));
+        try {
+            archivio.osserva();
+        } catch (IOException e) {
+            System.err.println("[CSV] Ricarica automatica non disponibile: " + e.getMessage());
+        }
+        System.out.println("Server avviato su TCP " + portaTcp + ", UDP " + portaUdp
+                + " e binario " + portaBinaria);
     }
 
     /**
      * Ascolta e gestisce connessioni TCP in modo sincrono,
-     * delegando ogni socket a un handler separato.
+     * delegando ogni socket a un handler separato. Il canale accettato resta
+     * in modalità bloccante ma consente all'handler le scritture gathering.
      */
     private void avviaServerTCP() {
-        try (ServerSocket ss = new ServerSocket(portaTcp)) {
+        try (ServerSocketChannel ss = ServerSocketChannel.open()) {
+            ss.bind(new InetSocketAddress(portaTcp));
             while (true) {
-                Socket client = ss.accept();
+                SocketChannel client = ss.accept();
+                Socket socket = client.socket();
                 // Log di connessione
                 System.out.println("[TCP] Connessione ricevuta da "
-                        + client.getInetAddress().getHostAddress()
-                        + ":" + client.getPort());
+                        + socket.getInetAddress().getHostAddress()
+                        + ":" + socket.getPort());
+                // Risposte in pipeline: niente ritardo di Nagle tra una scrittura e l'altra
+                socket.setTcpNoDelay(true);
                 // Gestione in thread separato
-                threadPool.execute(new ThreadClientHandler(client, gestore));
+                threadPool.execute(new ThreadClientHandler(client, archivio, cache));
             }
         } catch (IOException e) {
-            // Errore di I/O sul ServerSocket
+            // Errore di I/O sul ServerSocketChannel
             System.err.println("[TCP] Errore: " + e.getMessage());
         }
     }
 
     /**
-     * Ascolta richieste UDP e le elabora in parallelo.
-     * Invia risposte in pacchetti frammentati se necessario.
+     * Esegue il parsing e l'elaborazione del comando ricevuto,
+     * instradandolo ai metodi di GestoreCSV.
+     *
+     * @param g    gestore dei dati delle strutture
+     * @param cmd  comando da elaborare (già trimmato e lowercase)
+     * @return stringa di risposta pronta per invio
      */
-    private void avviaServerUDP() {
-        try (DatagramSocket socket = new DatagramSocket(portaUdp)) {
-            byte[] buf = new byte[Protocollo.UDP_CHUNK_SIZE];
-            while (true) {
-                DatagramPacket req = new DatagramPacket(buf, buf.length);
-                socket.receive(req);
-                // Log della richiesta ricevuta
-                System.out.println("[UDP] Richiesta da "
-                        + req.getAddress().getHostAddress()
-                        + ":" + req.getPort()
-                        + "  comando=\""
-                        + new String(req.getData(), 0, req.getLength(), StandardCharsets.UTF_8).trim()
-                        + "\"");
-                // Elabora in un thread separato
-                threadPool.execute(() -> handleUdpRequest(socket, req));
-            }
-        } catch (IOException e) {
-            // Errore di I/O sul DatagramSocket
-            System.err.println("[UDP] Errore: " + e.getMessage());
-        }
+    public static String elaboraRichiestaStatic(GestoreCSV g, String cmd) {
+        return elaboraRichiesta(g, cmd).toString();
     }
 
     /**
-     * Gestisce una singola richiesta UDP: elabora il comando e invia la risposta,
-     * frammentandola in chunk di dimensione massima.
+     * Elabora il comando passando dalla cache delle risposte: i comandi già
+     * elaborati sullo stesso dataset vengono serviti senza ricalcolo.
      *
-     * @param ds riferimento al DatagramSocket per invio
-     * @param req pacchetto di richiesta ricevuto
+     * @param g     gestore dei dati delle strutture
+     * @param cache cache delle risposte
+     * @param cmd   comando da elaborare
+     * @return risposta pronta per l'invio
      */
-    private void handleUdpRequest(DatagramSocket ds, DatagramPacket req) {
-        String cmd = new String(req.getData(), 0, req.getLength(), StandardCharsets.UTF_8).trim();
-        String risposta;
-        if (cmd.equalsIgnoreCase(Protocollo.HELP)) {
-            // Comando di aiuto: messaggio predefinito
-            risposta = Protocollo.getHelpMessage();
-        } else {
-            // Qualsiasi altro comando viene processato staticamente
-            risposta = elaboraRichiestaStatic(gestore, cmd);
+    public static Risposta elaboraRichiesta(GestoreCSV g, CacheRisposte cache, String cmd) {
+        String chiave = cmd.trim().toLowerCase();
+        if (chiave.equals(Protocollo.STATO_CACHE)) {
+            return Risposta.testo(cache.getStato());
         }
+        // In cache va la risposta del comando di base (già ordinata), condivisa da tutte le sue pagine
+        return Paginazione.elabora(g, chiave, base -> cache.ottieni(g, base,
+                () -> Ordinamento.elabora(g, base, comando -> eseguiComando(g, comando))));
+    }
 
-        byte[] replyBytes = risposta.getBytes(StandardCharsets.UTF_8);
-        int offset = 0;
-        // Frammentazione della risposta in più pacchetti se troppo lunga
-        while (offset < replyBytes.length) {
-            int len = Math.min(Protocollo.UDP_CHUNK_SIZE, replyBytes.length - offset);
-            DatagramPacket part = new DatagramPacket(
-                    replyBytes, offset, len,
-                    req.getAddress(), req.getPort()
-            );
-            try {
-                ds.send(part);
-            } catch (IOException e) {
-                e.printStackTrace();
-                return;
-            }
-            offset += len;
-        }
-        // Invio del marker di fine
-        byte[] endBuf = "__END__".getBytes(StandardCharsets.UTF_8);
-        DatagramPacket endPacket = new DatagramPacket(
-                endBuf, endBuf.length,
-                req.getAddress(), req.getPort()
-        );
-        try {
-            ds.send(endPacket);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Elabora il comando senza cache, applicando gli eventuali ordinamento
+     * (modificatori ordina per/top) e paginazione (modificatori limit/offset
+     * o comando continua).
+     *
+     * @param g    gestore dei dati delle strutture
+     * @param cmd  comando da elaborare
+     * @return risposta pronta per l'invio
+     */
+    public static Risposta elaboraRichiesta(GestoreCSV g, String cmd) {
+        return Paginazione.elabora(g, cmd.trim().toLowerCase(),
+                base -> Ordinamento.elabora(g, base, comando -> eseguiComando(g, comando)));
     }
 
     /**
-     * Esegue il parsing e l'elaborazione del comando ricevuto,
-     * instradandolo ai metodi di GestoreCSV.
+     * Esegue il parsing e l'elaborazione del comando ricevuto, instradandolo
+     * agli indici di GestoreCSV. Le risposte che elencano strutture restano
+     * riferimenti alle righe del dataset, senza costruire stringhe.
      *
      * @param g    gestore dei dati delle strutture
-     * @param cmd  comando da elaborare (già trimmato e lowercase)
-     * @return stringa di risposta pronta per invio
+     * @param cmd  comando da elaborare, senza modificatori di paginazione
+     * @return risposta pronta per l'invio
      */
-    public static String elaboraRichiestaStatic(GestoreCSV g, String cmd) {
+    private static Risposta eseguiComando(GestoreCSV g, String cmd) {
         cmd = cmd.trim().toLowerCase();
         try {
             if (cmd.equals(Protocollo.TUTTI)) {
-                return g.getTutteLeStrutture().stream()
-                        .map(StrutturaRicettiva::toString)
-                        .collect(Collectors.joining("\n"));
+                return Risposta.righe(g, g.tutteLeRighe());
             } else if (cmd.equals(Protocollo.NUM_STRUTTURE)) {
-                return "Numero strutture: " + g.getNumeroStrutture();
+                return Risposta.testo("Numero strutture: " + g.getNumeroStrutture());
             } else if (cmd.equals(Protocollo.COMUNI)) {
-                return String.join(", ", g.getComuniPresenti());
+                return Risposta.testo(String.join(", ", g.getComuniPresenti()));
             } else if (cmd.equals(Protocollo.TIPOLOGIE)) {
-                return String.join(", ", g.getTipologiePresenti());
+                return Risposta.testo(String.join(", ", g.getTipologiePresenti()));
             } else if (cmd.startsWith(Protocollo.GET_ROW)) {
                 try {
                     int n = Integer.parseInt(cmd.replace(Protocollo.GET_ROW, "").trim());
-                    if (n <= 0) {
-                        return Protocollo.ERRORE_RIGA;
+                    if (n <= 0 || n > g.getNumeroStrutture()) {
+                        return Risposta.testo(Protocollo.ERRORE_RIGA);
                     }
-                    return g.getRiga(n - 1);
+                    return Risposta.righe(g, new int[]{n - 1});
                 } catch (NumberFormatException e) {
-                    return Protocollo.ERRORE_RIGA;
+                    return Risposta.testo(Protocollo.ERRORE_RIGA);
                 }
             } else if (cmd.startsWith(Protocollo.FILTRA_COMUNE)) {
                 String c = cmd.replace(Protocollo.FILTRA_COMUNE, "").trim();
-                return g.filtraPerComune(c).stream()
-                        .map(StrutturaRicettiva::toString)
-                        .collect(Collectors.joining("\n"));
+                return Risposta.righe(g, g.righePer(Colonna.COMUNE, c));
             } else if (cmd.startsWith(Protocollo.FILTRA_TIPOLOGIA)) {
                 String t = cmd.replace(Protocollo.FILTRA_TIPOLOGIA, "").trim();
-                return g.filtraPerTipologia(t).stream()
-                        .map(StrutturaRicettiva::toString)
-                        .collect(Collectors.joining("\n"));
+                return Risposta.righe(g, g.righePer(Colonna.TIPOLOGIA, t));
             } else if (cmd.startsWith(Protocollo.FILTRA_PROVINCIA)) {
                 String p = cmd.replace(Protocollo.FILTRA_PROVINCIA, "").trim();
-                return g.filtraPerProvincia(p).stream()
-                        .map(StrutturaRicettiva::toString)
-                        .collect(Collectors.joining("\n"));
+                return Risposta.righe(g, g.righePer(Colonna.PROVINCIA, p));
             } else if (cmd.startsWith(Protocollo.FILTRA_STELLE)) {
                 String s = cmd.replace(Protocollo.FILTRA_STELLE, "").trim();
-                return g.filtraPerStelle(s).stream()
-                        .map(StrutturaRicettiva::toString)
-                        .collect(Collectors.joining("\n"));
+                return Risposta.righe(g, g.righePer(Colonna.STELLE, s));
             } else if (cmd.startsWith(Protocollo.FILTRA_ATL)) {
                 String atl = cmd.replace(Protocollo.FILTRA_ATL, "").trim();
-                return g.filtraPerATL(atl).stream()
-                        .map(StrutturaRicettiva::toString)
-                        .collect(Collectors.joining("\n"));
+                return Risposta.righe(g, g.righePer(Colonna.ATL, atl));
             } else if (cmd.startsWith(Protocollo.FILTRA_MARCHIO)) {
                 String m = cmd.replace(Protocollo.FILTRA_MARCHIO, "").trim();
-                return g.filtraPerMarchio(m).stream()
-                        .map(StrutturaRicettiva::toString)
-                        .collect(Collectors.joining("\n"));
+                return Risposta.righe(g, g.righePerMarchio(m));
+            } else if (cmd.startsWith(Protocollo.FILTRA_SERVIZI)) {
+                String espr = cmd.replace(Protocollo.FILTRA_SERVIZI, "").trim();
+                try {
+                    return Risposta.righe(g, g.righePerServizi(espr));
+                } catch (IllegalArgumentException e) {
+                    return Risposta.testo(Protocollo.ERRORE_SERVIZIO);
+                }
             } else if (cmd.equals(Protocollo.DISABILI)) {
-                return g.filtraAccessibiliDisabili().stream()
-                        .map(StrutturaRicettiva::toString)
-                        .collect(Collectors.joining("\n"));
+                return Risposta.righe(g, g.righeConServizio(Servizio.DISABILI));
             } else if (cmd.equals(Protocollo.ARIA_CONDIZIONATA)) {
-                return g.filtraConAriaCondizionata().stream()
-                        .map(StrutturaRicettiva::toString)
-                        .collect(Collectors.joining("\n"));
+                return Risposta.righe(g, g.righeConServizio(Servizio.ARIA_CONDIZIONATA));
             } else if (cmd.equals(Protocollo.CARTE)) {
-                return g.filtraCheAccettanoCarte().stream()
-                        .map(StrutturaRicettiva::toString)
-                        .collect(Collectors.joining("\n"));
+                return Risposta.righe(g, g.righeConServizio(Servizio.CARTE));
             } else if (cmd.equals(Protocollo.ANIMALI)) {
-                return g.filtraCheAccettanoAnimali().stream()
-                        .map(StrutturaRicettiva::toString)
-                        .collect(Collectors.joining("\n"));
+                return Risposta.righe(g, g.righeConServizio(Servizio.ANIMALI));
             } else if (cmd.equals(Protocollo.PARCHEGGIO)) {
-                return g.filtraCheHannoParcheggio().stream()
-                        .map(StrutturaRicettiva::toString)
-                        .collect(Collectors.joining("\n"));
+                return Risposta.righe(g, g.righeConServizio(Servizio.PARCHEGGIO));
             } else if (cmd.startsWith(Protocollo.CERCA_NOME)) {
                 String kw = cmd.replace(Protocollo.CERCA_NOME, "").trim();
-                return g.filtraPerNome(kw).stream()
-                        .map(StrutturaRicettiva::toString)
-                        .collect(Collectors.joining("\n"));
+                return Risposta.righe(g, g.righePerNome(kw));
+            } else if (cmd.startsWith(Protocollo.QUERY)) {
+                try {
+                    Interrogazione q = Interrogazione.analizza(cmd.substring(Protocollo.QUERY.length()));
+                    return Risposta.righe(g, q.esegui(g));
+                } catch (IllegalArgumentException e) {
+                    return Risposta.testo(Protocollo.ERRORE_QUERY + ": " + e.getMessage());
+                }
+            } else if (cmd.startsWith(Protocollo.CONTA)) {
+                return conta(g, cmd);
+            } else if (cmd.startsWith(Protocollo.EXPLAIN)) {
+                String testo = cmd.substring(Protocollo.EXPLAIN.length()).trim();
+                // Accetta anche la forma "explain query <espressione>"
+                if (testo.startsWith(Protocollo.QUERY)) {
+                    testo = testo.substring(Protocollo.QUERY.length());
+                }
+                try {
+                    return Risposta.testo(Interrogazione.analizza(testo).spiega(g));
+                } catch (IllegalArgumentException e) {
+                    return Risposta.testo(Protocollo.ERRORE_QUERY + ": " + e.getMessage());
+                }
             } else {
                 // Comando non riconosciuto
-                return Protocollo.ERRORE_COMANDO;
+                return Risposta.testo(Protocollo.ERRORE_COMANDO);
             }
         } catch (NumberFormatException e) {
             // Errore di parsing numerico
-            return Protocollo.ERRORE_RIGA;
+            return Risposta.testo(Protocollo.ERRORE_RIGA);
+        }
+    }
+
+    /**
+     * Elabora i comandi di conteggio, "conta &lt;servizio&gt;" e
+     * "conta per &lt;colonna&gt;[ x &lt;colonna&gt;][ con &lt;servizio&gt;]", con i
+     * contatori calcolati al caricamento del dataset. La prima riga riporta il
+     * totale; seguono i valori per conteggio decrescente, e nei conteggi a due
+     * livelli i valori della seconda colonna rientrati sotto ciascun valore
+     * della prima.
+     *
+     * @param g   gestore del dataset
+     * @param cmd comando (già trimmato e lowercase)
+     * @return risposta testuale
+     */
+    private static Risposta conta(GestoreCSV g, String cmd) {
+        if (!cmd.startsWith(Protocollo.CONTA_PER)) {
+            Servizio servizio = Servizio.daNome(cmd.substring(Protocollo.CONTA.length()));
+            if (servizio == null) {
+                return Risposta.testo(Protocollo.ERRORE_SERVIZIO);
+            }
+            return Risposta.testo("Numero strutture con " + servizio.getNome() + ": " + g.contaConServizio(servizio));
+        }
+        String argomenti = cmd.substring(Protocollo.CONTA_PER.length());
+        Servizio filtro = null;
+        int con = argomenti.indexOf(Protocollo.CON_SERVIZIO);
+        if (con >= 0) {
+            filtro = Servizio.daNome(argomenti.substring(con + Protocollo.CON_SERVIZIO.length()));
+            if (filtro == null) {
+                return Risposta.testo(Protocollo.ERRORE_SERVIZIO);
+            }
+            argomenti = argomenti.substring(0, con);
+        }
+        String[] nomi = argomenti.split(Protocollo.PER_COPPIA, -1);
+        Colonna[] colonne = new Colonna[nomi.length];
+        for (int i = 0; i < nomi.length; i++) {
+            colonne[i] = Colonna.daNome(nomi[i]);
+            if (colonne[i] == null) {
+                return Risposta.testo(Protocollo.ERRORE_COLONNA);
+            }
+        }
+        if (colonne.length > 2 || (colonne.length == 2 && colonne[0] == colonne[1])) {
+            return Risposta.testo(Protocollo.ERRORE_CONTA);
+        }
+
+        StringBuilder sb = new StringBuilder("Numero strutture");
+        if (filtro != null) {
+            sb.append(" con ").append(filtro.getNome()).append(": ").append(g.contaConServizio(filtro));
+        } else {
+            sb.append(": ").append(g.getNumeroStrutture());
+        }
+        if (colonne.length == 1) {
+            for (Map.Entry<String, Long> e : ordinaPerConteggio(g.contaPer(colonne[0], filtro))) {
+                sb.append('\n').append(e.getKey()).append(": ").append(e.getValue());
+            }
+            return Risposta.testo(sb.toString());
         }
+        Map<String, Map<String, Long>> pivot = g.contaPer(colonne[0], colonne[1], filtro);
+        Map<String, Long> totali = new HashMap<>(pivot.size() * 2);
+        for (Map.Entry<String, Map<String, Long>> e : pivot.entrySet()) {
+            long totale = 0;
+            for (long n : e.getValue().values()) {
+                totale += n;
+            }
+            totali.put(e.getKey(), totale);
+        }
+        for (Map.Entry<String, Long> e : ordinaPerConteggio(totali)) {
+            sb.append('\n').append(e.getKey()).append(": ").append(e.getValue());
+            for (Map.Entry<String, Long> f : ordinaPerConteggio(pivot.get(e.getKey()))) {
+                sb.append("\n  ").append(f.getKey()).append(": ").append(f.getValue());
+            }
+        }
+        return Risposta.testo(sb.toString());
+    }
+
+    /**
+     * Ordina i conteggi in modo decrescente, a parità di conteggio per valore.
+     */
+    private static List<Map.Entry<String, Long>> ordinaPerConteggio(Map<String, Long> conteggi) {
+        List<Map.Entry<String, Long>> voci = new ArrayList<>(conteggi.entrySet());
+        voci.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        return voci;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,536 @@
+package server.src;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ServerTcpNio è un motore TCP alternativo a ThreadClientHandler basato su
+ * ServerSocketChannel e Selector: un piccolo numero fisso di cicli di eventi
+ * gestisce tutte le sessioni in modo non bloccante, mentre l'elaborazione dei
+ * comandi è affidata a un pool limitato di thread lavoratori.
+ *
+ * <p>Il comportamento della sessione è lo stesso del motore a thread:
+ * messaggio di benvenuto, prompt {@code >>> }, comandi {@code help}, {@code exit}
+ * e {@code modo frame}.
+ * I comandi di una stessa sessione vengono eseguiti in ordine: quelli arrivati
+ * di seguito (pipeline) sono elaborati in un unico compito del lavoratore,
+ * anche mentre le risposte precedenti sono ancora in scrittura. Anche le righe
+ * delle risposte sono composte dai lavoratori, BYTE_PER_COMPITO alla volta:
+ * i cicli di eventi scrivono soltanto buffer già pronti.
+ */
+public class ServerTcpNio implements Runnable {
+    /** Lunghezza massima di una riga di comando, in byte. */
+    private static final int MAX_RIGA = 8192;
+    /** Numero massimo di comandi in attesa per sessione prima di sospendere la lettura. */
+    private static final int MAX_COMANDI_IN_ATTESA = 64;
+    /** Numero massimo di comandi elaborati in un unico compito del lavoratore. */
+    private static final int MAX_COMANDI_PER_COMPITO = 16;
+    /**
+     * Byte di risposta composti al più da un compito del lavoratore; con almeno
+     * altrettanti byte in uscita la sessione non avvia altri compiti.
+     */
+    private static final int BYTE_PER_COMPITO = 256 * 1024;
+    /** Numero massimo di buffer passati a una singola scrittura gathering. */
+    private static final int BUFFER_PER_SCRITTURA = 256;
+    /** Capacità della coda di lavoro del pool dei lavoratori. */
+    private static final int CODA_LAVORATORI = 1024;
+
+    private static final byte[] BENVENUTO = ("Benvenuto nel server Strutture Ricettive!\n"
+            + "Digita 'help' per l'elenco comandi, 'exit' per chiudere.\n>>> ").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PROMPT = ">>> ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ARRIVEDERCI = "Chiusura connessione. Arrivederci!\n".getBytes(StandardCharsets.UTF_8);
+    private static final String ERRORE_OCCUPATO = "ERROR: Server occupato, riprovare.";
+    private static final String ERRORE_INTERNO = "ERROR: Errore interno del server.";
+
+    /** Porta di ascolto TCP. */
+    private final int porta;
+    /** Archivio del dataset: ogni lotto di comandi usa lo snapshot corrente. */
+    private final ArchivioStrutture archivio;
+    /** Cache delle risposte condivisa con il server UDP. */
+    private final CacheRisposte cache;
+    /** Cicli di eventi tra cui vengono distribuite le sessioni. */
+    private final CicloEventi[] cicli;
+    /** Pool limitato che esegue l'elaborazione dei comandi. */
+    private final ExecutorService lavoratori;
+
+    /**
+     * Costruisce il motore NIO.
+     *
+     * @param porta         porta TCP di ascolto
+     * @param archivio      archivio del dataset corrente
+     * @param cache         cache delle risposte
+     * @param numCicli      numero di thread ciclo di eventi
+     * @param numLavoratori numero di thread per l'elaborazione dei comandi
+     */
+    public ServerTcpNio(int porta, ArchivioStrutture archivio, CacheRisposte cache, int numCicli, int numLavoratori) {
+        this.porta = porta;
+        this.archivio = archivio;
+        this.cache = cache;
+        this.cicli = new CicloEventi[numCicli];
+        this.lavoratori = new ThreadPoolExecutor(numLavoratori, numLavoratori, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(CODA_LAVORATORI), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Avvia i cicli di eventi e accetta le connessioni, assegnandole
+     * a turno ai cicli. Il thread chiamante resta dedicato all'accept.
+     */
+    @Override
+    public void run() {
+        try (ServerSocketChannel ss = ServerSocketChannel.open()) {
+            ss.bind(new InetSocketAddress(porta));
+            for (int i = 0; i < cicli.length; i++) {
+                cicli[i] = new CicloEventi(Selector.open());
+                Thread t = new Thread(cicli[i], "nio-ciclo-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            int prossimo = 0;
+            while (true) {
+                SocketChannel client = ss.accept();
+                Socket socket = client.socket();
+                // Log di connessione
+                System.out.println("[TCP] Connessione ricevuta da "
+                        + socket.getInetAddress().getHostAddress()
+                        + ":" + socket.getPort());
+                // Risposte in pipeline: niente ritardo di Nagle tra una scrittura e l'altra
+                socket.setTcpNoDelay(true);
+                client.configureBlocking(false);
+                cicli[prossimo].registra(client);
+                prossimo = (prossimo + 1) % cicli.length;
+            }
+        } catch (IOException e) {
+            // Errore di I/O sul ServerSocketChannel
+            System.err.println("[TCP-NIO] Errore: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ciclo di eventi: un thread con il proprio Selector che esegue letture,
+     * scritture e i compiti che gli altri thread gli affidano.
+     */
+    private final class CicloEventi implements Runnable {
+        private final Selector selector;
+        /** Compiti da eseguire nel thread del ciclo (registrazioni, risposte pronte). */
+        private final Queue<Runnable> compiti = new ConcurrentLinkedQueue<>();
+        /** Buffer di lettura riutilizzato da tutte le sessioni del ciclo. */
+        private final ByteBuffer lettura = ByteBuffer.allocateDirect(16 * 1024);
+        /** Array riutilizzato per le scritture gathering delle sessioni del ciclo. */
+        private final ByteBuffer[] lotto = new ByteBuffer[BUFFER_PER_SCRITTURA];
+
+        CicloEventi(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Affida un compito al ciclo e lo risveglia.
+         */
+        void esegui(Runnable compito) {
+            compiti.add(compito);
+            selector.wakeup();
+        }
+
+        /**
+         * Registra un nuovo client e accoda il messaggio di benvenuto.
+         */
+        void registra(SocketChannel client) {
+            esegui(() -> {
+                try {
+                    SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+                    Sessione s = new Sessione(client, key, this);
+                    key.attach(s);
+                    s.accoda(ByteBuffer.wrap(BENVENUTO));
+                    s.procedi();
+                } catch (IOException e) {
+                    chiudi(client);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    selector.select();
+                    Runnable compito;
+                    while ((compito = compiti.poll()) != null) {
+                        try {
+                            compito.run();
+                        } catch (RuntimeException | Error e) {
+                            System.err.println("[TCP-NIO] Errore in un compito del ciclo: " + e);
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Sessione s = (Sessione) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                s.leggi(lettura);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                s.procedi();
+                            }
+                        } catch (IOException e) {
+                            s.chiudi();
+                        } catch (RuntimeException | Error e) {
+                            // Un errore in una sessione chiude solo quella
+                            s.errore(e);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.err.println("[TCP-NIO] Errore nel ciclo di eventi: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stato di una singola sessione TCP. Tutti i metodi sono eseguiti
+     * esclusivamente nel thread del ciclo di eventi a cui appartiene.
+     */
+    private final class Sessione {
+        private final SocketChannel canale;
+        private final SelectionKey key;
+        private final CicloEventi ciclo;
+        /** Byte della riga in corso di ricezione. */
+        private final byte[] riga = new byte[MAX_RIGA];
+        private int lunghezzaRiga;
+        private boolean rigaTroppoLunga;
+        /** Comandi ricevuti e non ancora elaborati. */
+        private final Queue<String> comandi = new ArrayDeque<>();
+        /** Buffer già composti e non ancora scritti per intero. */
+        private final ArrayDeque<ByteBuffer> uscita = new ArrayDeque<>();
+        /** Byte di uscita non ancora scritti. */
+        private long byteInUscita;
+        /** Risposte composte solo in parte, in ordine di invio; le riprende il prossimo compito. */
+        private ArrayDeque<Iterator<ByteBuffer>> daComporre = new ArrayDeque<>();
+        /** True mentre un compito della sessione è in corso su un lavoratore. */
+        private boolean occupata;
+        /** True se la sessione va chiusa appena l'uscita è svuotata. */
+        private boolean chiudiDopoInvio;
+        /** True dopo "modo frame": risposte con lunghezza esplicita e senza prompt. */
+        private boolean inFrame;
+
+        Sessione(SocketChannel canale, SelectionKey key, CicloEventi ciclo) {
+            this.canale = canale;
+            this.key = key;
+            this.ciclo = ciclo;
+        }
+
+        /**
+         * Legge i byte disponibili e li suddivide in righe di comando.
+         */
+        void leggi(ByteBuffer buf) throws IOException {
+            buf.clear();
+            int n = canale.read(buf);
+            if (n < 0) {
+                chiudi();
+                return;
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                byte b = buf.get();
+                if (b == '\n') {
+                    if (!rigaTroppoLunga) {
+                        int len = lunghezzaRiga > 0 && riga[lunghezzaRiga - 1] == '\r' ? lunghezzaRiga - 1 : lunghezzaRiga;
+                        comandi.add(new String(riga, 0, len, StandardCharsets.UTF_8));
+                    }
+                    lunghezzaRiga = 0;
+                    rigaTroppoLunga = false;
+                } else if (lunghezzaRiga < riga.length) {
+                    riga[lunghezzaRiga++] = b;
+                } else {
+                    // Le righe oltre MAX_RIGA vengono scartate per intero
+                    rigaTroppoLunga = true;
+                }
+            }
+            if (comandi.size() >= MAX_COMANDI_IN_ATTESA) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            procedi();
+        }
+
+        /**
+         * Alterna scrittura dell'uscita e avvio dei comandi in attesa finché
+         * ci sono comandi che possono partire.
+         */
+        void procedi() throws IOException {
+            do {
+                scrivi();
+                if (!key.isValid()) {
+                    return;
+                }
+            } while (avviaProssimo());
+        }
+
+        /**
+         * Avvia un compito del lavoratore se la sessione è libera e l'uscita
+         * è sotto BYTE_PER_COMPITO: il compito riprende la composizione delle
+         * risposte lasciate a metà e poi elabora i comandi ordinari consecutivi.
+         * Help, exit e modo frame sono gestiti qui, solo a composizione finita,
+         * così le risposte restano nell'ordine dei comandi. La scrittura spetta
+         * al chiamante.
+         *
+         * @return true se almeno un comando o una composizione è stato avviato
+         */
+        private boolean avviaProssimo() {
+            boolean avviati = false;
+            while (!occupata && !chiudiDopoInvio && byteInUscita < BYTE_PER_COMPITO
+                    && (!daComporre.isEmpty() || !comandi.isEmpty())) {
+                avviati = true;
+                if (daComporre.isEmpty()) {
+                    // L'id di una richiesta "#id comando" torna nell'intestazione della risposta
+                    String riga = comandi.peek().trim();
+                    int id = Protocollo.idRichiesta(riga);
+                    String cmd = Protocollo.comandoRichiesta(riga);
+                    if (cmd.equalsIgnoreCase(Protocollo.EXIT)) {
+                        comandi.poll();
+                        accoda(ByteBuffer.wrap(ARRIVEDERCI));
+                        chiudiDopoInvio = true;
+                        continue;
+                    } else if (cmd.equalsIgnoreCase(Protocollo.HELP)) {
+                        comandi.poll();
+                        accodaTesto(id, Protocollo.getHelpMessage());
+                        continue;
+                    } else if (cmd.equalsIgnoreCase(Protocollo.MODO_FRAME)) {
+                        comandi.poll();
+                        inFrame = true;
+                        accodaTesto(id, Protocollo.FRAME_ATTIVO);
+                        continue;
+                    }
+                }
+                List<String> lotto = new ArrayList<>();
+                while (lotto.size() < MAX_COMANDI_PER_COMPITO && !comandi.isEmpty()
+                        && !speciale(Protocollo.comandoRichiesta(comandi.peek().trim()))) {
+                    lotto.add(comandi.poll().trim());
+                }
+                if (comandi.size() < MAX_COMANDI_IN_ATTESA && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+                // Le sorgenti passano al lavoratore, che le restituisce con completa()
+                ArrayDeque<Iterator<ByteBuffer>> sorgenti = daComporre;
+                daComporre = new ArrayDeque<>();
+                boolean frame = inFrame;
+                occupata = true;
+                try {
+                    lavoratori.execute(() -> {
+                        List<ByteBuffer> composti = new ArrayList<>();
+                        Throwable errore = null;
+                        try {
+                            GestoreCSV gestore = archivio.corrente();
+                            for (String richiesta : lotto) {
+                                Risposta r;
+                                try {
+                                    r = ServerStrutture.elaboraRichiesta(gestore, cache,
+                                            Protocollo.comandoRichiesta(richiesta));
+                                } catch (RuntimeException | StackOverflowError e) {
+                                    System.err.println("[TCP-NIO] Errore nel comando '" + richiesta + "': " + e);
+                                    r = Risposta.testo(ERRORE_INTERNO);
+                                }
+                                aggiungiRisposta(sorgenti, r, frame, Protocollo.idRichiesta(richiesta));
+                            }
+                            componi(sorgenti, composti);
+                        } catch (RuntimeException | Error e) {
+                            errore = e;
+                        } finally {
+                            // La sessione torna libera anche se l'elaborazione è fallita
+                            Throwable fallimento = errore;
+                            ciclo.esegui(() -> completa(composti, sorgenti, fallimento));
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Pool saturo: i comandi ricevono un errore e la composizione
+                    // già iniziata prosegue qui, un lotto di uscita alla volta
+                    occupata = false;
+                    for (String richiesta : lotto) {
+                        aggiungiRisposta(sorgenti, Risposta.testo(ERRORE_OCCUPATO), frame, Protocollo.idRichiesta(richiesta));
+                    }
+                    List<ByteBuffer> composti = new ArrayList<>();
+                    componi(sorgenti, composti);
+                    composti.forEach(this::accoda);
+                    daComporre = sorgenti;
+                }
+            }
+            return avviati;
+        }
+
+        /**
+         * Accoda i buffer composti da un lavoratore e conserva le sorgenti non
+         * ancora esaurite, che il prossimo compito riprenderà. Un errore nella
+         * composizione chiude la sessione: la risposta non può più essere completata.
+         */
+        private void completa(List<ByteBuffer> composti, ArrayDeque<Iterator<ByteBuffer>> sorgenti,
+                              Throwable fallimento) {
+            occupata = false;
+            if (!key.isValid()) {
+                return;
+            }
+            if (fallimento != null) {
+                errore(fallimento);
+                return;
+            }
+            composti.forEach(this::accoda);
+            daComporre = sorgenti;
+            // Una sola scrittura per tutto il lotto
+            procediSicuro();
+        }
+
+        /**
+         * Indica se il comando è gestito dal ciclo di eventi senza lavoratore.
+         */
+        private boolean speciale(String cmd) {
+            return cmd.equalsIgnoreCase(Protocollo.EXIT) || cmd.equalsIgnoreCase(Protocollo.HELP)
+                    || cmd.equalsIgnoreCase(Protocollo.MODO_FRAME);
+        }
+
+        /**
+         * Accoda una risposta testuale breve, composta nel ciclo di eventi.
+         */
+        private void accodaTesto(int id, String testo) {
+            Queue<Iterator<ByteBuffer>> sorgenti = new ArrayDeque<>();
+            aggiungiRisposta(sorgenti, Risposta.testo(testo), inFrame, id);
+            for (Iterator<ByteBuffer> it : sorgenti) {
+                it.forEachRemaining(this::accoda);
+            }
+        }
+
+        void accoda(ByteBuffer buf) {
+            uscita.add(buf);
+            byteInUscita += buf.remaining();
+        }
+
+        /**
+         * Scrive quanto possibile senza bloccare; se resta dell'output
+         * si registra per OP_WRITE.
+         */
+        void scrivi() throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            ByteBuffer[] lotto = ciclo.lotto;
+            while (!uscita.isEmpty()) {
+                int n = 0;
+                for (ByteBuffer b : uscita) {
+                    lotto[n++] = b;
+                    if (n == lotto.length) {
+                        break;
+                    }
+                }
+                byteInUscita -= canale.write(lotto, 0, n);
+                boolean lottoCompleto = !lotto[n - 1].hasRemaining();
+                Arrays.fill(lotto, 0, n, null);
+                while (!uscita.isEmpty() && !uscita.peek().hasRemaining()) {
+                    uscita.poll();
+                }
+                if (!lottoCompleto) {
+                    // Il socket non accetta altri dati: si riprende su OP_WRITE
+                    break;
+                }
+            }
+            if (uscita.isEmpty()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (chiudiDopoInvio) {
+                    chiudi();
+                }
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Come procedi(), ma chiude la sessione in caso di errore.
+         */
+        private void procediSicuro() {
+            try {
+                procedi();
+            } catch (IOException e) {
+                chiudi();
+            } catch (RuntimeException | Error e) {
+                errore(e);
+            }
+        }
+
+        /**
+         * Registra un errore inatteso della sessione e la chiude.
+         */
+        void errore(Throwable e) {
+            System.err.println("[TCP-NIO] Errore nella sessione: " + e);
+            chiudi();
+        }
+
+        void chiudi() {
+            key.cancel();
+            uscita.clear();
+            daComporre.clear();
+            comandi.clear();
+            ServerTcpNio.chiudi(canale);
+        }
+    }
+
+    /**
+     * Aggiunge alle sorgenti la risposta seguita dal prompt, oppure in
+     * modalità frame con l'id della richiesta. Le righe sono composte solo
+     * quando gli iteratori le raggiungono.
+     */
+    private static void aggiungiRisposta(Queue<Iterator<ByteBuffer>> sorgenti, Risposta r, boolean inFrame, int id) {
+        if (inFrame) {
+            sorgenti.add(r.bufferInFrame(id));
+        } else {
+            sorgenti.add(r.buffer());
+            sorgenti.add(Collections.singletonList(ByteBuffer.wrap(PROMPT)).iterator());
+        }
+    }
+
+    /**
+     * Estrae dalle sorgenti, in ordine, circa BYTE_PER_COMPITO byte di buffer;
+     * le sorgenti esaurite vengono rimosse. Eseguito dai lavoratori.
+     */
+    private static void componi(Queue<Iterator<ByteBuffer>> sorgenti, List<ByteBuffer> composti) {
+        long byteComposti = 0;
+        while (!sorgenti.isEmpty()) {
+            Iterator<ByteBuffer> it = sorgenti.peek();
+            if (!it.hasNext()) {
+                sorgenti.poll();
+            } else if (byteComposti >= BYTE_PER_COMPITO) {
+                break;
+            } else {
+                ByteBuffer b = it.next();
+                composti.add(b);
+                byteComposti += b.remaining();
+            }
+        }
+    }
+
+    /**
+     * Chiude un canale ignorando eventuali errori.
+     */
+    private static void chiudi(SocketChannel canale) {
+        try {
+            canale.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package server.src;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ServerUdp riceve e invia i datagrammi con più cicli non bloccanti, ciascuno
+ * con il proprio DatagramChannel e il proprio Selector. Dove il sistema
+ * supporta SO_REUSEPORT ogni ciclo apre un canale sulla stessa porta e il
+ * kernel distribuisce i client tra i canali; altrimenti un solo ciclo
+ * riceve tutto.
+ *
+ * <p>Il ciclo decodifica il comando appena ricevuto e passa all'esecutore
+ * solo la stringa: il buffer di ricezione non viene mai condiviso con altri
+ * thread. I datagrammi in uscita usano buffer diretti presi da due pool
+ * (frammenti standard e frammenti grandi negoziati dai client) e vengono
+ * inviati dal ciclo che possiede il canale, in ordine di accodamento.
+ * Il log delle richieste è scritto da un thread dedicato.
+ */
+public class ServerUdp implements Runnable {
+    /** Dimensione massima di un datagramma ricevuto. */
+    private static final int MAX_DATAGRAMMA = 8192;
+    /** Capacità dei buffer piccoli: un frammento standard con la sua intestazione. */
+    private static final int CAPACITA_PICCOLI = TrasmissioneUdp.INTESTAZIONE_DATI + Protocollo.UDP_CHUNK_SIZE;
+    /** Capacità dei buffer grandi: il frammento più grande negoziabile. */
+    private static final int CAPACITA_GRANDI = TrasmissioneUdp.INTESTAZIONE_DATI + TrasmissioneUdp.MAX_FRAMMENTO;
+    /** Datagrammi ricevuti al massimo per risveglio, per non ritardare gli invii. */
+    private static final int RICEZIONI_PER_GIRO = 64;
+    /** Buffer di invio richiesto per ogni canale. */
+    private static final int BUFFER_INVIO = 1 << 20;
+    private static final byte[] FINE = "__END__".getBytes(StandardCharsets.UTF_8);
+
+    /** Porta di ascolto UDP. */
+    private final int porta;
+    /** Archivio del dataset: ogni richiesta usa lo snapshot corrente. */
+    private final ArchivioStrutture archivio;
+    /** Cache delle risposte condivisa con il server TCP. */
+    private final CacheRisposte cache;
+    /** Esecutore che calcola le risposte e segue le trasmissioni affidabili. */
+    private final ExecutorService esecutore;
+    /** Numero di cicli richiesti, usato se SO_REUSEPORT è disponibile. */
+    private final int numCicli;
+    /** Buffer diretti in uscita pronti per il riuso, per frammenti standard. */
+    private final PoolBuffer piccoli = new PoolBuffer(CAPACITA_PICCOLI, 1024);
+    /** Buffer diretti in uscita pronti per il riuso, per frammenti negoziati più grandi. */
+    private final PoolBuffer grandi = new PoolBuffer(CAPACITA_GRANDI, 64);
+    /** Trasmissioni affidabili in corso, per indirizzo del client e id della richiesta. */
+    private final ConcurrentMap<String, TrasmissioneUdp> trasmissioni = new ConcurrentHashMap<>();
+    private final Registro registro = new Registro();
+
+    /**
+     * Costruisce il server UDP.
+     *
+     * @param porta     porta UDP di ascolto
+     * @param archivio  archivio del dataset corrente
+     * @param cache     cache delle risposte
+     * @param numCicli  numero di cicli di ricezione e invio
+     * @param esecutore esecutore per l'elaborazione delle richieste
+     */
+    public ServerUdp(int porta, ArchivioStrutture archivio, CacheRisposte cache, int numCicli, ExecutorService esecutore) {
+        this.porta = porta;
+        this.archivio = archivio;
+        this.cache = cache;
+        this.numCicli = numCicli;
+        this.esecutore = esecutore;
+    }
+
+    /**
+     * Apre i canali e avvia i cicli; il thread chiamante diventa il primo ciclo.
+     */
+    @Override
+    public void run() {
+        try {
+            DatagramChannel primo = DatagramChannel.open();
+            boolean riusoPorta = primo.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            int n = riusoPorta ? numCicli : 1;
+            Ciclo[] cicli = new Ciclo[n];
+            for (int i = 0; i < n; i++) {
+                DatagramChannel canale = i == 0 ? primo : DatagramChannel.open();
+                if (riusoPorta) {
+                    canale.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                // Spazio per una finestra di frammenti grandi senza attese di OP_WRITE
+                canale.setOption(StandardSocketOptions.SO_SNDBUF, BUFFER_INVIO);
+                canale.bind(new InetSocketAddress(porta));
+                canale.configureBlocking(false);
+                cicli[i] = new Ciclo(canale, Selector.open());
+            }
+            registro.scrivi("[UDP] " + n + " cicli di ricezione" + (riusoPorta ? " (SO_REUSEPORT)" : ""));
+            for (int i = 1; i < n; i++) {
+                Thread t = new Thread(cicli[i], "udp-ciclo-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            cicli[0].run();
+        } catch (IOException e) {
+            // Errore di I/O nell'apertura dei DatagramChannel
+            System.err.println("[UDP] Errore: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Elabora un comando ricevuto via UDP e restituisce la risposta codificata.
+     * Il comando help riceve il messaggio di aiuto completo.
+     */
+    private byte[] risposta(String cmd) {
+        if (cmd.equalsIgnoreCase(Protocollo.HELP)) {
+            // Comando di aiuto: messaggio predefinito
+            return Protocollo.getHelpMessage().getBytes(StandardCharsets.UTF_8);
+        }
+        // Le righe arrivano già codificate: nessuna stringa intermedia
+        return ServerStrutture.elaboraRichiesta(archivio.corrente(), cache, cmd).toBytes();
+    }
+
+    /**
+     * Ciclo di ricezione e invio su un DatagramChannel non bloccante.
+     */
+    private final class Ciclo implements Runnable, TrasmissioneUdp.Uscita {
+        private final DatagramChannel canale;
+        private final Selector selector;
+        private final SelectionKey key;
+        /** Buffer di ricezione, usato solo dal thread del ciclo. */
+        private final ByteBuffer ricezione = ByteBuffer.allocateDirect(MAX_DATAGRAMMA);
+        /** Datagrammi accodati dagli altri thread e non ancora inviati. */
+        private final Queue<Datagramma> uscita = new ConcurrentLinkedQueue<>();
+
+        Ciclo(DatagramChannel canale, Selector selector) throws IOException {
+            this.canale = canale;
+            this.selector = selector;
+            this.key = canale.register(selector, SelectionKey.OP_READ);
+        }
+
+        @Override
+        public ByteBuffer buffer(int capacita) {
+            return capacita <= CAPACITA_PICCOLI ? piccoli.prendi() : grandi.prendi();
+        }
+
+        @Override
+        public void invia(ByteBuffer datagramma, SocketAddress dest) {
+            uscita.add(new Datagramma(datagramma, dest));
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    ricevi();
+                    svuotaUscita();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.err.println("[UDP] Errore nel ciclo: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Riceve i datagrammi disponibili, fino a RICEZIONI_PER_GIRO.
+         */
+        private void ricevi() throws IOException {
+            for (int i = 0; i < RICEZIONI_PER_GIRO; i++) {
+                ricezione.clear();
+                SocketAddress da = canale.receive(ricezione);
+                if (da == null) {
+                    return;
+                }
+                ricezione.flip();
+                if (ricezione.remaining() >= TrasmissioneUdp.INTESTAZIONE
+                        && ricezione.get(0) == TrasmissioneUdp.MAGIA) {
+                    datagrammaAffidabile(da);
+                } else {
+                    String cmd = StandardCharsets.UTF_8.decode(ricezione).toString().trim();
+                    registro.scrivi("[UDP] Richiesta da " + da + "  comando=\"" + cmd + "\"");
+                    esecutore.execute(() -> inviaAFrammenti(cmd, da));
+                }
+            }
+        }
+
+        /**
+         * Gestisce un datagramma del protocollo affidabile. Una richiesta avvia una
+         * {@link TrasmissioneUdp}, a meno che la stessa richiesta non sia già in corso
+         * (il client l'ha ripetuta) o non sia exit, che non riceve risposta; un
+         * riscontro viene consegnato alla trasmissione a cui si riferisce.
+         */
+        private void datagrammaAffidabile(SocketAddress client) {
+            ricezione.get();
+            byte tipo = ricezione.get();
+            int id = ricezione.getInt();
+            String chiave = client + "#" + id;
+            if (tipo == TrasmissioneUdp.TIPO_RISCONTRO) {
+                TrasmissioneUdp t = trasmissioni.get(chiave);
+                if (t != null) {
+                    t.riscontro(ricezione);
+                }
+            } else if (tipo == TrasmissioneUdp.TIPO_RICHIESTA
+                    && ricezione.limit() >= TrasmissioneUdp.INTESTAZIONE_RICHIESTA) {
+                int frammento = ricezione.getInt();
+                int finestra = ricezione.getInt();
+                String cmd = StandardCharsets.UTF_8.decode(ricezione).toString().trim();
+                if (cmd.equalsIgnoreCase(Protocollo.EXIT)) {
+                    // Il client chiude il socket subito dopo exit: una risposta resterebbe
+                    // senza riscontri e verrebbe ritrasmessa fino all'abbandono
+                    registro.scrivi("[UDP] Richiesta da " + client + "  id=" + id + "  comando=\"" + cmd + "\"");
+                    return;
+                }
+                TrasmissioneUdp t = new TrasmissioneUdp(this, client, id,
+                        () -> risposta(cmd), frammento, finestra);
+                if (trasmissioni.putIfAbsent(chiave, t) != null) {
+                    return;
+                }
+                registro.scrivi("[UDP] Richiesta da " + client + "  id=" + id + "  comando=\"" + cmd + "\"");
+                esecutore.execute(() -> {
+                    try {
+                        t.run();
+                    } finally {
+                        trasmissioni.remove(chiave, t);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Risposta storica ai comandi testuali: frammenti seguiti dal marker __END__.
+         */
+        private void inviaAFrammenti(String cmd, SocketAddress dest) {
+            byte[] dati = risposta(cmd);
+            // Frammentazione della risposta su confini di carattere, se troppo lunga
+            int[] confini = TrasmissioneUdp.confiniFrammenti(dati, Protocollo.UDP_CHUNK_SIZE);
+            for (int i = 0; i + 1 < confini.length && dati.length > 0; i++) {
+                int len = confini[i + 1] - confini[i];
+                invia(piccoli.prendi().put(dati, confini[i], len).flip(), dest);
+            }
+            // Invio del marker di fine
+            invia(piccoli.prendi().put(FINE).flip(), dest);
+        }
+
+        /**
+         * Invia i datagrammi accodati finché il buffer del socket lo consente;
+         * se si riempie, il ciclo attende che il canale torni scrivibile.
+         */
+        private void svuotaUscita() throws IOException {
+            Datagramma d;
+            while ((d = uscita.peek()) != null) {
+                try {
+                    if (canale.send(d.dati, d.dest) == 0) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                } catch (IOException e) {
+                    // Destinazione irraggiungibile: il datagramma viene scartato
+                    System.err.println("[UDP] Errore di invio a " + d.dest + ": " + e.getMessage());
+                }
+                uscita.poll();
+                (d.dati.capacity() == CAPACITA_PICCOLI ? piccoli : grandi).restituisci(d.dati);
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Pool limitato di buffer diretti di capacità fissa.
+     */
+    private static final class PoolBuffer {
+        private final Queue<ByteBuffer> liberi = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger quanti = new AtomicInteger();
+        private final int capacita;
+        private final int massimo;
+
+        PoolBuffer(int capacita, int massimo) {
+            this.capacita = capacita;
+            this.massimo = massimo;
+        }
+
+        ByteBuffer prendi() {
+            ByteBuffer b = liberi.poll();
+            if (b == null) {
+                return ByteBuffer.allocateDirect(capacita);
+            }
+            quanti.decrementAndGet();
+            return b.clear();
+        }
+
+        /**
+         * Rimette nel pool un buffer già inviato, se il pool non è pieno.
+         */
+        void restituisci(ByteBuffer b) {
+            if (quanti.incrementAndGet() <= massimo) {
+                liberi.add(b);
+            } else {
+                quanti.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Datagramma in attesa di invio.
+     */
+    private static final class Datagramma {
+        final ByteBuffer dati;
+        final SocketAddress dest;
+
+        Datagramma(ByteBuffer dati, SocketAddress dest) {
+            this.dati = dati;
+            this.dest = dest;
+        }
+    }
+
+    /**
+     * Log asincrono: i messaggi vengono accodati senza attese e stampati da un
+     * thread dedicato, a blocchi. Se la coda è piena i messaggi vengono scartati
+     * e il loro numero è riportato alla stampa successiva.
+     */
+    private static final class Registro implements Runnable {
+        private static final int CAPACITA = 4096;
+        private final BlockingQueue<String> coda = new ArrayBlockingQueue<>(CAPACITA);
+        private final AtomicLong scartati = new AtomicLong();
+
+        Registro() {
+            Thread t = new Thread(this, "udp-log");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void scrivi(String messaggio) {
+            if (!coda.offer(messaggio)) {
+                scartati.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void run() {
+            StringBuilder sb = new StringBuilder();
+            try {
+                while (true) {
+                    sb.append(coda.take()).append('\n');
+                    String m;
+                    while ((m = coda.poll()) != null) {
+                        sb.append(m).append('\n');
+                    }
+                    long persi = scartati.getAndSet(0);
+                    if (persi > 0) {
+                        sb.append("[UDP] ").append(persi).append(" messaggi di log scartati\n");
+                    }
+                    System.out.print(sb);
+                    sb.setLength(0);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
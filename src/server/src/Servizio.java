@@ -0,0 +1,74 @@
+package server.src;
+
+import java.util.Locale;
+
+/**
+ * Servizi e marchi di tipo SI/NO di una struttura ricettiva.
+ * Ogni servizio ha un nome usato nel protocollo e i campi del CSV
+ * che lo indicano: è presente se almeno uno di essi vale "SI".
+ * GestoreCSV ne ricava un indice bitset al caricamento.
+ */
+public enum Servizio {
+    DISABILI("disabili", "disabili"),
+    ANIMALI("animali", "animali"),
+    ASSEGNO("assegno", "assegno"),
+    BANCOMAT("bancomat", "bancomat"),
+    CARTE("carte", "carta_credito"),
+    GARAGE("garage", "garage"),
+    ASCENSORE("ascensore", "ascensore"),
+    PARCHEGGIO("parcheggio", "parcheggio"),
+    ARIA_CAMERE("aria_camere", "aria_camere"),
+    ARIA_APPARTAMENTI("aria_appartamenti", "aria_appartamenti"),
+    ARIA_CONDIZIONATA("aria", "aria_camere", "aria_appartamenti"),
+    ECOLABEL("ecolabel", "ecolabel"),
+    MARCHIO_Q("q", "marchio_q"),
+    MARCHIO_YES("yes", "marchio_yes");
+
+    /** Nome del servizio nei comandi del protocollo. */
+    private final String nome;
+    /** Indici dei campi SI/NO del CSV che indicano il servizio. */
+    private final int[] campi;
+
+    Servizio(String nome, String... campi) {
+        this.nome = nome;
+        this.campi = new int[campi.length];
+        for (int i = 0; i < campi.length; i++) {
+            this.campi[i] = ColonneCodificate.campo(campi[i]);
+        }
+    }
+
+    /**
+     * Restituisce il nome del servizio usato nel protocollo.
+     *
+     * @return nome del servizio
+     */
+    public String getNome() {
+        return nome;
+    }
+
+    /**
+     * Restituisce i campi del CSV che indicano il servizio. L'array è
+     * condiviso e non va modificato.
+     *
+     * @return indici dei campi in ColonneCodificate
+     */
+    int[] getCampi() {
+        return campi;
+    }
+
+    /**
+     * Cerca un servizio a partire dal nome (case-insensitive).
+     *
+     * @param nome nome del servizio
+     * @return il servizio corrispondente, o null se sconosciuto
+     */
+    public static Servizio daNome(String nome) {
+        String n = nome.trim().toLowerCase(Locale.ROOT);
+        for (Servizio s : values()) {
+            if (s.nome.equals(n)) {
+                return s;
+            }
+        }
+        return null;
+    }
+}
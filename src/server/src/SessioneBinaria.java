@@ -0,0 +1,321 @@
+package server.src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SessioneBinaria gestisce una connessione del protocollo binario descritto
+ * in {@link ServerBinario}. Legge i frame in un buffer unico, risponde a tutti
+ * quelli già arrivati e invia le risposte accumulate con una sola scrittura:
+ * una raffica di richieste in pipeline costa poche chiamate di sistema.
+ *
+ * <p>Payload di un frame RIGHE (interi big-endian):
+ * <pre>
+ *   righe        : int n
+ *   intestazione : int lunghezza, testo UTF-8 (lunghezza 0 se assente)
+ *   chiusura     : int lunghezza, testo UTF-8 (lunghezza 0 se assente)
+ *   colonne      : byte m, poi per ogni colonna nell'ordine del benvenuto
+ *     valori     : int k, poi k volte short lunghezza e valore UTF-8
+ *     larghezza  : byte 1, 2 o 4
+ *     codici     : n interi senza segno di larghezza byte, posizioni nei valori
+ * </pre>
+ * Il dizionario di ogni colonna contiene solo i valori presenti nella
+ * risposta, in ordine di prima comparsa. Intestazione e chiusura sono le
+ * righe "Totale" e "Cursore" delle risposte paginate.
+ */
+final class SessioneBinaria implements Runnable {
+    /** Capacità iniziale del buffer delle risposte. */
+    private static final int CAPACITA_USCITA = 64 * 1024;
+    /** Oltre questa capacità il buffer cresciuto per una risposta grande viene rilasciato. */
+    private static final int MAX_USCITA_TRATTENUTA = 1 << 20;
+
+    private final SocketChannel canale;
+    private final ArchivioStrutture archivio;
+    private final CacheRisposte cache;
+    /** Frame ricevuti e non ancora elaborati: ne contiene sempre almeno uno completo. */
+    private final ByteBuffer ingresso = ByteBuffer.allocate(ServerBinario.INTESTAZIONE + ServerBinario.MAX_RICHIESTA);
+    /** Risposte in attesa di scrittura. */
+    private ByteBuffer uscita = ByteBuffer.allocate(CAPACITA_USCITA);
+    /**
+     * Per ogni colonna, codice globale -> posizione nel dizionario della
+     * risposta più uno (0 = valore non ancora visto). Viene azzerata dopo ogni
+     * colonna e ingrandita se un nuovo snapshot ha un dizionario più grande.
+     */
+    private final int[][] mappe = new int[ColonneCodificate.NUMERO_CAMPI][];
+    /** Codici globali dei valori della colonna corrente, in ordine di comparsa. */
+    private int[] valori = new int[0];
+    /** Codici locali delle righe per la colonna corrente. */
+    private int[] codici = new int[0];
+
+    /**
+     * Crea la sessione per una connessione accettata.
+     *
+     * @param canale   canale del client, in modalità bloccante
+     * @param archivio archivio del dataset corrente
+     * @param cache    cache delle risposte condivisa
+     */
+    SessioneBinaria(SocketChannel canale, ArchivioStrutture archivio, CacheRisposte cache) {
+        this.canale = canale;
+        this.archivio = archivio;
+        this.cache = cache;
+    }
+
+    /**
+     * Invia il benvenuto, poi legge ed elabora i frame finché il client non chiude.
+     */
+    @Override
+    public void run() {
+        try (canale) {
+            benvenuto();
+            svuota();
+            while (canale.read(ingresso) >= 0) {
+                ingresso.flip();
+                boolean chiudi = elaboraFrame();
+                ingresso.compact();
+                svuota();
+                if (chiudi) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Connessione chiusa o interrotta dal client
+        }
+    }
+
+    /**
+     * Elabora tutti i frame completi presenti nel buffer di ingresso.
+     *
+     * @return true se la sessione va chiusa
+     */
+    private boolean elaboraFrame() throws IOException {
+        while (ingresso.remaining() >= ServerBinario.INTESTAZIONE) {
+            int inizio = ingresso.position();
+            int id = ingresso.getInt(inizio + 1);
+            int lunghezza = ingresso.getInt(inizio + 5);
+            if (lunghezza < 0 || lunghezza > ServerBinario.MAX_RICHIESTA) {
+                // Il flusso non è più allineato ai frame: si risponde e si chiude
+                testo(ServerBinario.ERRORE, id, "ERROR: Frame non valido.");
+                return true;
+            }
+            if (ingresso.remaining() < ServerBinario.INTESTAZIONE + lunghezza) {
+                return false;
+            }
+            byte opcode = ingresso.get(inizio);
+            ByteBuffer payload = ingresso.duplicate();
+            payload.position(inizio + ServerBinario.INTESTAZIONE).limit(inizio + ServerBinario.INTESTAZIONE + lunghezza);
+            ingresso.position(payload.limit());
+            if (!rispondi(opcode, id, payload)) {
+                return true;
+            }
+            if (uscita.position() >= CAPACITA_USCITA) {
+                // Risposte già abbastanza grandi: meglio inviarle subito
+                svuota();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scrive nel buffer di uscita la risposta a un frame, calcolata sullo
+     * snapshot corrente del dataset.
+     *
+     * @return false se il client ha chiesto di chiudere la sessione
+     */
+    private boolean rispondi(byte opcode, int id, ByteBuffer payload) {
+        GestoreCSV gestore = archivio.corrente();
+        switch (opcode) {
+            case ServerBinario.COMANDO: {
+                String cmd = StandardCharsets.UTF_8.decode(payload).toString().trim();
+                if (cmd.equalsIgnoreCase(Protocollo.EXIT)) {
+                    return false;
+                }
+                risposta(id, cmd.equalsIgnoreCase(Protocollo.HELP)
+                        ? Risposta.testo(Protocollo.getHelpMessage())
+                        : ServerStrutture.elaboraRichiesta(gestore, cache, cmd));
+                break;
+            }
+            case ServerBinario.RIGA: {
+                int n = payload.remaining() == Integer.BYTES ? payload.getInt() : 0;
+                if (n <= 0 || n > gestore.getNumeroStrutture()) {
+                    testo(ServerBinario.ERRORE, id, Protocollo.ERRORE_RIGA);
+                } else {
+                    righe(id, Risposta.righe(gestore, new int[]{n - 1}));
+                }
+                break;
+            }
+            case ServerBinario.FILTRO: {
+                int c = payload.hasRemaining() ? payload.get() & 0xFF : Integer.MAX_VALUE;
+                if (c >= Colonna.values().length) {
+                    testo(ServerBinario.ERRORE, id, Protocollo.ERRORE_COMANDO);
+                } else {
+                    String valore = StandardCharsets.UTF_8.decode(payload).toString();
+                    righe(id, Risposta.righe(gestore, gestore.righePer(Colonna.values()[c], valore)));
+                }
+                break;
+            }
+            case ServerBinario.PING:
+                chiudiFrame(apriFrame(ServerBinario.PONG, id));
+                break;
+            default:
+                testo(ServerBinario.ERRORE, id, Protocollo.ERRORE_COMANDO);
+        }
+        return true;
+    }
+
+    /**
+     * Scrive una risposta del dispatcher: righe in forma colonnare, testo
+     * o errore a seconda del contenuto.
+     */
+    private void risposta(int id, Risposta r) {
+        if (r.isElenco()) {
+            righe(id, r);
+            return;
+        }
+        String t = r.toString();
+        testo(t.startsWith("ERROR") ? ServerBinario.ERRORE : ServerBinario.TESTO, id, t);
+    }
+
+    /**
+     * Frame di benvenuto: versione, numero di colonne e nomi delle colonne.
+     */
+    private void benvenuto() {
+        int inizio = apriFrame(ServerBinario.BENVENUTO, 0);
+        assicura(2);
+        uscita.put(ServerBinario.VERSIONE).put((byte) ColonneCodificate.NUMERO_CAMPI);
+        for (String nome : ColonneCodificate.NOMI_CAMPI) {
+            byte[] b = nome.getBytes(StandardCharsets.UTF_8);
+            assicura(Short.BYTES + b.length);
+            uscita.putShort((short) b.length).put(b);
+        }
+        chiudiFrame(inizio);
+    }
+
+    /**
+     * Scrive un frame con payload testuale.
+     */
+    private void testo(byte opcode, int id, String testo) {
+        byte[] b = testo.getBytes(StandardCharsets.UTF_8);
+        int inizio = apriFrame(opcode, id);
+        assicura(b.length);
+        uscita.put(b);
+        chiudiFrame(inizio);
+    }
+
+    /**
+     * Scrive un frame RIGHE con le righe della risposta in forma colonnare.
+     */
+    private void righe(int id, Risposta r) {
+        ColonneCodificate colonne = r.getGestore().getColonne();
+        int[] righe = r.indiciRighe();
+        int inizio = apriFrame(ServerBinario.RIGHE, id);
+        assicura(Integer.BYTES);
+        uscita.putInt(righe.length);
+        testoOpzionale(r.getIntestazione());
+        testoOpzionale(r.getChiusura());
+        assicura(1);
+        uscita.put((byte) ColonneCodificate.NUMERO_CAMPI);
+        if (codici.length < righe.length) {
+            codici = new int[righe.length];
+            valori = new int[righe.length];
+        }
+        for (int c = 0; c < ColonneCodificate.NUMERO_CAMPI; c++) {
+            colonna(colonne, c, righe);
+        }
+        chiudiFrame(inizio);
+    }
+
+    /**
+     * Scrive dizionario e codici di una colonna per le righe indicate.
+     */
+    private void colonna(ColonneCodificate colonne, int c, int[] righe) {
+        if (mappe[c] == null || mappe[c].length < colonne.dimensioneDizionario(c)) {
+            mappe[c] = new int[colonne.dimensioneDizionario(c)];
+        }
+        int[] mappa = mappe[c];
+        int k = 0;
+        for (int i = 0; i < righe.length; i++) {
+            int globale = colonne.codice(c, righe[i]);
+            int locale = mappa[globale];
+            if (locale == 0) {
+                valori[k] = globale;
+                locale = mappa[globale] = ++k;
+            }
+            codici[i] = locale - 1;
+        }
+        assicura(Integer.BYTES);
+        uscita.putInt(k);
+        for (int j = 0; j < k; j++) {
+            int lunghezza = colonne.lunghezzaValore(c, valori[j]);
+            assicura(Short.BYTES + lunghezza);
+            uscita.putShort((short) lunghezza);
+            colonne.copiaValore(c, valori[j], uscita);
+            mappa[valori[j]] = 0;
+        }
+        int larghezza = k <= 1 << 8 ? 1 : k <= 1 << 16 ? 2 : 4;
+        assicura(1 + righe.length * larghezza);
+        uscita.put((byte) larghezza);
+        for (int i = 0; i < righe.length; i++) {
+            if (larghezza == 1) {
+                uscita.put((byte) codici[i]);
+            } else if (larghezza == 2) {
+                uscita.putShort((short) codici[i]);
+            } else {
+                uscita.putInt(codici[i]);
+            }
+        }
+    }
+
+    /**
+     * Scrive un testo preceduto dalla sua lunghezza; null diventa lunghezza 0.
+     */
+    private void testoOpzionale(String testo) {
+        byte[] b = testo == null ? new byte[0] : testo.getBytes(StandardCharsets.UTF_8);
+        assicura(Integer.BYTES + b.length);
+        uscita.putInt(b.length).put(b);
+    }
+
+    /**
+     * Scrive l'intestazione di un frame con lunghezza provvisoria.
+     *
+     * @return posizione del payload, da passare a chiudiFrame
+     */
+    private int apriFrame(byte opcode, int id) {
+        assicura(ServerBinario.INTESTAZIONE);
+        uscita.put(opcode).putInt(id).putInt(0);
+        return uscita.position();
+    }
+
+    /**
+     * Completa l'intestazione del frame con la lunghezza del payload scritto.
+     */
+    private void chiudiFrame(int inizioPayload) {
+        uscita.putInt(inizioPayload - Integer.BYTES, uscita.position() - inizioPayload);
+    }
+
+    /**
+     * Garantisce spazio nel buffer di uscita per altri n byte.
+     */
+    private void assicura(int n) {
+        if (uscita.remaining() < n) {
+            ByteBuffer piuGrande = ByteBuffer.allocate(Math.max(uscita.capacity() * 2, uscita.position() + n));
+            uscita.flip();
+            uscita = piuGrande.put(uscita);
+        }
+    }
+
+    /**
+     * Scrive sul canale le risposte accumulate.
+     */
+    private void svuota() throws IOException {
+        uscita.flip();
+        while (uscita.hasRemaining()) {
+            canale.write(uscita);
+        }
+        uscita.clear();
+        if (uscita.capacity() > MAX_USCITA_TRATTENUTA) {
+            uscita = ByteBuffer.allocate(CAPACITA_USCITA);
+        }
+    }
+}
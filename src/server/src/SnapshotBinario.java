@@ -0,0 +1,334 @@
+package server.src;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * SnapshotBinario salva accanto al CSV il dataset già analizzato (colonne,
+ * dizionari e indici di GestoreCSV) in un file binario, così un riavvio non
+ * deve rileggere il CSV né ricostruire gli indici.
+ *
+ * <p>Il file ha un'intestazione fissa seguita dai dati:
+ * <pre>
+ *   magia "STRSNAP\n" | versione (4) | dimensione del CSV (8) | CRC32C del CSV (4)
+ *   | lunghezza dei dati (8) | CRC32C dei dati (4) | dati
+ * </pre>
+ * L'impronta del CSV (dimensione e CRC32C del contenuto) lega lo snapshot al
+ * file da cui è stato prodotto: se il CSV è cambiato, se la versione non è
+ * quella attuale o se il controllo dei dati fallisce lo snapshot viene
+ * ignorato e il dataset è riletto dal CSV, poi salvato in uno snapshot nuovo.
+ * Lo snapshot è scritto in un file temporaneo e rinominato, quindi un
+ * riavvio non ne vede mai uno scritto a metà.
+ *
+ * <p>Codici e dizionari sono scritti come sono in memoria: con la memoria
+ * fuori heap le colonne lette dallo snapshot usano direttamente i byte del
+ * file mappato, senza copiarli.
+ */
+final class SnapshotBinario {
+    /** Estensione aggiunta al nome del CSV per ottenere quello dello snapshot. */
+    static final String ESTENSIONE = ".snapshot";
+    /** Versione del formato: va incrementata a ogni modifica di quanto scritto nei dati. */
+    static final int VERSIONE = 4;
+    private static final byte[] MAGIA = "STRSNAP\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int INTESTAZIONE = MAGIA.length + Integer.BYTES + Long.BYTES + Integer.BYTES
+            + Long.BYTES + Integer.BYTES;
+
+    private SnapshotBinario() {
+    }
+
+    /**
+     * Impronta del contenuto di un CSV.
+     */
+    private static final class Impronta {
+        final long dimensione;
+        final int crc;
+
+        Impronta(long dimensione, int crc) {
+            this.dimensione = dimensione;
+            this.crc = crc;
+        }
+
+        boolean uguale(Impronta altra) {
+            return dimensione == altra.dimensione && crc == altra.crc;
+        }
+    }
+
+    /**
+     * Carica il dataset dallo snapshot del CSV se è valido e corrisponde al
+     * contenuto attuale del file; altrimenti legge il CSV e aggiorna lo snapshot.
+     *
+     * @param csvPath   percorso del file CSV
+     * @param fuoriHeap true per tenere le colonne fuori dall'heap
+     * @return dataset corrispondente al CSV (vuoto se il CSV non può essere letto)
+     */
+    static GestoreCSV apri(String csvPath, boolean fuoriHeap) {
+        Path csv = Paths.get(csvPath);
+        Path snapshot = percorsoPer(csv);
+        Impronta prima;
+        try {
+            prima = impronta(csv);
+        } catch (IOException e) {
+            // Il CSV non è leggibile: GestoreCSV lo segnala e restituisce un dataset vuoto
+            return new GestoreCSV(csvPath, fuoriHeap);
+        }
+        GestoreCSV g = leggi(snapshot, prima, fuoriHeap);
+        if (g != null) {
+            System.out.println("[CSV] Dati letti dallo snapshot " + snapshot);
+            return g;
+        }
+        g = new GestoreCSV(csvPath, fuoriHeap);
+        try {
+            // Se il CSV è cambiato durante la lettura l'impronta non descrive i dati letti
+            if (g.getNumeroStrutture() > 0 && prima.uguale(impronta(csv))) {
+                salva(g, snapshot, prima);
+            }
+        } catch (IOException e) {
+            System.err.println("[CSV] Snapshot non scritto: " + e);
+        }
+        return g;
+    }
+
+    /**
+     * Restituisce il percorso dello snapshot del CSV indicato.
+     *
+     * @param csv percorso del file CSV
+     * @return percorso dello snapshot, nella stessa cartella
+     */
+    static Path percorsoPer(Path csv) {
+        return csv.resolveSibling(csv.getFileName() + ESTENSIONE);
+    }
+
+    /**
+     * Calcola l'impronta del CSV sul file mappato in memoria.
+     */
+    private static Impronta impronta(Path csv) throws IOException {
+        try (FileChannel canale = FileChannel.open(csv, StandardOpenOption.READ)) {
+            long dimensione = canale.size();
+            CRC32C crc = new CRC32C();
+            for (long pos = 0; pos < dimensione; pos += Integer.MAX_VALUE) {
+                crc.update(canale.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(Integer.MAX_VALUE, dimensione - pos)));
+            }
+            return new Impronta(dimensione, (int) crc.getValue());
+        }
+    }
+
+    /**
+     * Legge lo snapshot se è valido per il CSV con l'impronta indicata.
+     *
+     * @return dataset dello snapshot, o null se assente o non utilizzabile
+     */
+    private static GestoreCSV leggi(Path snapshot, Impronta attesa, boolean fuoriHeap) {
+        try (FileChannel canale = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            if (canale.size() < INTESTAZIONE) {
+                return ignora(snapshot, "file troncato");
+            }
+            ByteBuffer mappa = canale.map(FileChannel.MapMode.READ_ONLY, 0, canale.size());
+            byte[] magia = new byte[MAGIA.length];
+            mappa.get(magia);
+            if (!Arrays.equals(magia, MAGIA)) {
+                return ignora(snapshot, "non è uno snapshot");
+            }
+            int versione = mappa.getInt();
+            if (versione != VERSIONE) {
+                return ignora(snapshot, "versione " + versione + " anziché " + VERSIONE);
+            }
+            if (!attesa.uguale(new Impronta(mappa.getLong(), mappa.getInt()))) {
+                return ignora(snapshot, "il CSV è cambiato");
+            }
+            long lunghezza = mappa.getLong();
+            int crcAtteso = mappa.getInt();
+            if (lunghezza != mappa.remaining()) {
+                return ignora(snapshot, "lunghezza dei dati errata");
+            }
+            ByteBuffer dati = mappa.slice();
+            CRC32C crc = new CRC32C();
+            crc.update(dati.duplicate());
+            if ((int) crc.getValue() != crcAtteso) {
+                return ignora(snapshot, "checksum errato");
+            }
+            GestoreCSV g = GestoreCSV.leggi(dati, fuoriHeap);
+            return dati.hasRemaining() ? ignora(snapshot, "dati in eccesso") : g;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // Anche dati con checksum corretto ma incoerenti non devono impedire l'avvio
+            return ignora(snapshot, e.toString());
+        }
+    }
+
+    /**
+     * Segnala perché lo snapshot non viene usato.
+     *
+     * @return sempre null
+     */
+    private static GestoreCSV ignora(Path snapshot, String motivo) {
+        System.err.println("[CSV] Snapshot " + snapshot + " ignorato (" + motivo + "): lettura dal CSV");
+        return null;
+    }
+
+    /**
+     * Scrive lo snapshot del dataset in un file temporaneo e lo rinomina al
+     * posto di quello esistente.
+     */
+    private static void salva(GestoreCSV g, Path snapshot, Impronta impronta) throws IOException {
+        long inizio = System.nanoTime();
+        Path temporaneo = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try (FileChannel canale = FileChannel.open(temporaneo, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // I dati seguono l'intestazione, scritta per ultima quando lunghezza e checksum sono noti
+            canale.position(INTESTAZIONE);
+            CRC32C crc = new CRC32C();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(Channels.newOutputStream(canale), crc), 1 << 16));
+            g.scrivi(out);
+            out.flush();
+            ByteBuffer intestazione = ByteBuffer.allocate(INTESTAZIONE)
+                    .put(MAGIA)
+                    .putInt(VERSIONE)
+                    .putLong(impronta.dimensione)
+                    .putInt(impronta.crc)
+                    .putLong(canale.size() - INTESTAZIONE)
+                    .putInt((int) crc.getValue())
+                    .flip();
+            while (intestazione.hasRemaining()) {
+                canale.write(intestazione, intestazione.position());
+            }
+            canale.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporaneo);
+            throw e;
+        }
+        Files.move(temporaneo, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("[CSV] Snapshot scritto in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inizio) + " ms: " + snapshot);
+    }
+
+    /**
+     * Scrive un array di byte preceduto dalla sua lunghezza.
+     *
+     * @param out flusso dello snapshot
+     * @param b   byte da scrivere
+     * @throws IOException se la scrittura fallisce
+     */
+    static void scriviByte(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /**
+     * Legge un array di byte scritto da {@link #scriviByte(DataOutputStream, byte[])}.
+     *
+     * @param in dati dello snapshot
+     * @return byte letti
+     */
+    static byte[] leggiByte(ByteBuffer in) {
+        byte[] b = new byte[in.getInt()];
+        in.get(b);
+        return b;
+    }
+
+    /**
+     * Scrive un testo in UTF-8 preceduto dalla sua lunghezza in byte.
+     *
+     * @param out flusso dello snapshot
+     * @param s   testo da scrivere
+     * @throws IOException se la scrittura fallisce
+     */
+    static void scriviTesto(DataOutputStream out, String s) throws IOException {
+        scriviByte(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Legge un testo scritto da {@link #scriviTesto(DataOutputStream, String)}.
+     *
+     * @param in dati dello snapshot
+     * @return testo letto
+     */
+    static String leggiTesto(ByteBuffer in) {
+        return new String(leggiByte(in), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Scrive gli interi dell'array, senza la lunghezza, con una sola copia in blocco.
+     *
+     * @param out flusso dello snapshot
+     * @param a   interi da scrivere
+     * @throws IOException se la scrittura fallisce
+     */
+    static void scriviInteri(DataOutputStream out, int[] a) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(a.length * Integer.BYTES);
+        b.asIntBuffer().put(a);
+        out.write(b.array());
+    }
+
+    /**
+     * Legge n interi con una sola copia in blocco.
+     *
+     * @param in dati dello snapshot
+     * @param n  numero di interi
+     * @return interi letti
+     */
+    static int[] leggiInteri(ByteBuffer in, int n) {
+        int[] a = new int[n];
+        in.asIntBuffer().get(a);
+        in.position(in.position() + n * Integer.BYTES);
+        return a;
+    }
+
+    /**
+     * Scrive i byte del buffer, dall'inizio al limite, senza la lunghezza e
+     * senza modificarne la posizione.
+     *
+     * @param out flusso dello snapshot
+     * @param b   buffer da scrivere, nell'heap o diretto
+     * @throws IOException se la scrittura fallisce
+     */
+    static void scriviBlocco(DataOutputStream out, ByteBuffer b) throws IOException {
+        if (b.hasArray()) {
+            out.write(b.array(), b.arrayOffset(), b.limit());
+            return;
+        }
+        byte[] blocco = new byte[Math.min(b.limit(), 1 << 16)];
+        for (int pos = 0; pos < b.limit(); pos += blocco.length) {
+            int n = Math.min(blocco.length, b.limit() - pos);
+            b.get(pos, blocco, 0, n);
+            out.write(blocco, 0, n);
+        }
+    }
+
+    /**
+     * Legge n byte scritti da {@link #scriviBlocco(DataOutputStream, ByteBuffer)}.
+     *
+     * @param in        dati dello snapshot
+     * @param n         numero di byte
+     * @param fuoriHeap true per restituire una vista dei dati mappati, false per una copia nell'heap
+     * @return buffer little-endian di n byte, con posizione 0
+     */
+    static ByteBuffer leggiBlocco(ByteBuffer in, int n, boolean fuoriHeap) {
+        ByteBuffer blocco;
+        if (fuoriHeap) {
+            blocco = in.slice(in.position(), n).order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            blocco = ColonneCodificate.alloca(n, false);
+            blocco.put(0, in, in.position(), n);
+        }
+        in.position(in.position() + n);
+        return blocco;
+    }
+}
@@ -0,0 +1,131 @@
+package server.src;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * TabellaValori assegna un codice a ogni valore distinto letto dal CSV e ne
+ * conserva una sola String. La ricerca avviene direttamente sui byte del
+ * campo, senza creare stringhe: una String nasce solo per un valore mai visto.
+ *
+ * <p>Tabella a indirizzamento aperto con scansione lineare; non è thread-safe,
+ * ogni compito di lettura ne usa una propria.
+ */
+final class TabellaValori {
+    /** Valore dei campi vuoti, sempre con codice 0. */
+    static final String NON_PRESENTE = "NON_PRESENTE";
+    private static final int CAPACITA_INIZIALE = 1024;
+
+    private final Charset codifica;
+    /** Per ogni posizione della tabella: codice più uno (0 = libera). */
+    private int[] posizioni = new int[CAPACITA_INIZIALE];
+    /** Per codice: hash, byte e stringa del valore. */
+    private int[] hash = new int[CAPACITA_INIZIALE / 2];
+    private byte[][] chiavi = new byte[CAPACITA_INIZIALE / 2][];
+    private String[] valori = new String[CAPACITA_INIZIALE / 2];
+    /** Numero di valori distinti. */
+    private int dimensione;
+
+    /**
+     * Crea una tabella che contiene già il valore dei campi vuoti.
+     *
+     * @param codifica codifica dei byte letti dal file
+     */
+    TabellaValori(Charset codifica) {
+        this.codifica = codifica;
+        // Codice 0 riservato: non serve in tabella, i campi vuoti lo ricevono senza ricerca
+        chiavi[0] = new byte[0];
+        valori[0] = NON_PRESENTE;
+        dimensione = 1;
+    }
+
+    /**
+     * Restituisce il codice del campo, senza gli spazi iniziali e finali come
+     * {@link String#trim()}; un campo vuoto ha il codice di {@link #NON_PRESENTE}.
+     *
+     * @param campo     buffer con i byte del campo, virgolette già rimosse
+     * @param lunghezza numero di byte validi nel buffer
+     * @return codice del valore
+     */
+    int codice(byte[] campo, int lunghezza) {
+        int inizio = 0;
+        int fine = lunghezza;
+        // trim(): i caratteri fino a U+0020 sono byte fino a 0x20 in ogni codifica compatibile con ASCII
+        while (inizio < fine && (campo[inizio] & 0xFF) <= ' ') {
+            inizio++;
+        }
+        while (fine > inizio && (campo[fine - 1] & 0xFF) <= ' ') {
+            fine--;
+        }
+        if (inizio == fine) {
+            return 0;
+        }
+        int h = 1;
+        for (int i = inizio; i < fine; i++) {
+            h = 31 * h + campo[i];
+        }
+        int maschera = posizioni.length - 1;
+        for (int p = h & maschera; ; p = (p + 1) & maschera) {
+            int codice = posizioni[p] - 1;
+            if (codice < 0) {
+                return aggiungi(campo, inizio, fine, h);
+            }
+            if (hash[codice] == h && Arrays.equals(chiavi[codice], 0, chiavi[codice].length, campo, inizio, fine)) {
+                return codice;
+            }
+        }
+    }
+
+    /**
+     * Registra un valore nuovo e restituisce il suo codice.
+     */
+    private int aggiungi(byte[] campo, int inizio, int fine, int h) {
+        if (dimensione == hash.length) {
+            int n = hash.length * 2;
+            hash = Arrays.copyOf(hash, n);
+            chiavi = Arrays.copyOf(chiavi, n);
+            valori = Arrays.copyOf(valori, n);
+            posizioni = new int[n * 2];
+            for (int c = 0; c < dimensione; c++) {
+                inserisci(c);
+            }
+        }
+        int codice = dimensione++;
+        hash[codice] = h;
+        chiavi[codice] = Arrays.copyOfRange(campo, inizio, fine);
+        valori[codice] = new String(campo, inizio, fine - inizio, codifica);
+        inserisci(codice);
+        return codice;
+    }
+
+    /**
+     * Colloca il codice nella prima posizione libera per il suo hash.
+     */
+    private void inserisci(int codice) {
+        int maschera = posizioni.length - 1;
+        int p = hash[codice] & maschera;
+        while (posizioni[p] != 0) {
+            p = (p + 1) & maschera;
+        }
+        posizioni[p] = codice + 1;
+    }
+
+    /**
+     * Restituisce il valore con il codice indicato.
+     *
+     * @param codice codice restituito da {@link #codice(byte[], int)}
+     * @return valore del campo
+     */
+    String valore(int codice) {
+        return valori[codice];
+    }
+
+    /**
+     * Restituisce il numero di valori distinti, compreso {@link #NON_PRESENTE}.
+     *
+     * @return numero di codici assegnati
+     */
+    int dimensione() {
+        return dimensione;
+    }
+}
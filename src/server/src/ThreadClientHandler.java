@@ -1,78 +1,118 @@
 package server.src;
 
-import java.net.Socket;
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * ThreadClientHandler gestisce la comunicazione con un singolo client TCP.
- * Estende Thread per consentire l'elaborazione concorrente delle richieste.
+ * È un Runnable eseguito dall'esecutore del server, su un thread di piattaforma
+ * o su un thread virtuale a seconda della modalità scelta all'avvio.
+ * Le risposte vengono scritte direttamente sul canale del socket, in lotti
+ * di righe codificate da GestoreCSV, senza costruire la risposta in memoria.
+ * Se il client invia più comandi di seguito (pipeline), le risposte a quelli
+ * già arrivati vengono inviate insieme, con le stesse scritture gathering:
+ * le risposte accumulate partono appena la lettura deve attendere altri
+ * byte dal socket.
  */
-public class ThreadClientHandler extends Thread {
-    /** Socket del client connesso. */
-    private final Socket client;
-    /** GestoreCSV per eseguire operazioni di ricerca e filtro sui dati. */
-    private final GestoreCSV gestore;
+public class ThreadClientHandler implements Runnable {
+    /** Prompt inviato dopo ogni risposta, nella stessa scrittura della risposta. */
+    private static final byte[] PROMPT = ">>> ".getBytes(StandardCharsets.UTF_8);
+    /** Numero massimo di risposte in pipeline accumulate prima di scriverle. */
+    private static final int MAX_RISPOSTE_IN_LOTTO = 64;
+
+    /** Canale del client connesso, in modalità bloccante. */
+    private final SocketChannel client;
+    /** Archivio del dataset: ogni comando usa lo snapshot corrente. */
+    private final ArchivioStrutture archivio;
+    /** Cache delle risposte condivisa con gli altri client. */
+    private final CacheRisposte cache;
+    /** Risposte calcolate e non ancora scritte, nell'ordine dei comandi. */
+    private final List<Iterator<ByteBuffer>> inUscita = new ArrayList<>();
 
     /**
      * Costruisce un handler per il client specificato.
      *
-     * @param client  socket del client
-     * @param gestore istanza di GestoreCSV per l'accesso ai dati
+     * @param client   canale del client
+     * @param archivio archivio del dataset corrente
+     * @param cache    cache delle risposte condivisa
      */
-    public ThreadClientHandler(Socket client, GestoreCSV gestore) {
-        this.client  = client;
-        this.gestore = gestore;
+    public ThreadClientHandler(SocketChannel client, ArchivioStrutture archivio, CacheRisposte cache) {
+        this.client   = client;
+        this.archivio = archivio;
+        this.cache    = cache;
     }
 
     /**
-     * Punto di esecuzione del thread.
-     * Apre gli stream di input/output, invia un messaggio di benvenuto,
-     * gestisce i comandi 'help' ed 'exit', e inoltra altri comandi a ServerStrutture.
+     * Punto di esecuzione della sessione.
+     * Apre lo stream di input, invia un messaggio di benvenuto,
+     * gestisce i comandi 'help', 'exit' e 'modo frame', e inoltra altri comandi
+     * a ServerStrutture.
      */
     @Override
     public void run() {
         try (
-                BufferedReader in  = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                PrintWriter    out = new PrintWriter(client.getOutputStream(), true)
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(ingresso(), StandardCharsets.UTF_8))
         ) {
-            // Messaggio di benvenuto
-            out.println("Benvenuto nel server Strutture Ricettive!");
-            // Istruzioni di base per l'utente
-            out.println("Digita 'help' per l'elenco comandi, 'exit' per chiudere.");
+            // Dopo "modo frame" le risposte hanno lunghezza esplicita e nessun prompt
+            boolean inFrame = false;
+
+            // Messaggio di benvenuto e istruzioni di base per l'utente
+            scrivi("Benvenuto nel server Strutture Ricettive!\n"
+                    + "Digita 'help' per l'elenco comandi, 'exit' per chiudere.\n");
 
             // Prompt iniziale
-            out.print(">>> ");
-            out.flush();
+            scrivi(">>> ");
 
             String cmd;
             // Ciclo principale di lettura dei comandi
             while ((cmd = in.readLine()) != null) {
                 cmd = cmd.trim();
+                // L'id di una richiesta "#id comando" torna nell'intestazione della risposta
+                int id = Protocollo.idRichiesta(cmd);
+                cmd = Protocollo.comandoRichiesta(cmd);
 
                 // Verifica comando di uscita
                 if (cmd.equalsIgnoreCase("exit")) {
-                    out.println("Chiusura connessione. Arrivederci!");
+                    svuota();
+                    scrivi("Chiusura connessione. Arrivederci!\n");
                     break;
                 }
 
-                String risposta;
+                Risposta risposta;
                 // Comando help: invia il messaggio di aiuto
                 if (cmd.equalsIgnoreCase("help")) {
-                    risposta = Protocollo.getHelpMessage();
+                    risposta = Risposta.testo(Protocollo.getHelpMessage());
+                } else if (cmd.equalsIgnoreCase(Protocollo.MODO_FRAME)) {
+                    inFrame = true;
+                    risposta = Risposta.testo(Protocollo.FRAME_ATTIVO);
                 } else {
-                    // Inoltra altri comandi al metodo statico di elaborazione
-                    risposta = ServerStrutture.elaboraRichiestaStatic(gestore, cmd);
+                    // Inoltra altri comandi all'elaborazione, passando dalla cache
+                    risposta = ServerStrutture.elaboraRichiesta(archivio.corrente(), cache, cmd);
                 }
 
-                // Invia la risposta riga per riga
-                for (String line : risposta.split("\\n")) {
-                    out.println(line);
+                // Accoda la risposta dai byte delle righe, seguita dal nuovo prompt
+                if (inFrame) {
+                    inUscita.add(risposta.bufferInFrame(id));
+                } else {
+                    inUscita.add(risposta.buffer());
+                    inUscita.add(Collections.singletonList(ByteBuffer.wrap(PROMPT)).iterator());
+                }
+                // Le risposte partono quando la lettura della prossima riga richiede altri byte
+                if (inUscita.size() >= MAX_RISPOSTE_IN_LOTTO) {
+                    svuota();
                 }
-                // Nuovo prompt dopo la risposta
-                out.print(">>> ");
-                out.flush();
             }
         } catch (Exception e) {
             // Gestione generica degli errori di I/O e rete
@@ -83,4 +123,68 @@ public class ThreadClientHandler extends Thread {
             }
         }
     }
+
+    /**
+     * Restituisce lo stream di input del socket, che prima di leggere altri
+     * byte scrive le risposte accumulate: una riga incompleta nel buffer non
+     * trattiene così le risposte ai comandi precedenti.
+     */
+    private InputStream ingresso() {
+        return new FilterInputStream(Channels.newInputStream(client)) {
+            @Override
+            public int read() throws IOException {
+                svuota();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                svuota();
+                return super.read(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Scrive sul canale le risposte accumulate, in ordine.
+     *
+     * @throws IOException se la scrittura fallisce
+     */
+    private void svuota() throws IOException {
+        if (inUscita.isEmpty()) {
+            return;
+        }
+        Iterator<Iterator<ByteBuffer>> risposte = inUscita.iterator();
+        Risposta.scrivi(client, new Iterator<ByteBuffer>() {
+            private Iterator<ByteBuffer> corrente = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!corrente.hasNext() && risposte.hasNext()) {
+                    corrente = risposte.next();
+                }
+                return corrente.hasNext();
+            }
+
+            @Override
+            public ByteBuffer next() {
+                hasNext();
+                return corrente.next();
+            }
+        }, null);
+        inUscita.clear();
+    }
+
+    /**
+     * Scrive un testo sul canale del client codificandolo in UTF-8.
+     *
+     * @param testo testo da inviare
+     * @throws IOException se la scrittura fallisce
+     */
+    private void scrivi(String testo) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(testo.getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) {
+            client.write(buf);
+        }
+    }
 }
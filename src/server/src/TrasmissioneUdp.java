@@ -0,0 +1,232 @@
+package server.src;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * TrasmissioneUdp invia in modo affidabile la risposta a una richiesta UDP.
+ *
+ * <p>La risposta è divisa in frammenti numerati: ogni datagramma porta
+ * l'identificativo della richiesta, il numero di sequenza e il totale dei
+ * frammenti. Il client conferma periodicamente quanti frammenti ha ricevuto
+ * senza buchi ed elenca quelli mancanti (NACK); il server tiene i frammenti
+ * in memoria finché non sono tutti confermati, ritrasmette quelli segnalati
+ * e non ne tiene in volo, oltre l'ultimo confermato, più di quanti ne
+ * consenta la finestra negoziata (al massimo {@link #FINESTRA}).
+ *
+ * <p>Formato dei datagrammi (interi big-endian):
+ * <pre>
+ *   richiesta  : 0x00 0x01 id frammento finestra  comando UTF-8
+ *   dati       : 0x00 0x02 id seq totale           frammento
+ *   riscontro  : 0x00 0x03 id contigui mancanti... (interi)
+ * </pre>
+ * Nella richiesta il client propone la dimensione massima di un frammento
+ * (adatta alla MTU del percorso) e quanti byte può ricevere senza riscontri;
+ * il server le limita con {@link #negozia}. I frammenti terminano sempre su un
+ * confine di carattere UTF-8, quindi ognuno è decodificabile da solo.
+ * Un riscontro con contigui uguale al totale chiude la trasmissione.
+ * I comandi testuali semplici, senza intestazione, continuano a ricevere
+ * la risposta storica a frammenti seguita da __END__.
+ */
+final class TrasmissioneUdp implements Runnable {
+    /** Primo byte dei datagrammi del protocollo affidabile: nessun comando testuale inizia così. */
+    static final byte MAGIA = 0x00;
+    static final byte TIPO_RICHIESTA = 1;
+    static final byte TIPO_DATI = 2;
+    static final byte TIPO_RISCONTRO = 3;
+    /** Lunghezza dell'intestazione di richieste e riscontri: magia, tipo, id. */
+    static final int INTESTAZIONE = 6;
+    /** Lunghezza dell'intestazione delle richieste: in più frammento e finestra proposti. */
+    static final int INTESTAZIONE_RICHIESTA = 14;
+    /** Lunghezza dell'intestazione dei dati: in più seq e totale. */
+    static final int INTESTAZIONE_DATI = 14;
+
+    /** Frammento più piccolo accettato in negoziazione: contiene sempre un carattere UTF-8. */
+    static final int MIN_FRAMMENTO = 512;
+    /** Frammento più grande accettato in negoziazione. */
+    static final int MAX_FRAMMENTO = Protocollo.UDP_MAX_PAYLOAD - INTESTAZIONE_DATI;
+    /** Numero massimo di frammenti inviati oltre l'ultimo confermato. */
+    static final int FINESTRA = 64;
+    /** Numero minimo di frammenti in volo, qualunque sia la finestra proposta. */
+    private static final int MIN_FINESTRA = 2;
+    /** Attesa di un riscontro prima di ritrasmettere il primo frammento non confermato. */
+    private static final long ATTESA_MS = 50;
+    /** Attese consecutive senza riscontri dopo le quali la trasmissione viene abbandonata. */
+    private static final int MAX_ATTESE = 40;
+
+    private final Uscita uscita;
+    private final SocketAddress client;
+    private final int id;
+    /** Calcolo della risposta, eseguito dal thread della trasmissione. */
+    private final Supplier<byte[]> risposta;
+    private final int dimensioneFrammento;
+    /** Frammenti inviati oltre l'ultimo confermato prima di attendere un riscontro. */
+    private final int finestra;
+    /** Risposta completa: resta in memoria come buffer di ritrasmissione. */
+    private byte[] dati;
+    /** Inizio di ogni frammento in dati, seguito dalla fine dell'ultimo. */
+    private int[] confini;
+    private int totale;
+    /** Riscontri ricevuti dal ciclo di ricezione: contigui seguito dai mancanti. */
+    private final BlockingQueue<int[]> riscontri = new LinkedBlockingQueue<>();
+
+    /**
+     * Prepara la trasmissione di una risposta.
+     *
+     * @param uscita              ciclo UDP che invia i frammenti
+     * @param client              indirizzo del client
+     * @param id                  identificativo della richiesta scelto dal client
+     * @param risposta            calcolo della risposta codificata in UTF-8
+     * @param dimensioneFrammento byte di risposta per datagramma, al massimo
+     * @param finestraByte        byte che il client può ricevere senza riscontri
+     */
+    TrasmissioneUdp(Uscita uscita, SocketAddress client, int id,
+                    Supplier<byte[]> risposta, int dimensioneFrammento, int finestraByte) {
+        this.uscita = uscita;
+        this.client = client;
+        this.id = id;
+        this.risposta = risposta;
+        this.dimensioneFrammento = negozia(dimensioneFrammento);
+        this.finestra = Math.max(MIN_FINESTRA, Math.min(FINESTRA, finestraByte / this.dimensioneFrammento));
+    }
+
+    /**
+     * Limita la dimensione di frammento proposta dal client all'intervallo accettato.
+     *
+     * @param proposta dimensione proposta, in byte
+     * @return dimensione effettiva del frammento
+     */
+    static int negozia(int proposta) {
+        return Math.max(MIN_FRAMMENTO, Math.min(MAX_FRAMMENTO, proposta));
+    }
+
+    /**
+     * Divide i dati in frammenti di al più dimensione byte, facendo terminare
+     * ciascuno su un confine di carattere UTF-8: un frammento non si chiude mai
+     * tra i byte di un carattere multibyte.
+     *
+     * @param dati       testo codificato in UTF-8
+     * @param dimensione dimensione massima di un frammento (almeno 4 byte)
+     * @return inizio di ogni frammento seguito dalla lunghezza dei dati;
+     *         una risposta vuota ha un solo frammento vuoto
+     */
+    static int[] confiniFrammenti(byte[] dati, int dimensione) {
+        int[] confini = new int[dati.length / dimensione + 2];
+        int n = 0;
+        int inizio = 0;
+        do {
+            confini[n++] = inizio;
+            int fine = Math.min(dati.length, inizio + dimensione);
+            // I byte 10xxxxxx continuano un carattere: il taglio arretra al suo inizio
+            while (fine < dati.length && (dati[fine] & 0xC0) == 0x80) {
+                fine--;
+            }
+            if (fine == inizio) {
+                // Solo byte di continuazione (UTF-8 non valido): taglio alla dimensione piena
+                fine = Math.min(dati.length, inizio + dimensione);
+            }
+            if (n == confini.length) {
+                confini = Arrays.copyOf(confini, n * 2);
+            }
+            inizio = fine;
+        } while (inizio < dati.length);
+        confini[n++] = dati.length;
+        return Arrays.copyOf(confini, n);
+    }
+
+    /**
+     * Consegna alla trasmissione un riscontro ricevuto dal client.
+     *
+     * @param b datagramma di tipo riscontro, posizionato dopo l'intestazione
+     */
+    void riscontro(ByteBuffer b) {
+        int[] r = new int[b.remaining() / Integer.BYTES];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = b.getInt();
+        }
+        if (r.length > 0) {
+            riscontri.offer(r);
+        }
+    }
+
+    /**
+     * Calcola la risposta, invia i frammenti rispettando la finestra e gestisce
+     * riscontri e ritrasmissioni, finché il client non conferma tutto o smette
+     * di rispondere.
+     */
+    @Override
+    public void run() {
+        dati = risposta.get();
+        // Anche una risposta vuota occupa un frammento, così il client ne conosce la fine
+        confini = confiniFrammenti(dati, dimensioneFrammento);
+        totale = confini.length - 1;
+        int confermati = 0;
+        int prossimo = 0;
+        int attese = 0;
+        try {
+            while (confermati < totale) {
+                int limite = Math.min(totale, confermati + finestra);
+                while (prossimo < limite) {
+                    invia(prossimo++);
+                }
+                int[] r = riscontri.poll(ATTESA_MS, TimeUnit.MILLISECONDS);
+                if (r == null) {
+                    if (++attese > MAX_ATTESE) {
+                        return;
+                    }
+                    // Nessun riscontro: il primo frammento non confermato fa da sonda
+                    invia(confermati);
+                    continue;
+                }
+                attese = 0;
+                confermati = Math.max(confermati, Math.min(r[0], totale));
+                for (int i = 1; i < r.length; i++) {
+                    if (r[i] >= confermati && r[i] < prossimo) {
+                        invia(r[i]);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Invia il frammento con il numero di sequenza indicato.
+     */
+    private void invia(int seq) {
+        int inizio = confini[seq];
+        int len = confini[seq + 1] - inizio;
+        ByteBuffer b = uscita.buffer(INTESTAZIONE_DATI + len);
+        b.put(MAGIA).put(TIPO_DATI).putInt(id).putInt(seq).putInt(totale).put(dati, inizio, len);
+        uscita.invia(b.flip(), client);
+    }
+
+    /**
+     * Destinazione dei datagrammi in uscita: il ciclo UDP che possiede il canale.
+     */
+    interface Uscita {
+        /**
+         * Restituisce un buffer vuoto, pronto per la scrittura, di almeno
+         * la capacità indicata.
+         *
+         * @param capacita byte del datagramma, intestazione compresa
+         * @return buffer preso dal pool del server
+         */
+        ByteBuffer buffer(int capacita);
+
+        /**
+         * Accoda un datagramma per l'invio. Il buffer, pronto per la lettura,
+         * passa al ciclo che lo restituisce al pool dopo l'invio.
+         *
+         * @param datagramma contenuto del datagramma
+         * @param dest       indirizzo di destinazione
+         */
+        void invia(ByteBuffer datagramma, SocketAddress dest);
+    }
+}